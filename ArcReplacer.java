@@ -0,0 +1,120 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.IntPredicate;
+
+// Adaptive Replacement Cache (Megiddo & Modha) over the frames of one shard.
+// T1 holds pages seen once recently, T2 pages seen at least twice. B1/B2 remember the ids of pages
+// evicted from T1/T2; a miss that hits a ghost list moves the target size p of T1 towards the list
+// that would have kept the page, so the split between recency and frequency follows the workload.
+// T1 and T2 are FrameQueues, so a hit and an eviction neither box nor walk past pinned frames; the ghost lists are
+// only touched when a frame gets a new page.
+public class ArcReplacer implements Replacer {
+    private static final int T1 = 0; // frames, least recently used first
+    private static final int T2 = 1; // frames, least recently used first
+
+    private final int numFrames;
+    private final FrameQueues queues;
+    private final LinkedHashSet<Integer> b1 = new LinkedHashSet<>(); // ghost page ids evicted from t1
+    private final LinkedHashSet<Integer> b2 = new LinkedHashSet<>(); // ghost page ids evicted from t2
+    private final int[] framePage; // page held by each frame, -1 when unknown
+    private int p = 0; // target size of t1
+
+    public ArcReplacer(int numFrames) {
+        this.numFrames = numFrames;
+        this.queues = new FrameQueues(numFrames, 2);
+        this.framePage = new int[numFrames];
+        Arrays.fill(framePage, -1);
+    }
+
+    @Override
+    public synchronized void recordAccess(int frameId) {
+        checkFrame(frameId);
+        // second access, or another one: MRU end of t2
+        queues.moveToTail(frameId, queues.queueOf(frameId) == FrameQueues.NONE ? T1 : T2);
+    }
+
+    @Override
+    public synchronized void recordAccess(int frameId, int pageId) {
+        checkFrame(frameId);
+        if (framePage[frameId] == pageId) {
+            recordAccess(frameId);
+            return;
+        }
+        framePage[frameId] = pageId;
+        if (b1.remove(pageId)) {
+            // t1 was too small to keep this page, grow its target
+            p = Math.min(numFrames, p + Math.max(1, b2.size() / Math.max(1, b1.size())));
+            queues.moveToTail(frameId, T2);
+        } else if (b2.remove(pageId)) {
+            p = Math.max(0, p - Math.max(1, b1.size() / Math.max(1, b2.size())));
+            queues.moveToTail(frameId, T2);
+        } else {
+            queues.moveToTail(frameId, T1);
+        }
+    }
+
+    @Override
+    public synchronized void setEvictable(int frameId, boolean evictable) {
+        checkFrame(frameId);
+        queues.setEvictable(frameId, evictable);
+    }
+
+    @Override
+    public synchronized boolean evict(int[] frameId) {
+        return evict(frameId, frame -> true);
+    }
+
+    @Override
+    public synchronized boolean evict(int[] frameId, IntPredicate preferred) {
+        if (queues.evictableCount() == 0) return false;
+        boolean fromT1 = queues.size(T1) > Math.max(1, p) || queues.size(T2) == 0;
+        int victim = queues.first(fromT1 ? T1 : T2, preferred, PREFERRED_LOOKAHEAD);
+        if (victim == FrameQueues.NONE) {
+            fromT1 = !fromT1;
+            victim = queues.first(fromT1 ? T1 : T2, preferred, PREFERRED_LOOKAHEAD);
+        }
+        if (victim == FrameQueues.NONE) return false;
+
+        remember(fromT1 ? b1 : b2, framePage[victim]);
+        forget(victim);
+        frameId[0] = victim;
+        return true;
+    }
+
+    @Override
+    public synchronized void remove(int frameId) {
+        checkFrame(frameId);
+        forget(frameId);
+    }
+
+    @Override
+    public synchronized int size() {
+        return queues.evictableCount();
+    }
+
+    // ghost lists together never remember more pages than there are frames
+    private void remember(LinkedHashSet<Integer> ghost, int pageId) {
+        if (pageId == -1) return;
+        ghost.add(pageId);
+        while (b1.size() + b2.size() > numFrames) {
+            LinkedHashSet<Integer> trimmed = b1.size() > p ? b1 : b2;
+            if (trimmed.isEmpty()) trimmed = trimmed == b1 ? b2 : b1;
+            Iterator<Integer> oldest = trimmed.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    private void forget(int frameId) {
+        queues.leave(frameId);
+        queues.setEvictable(frameId, false);
+        framePage[frameId] = -1;
+    }
+
+    private void checkFrame(int frameId) {
+        if (frameId < 0 || frameId >= numFrames) {
+            throw new IllegalArgumentException("[ArcReplacer] invalid frame id: " + frameId);
+        }
+    }
+}
@@ -1,22 +1,59 @@
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
-
-import static java.lang.Math.ceil;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class BPlusTree<Key extends Comparable<Key>, RID> {
     private BufferPoolManager bufferPool=null;
-    private int rootPageId;
+    private volatile int rootPageId;
+    private final ReentrantReadWriteLock rootLatch = new ReentrantReadWriteLock(); // guards rootPageId, acts as the root's parent latch
+    private final ThreadLocal<LatchContext> writeContext = new ThreadLocal<>();
+    private final KeyCodec<Key> keyCodec;    // null for the fixed int page layout, else pages are SlottedPage ones
+    private final KeyCodec<RID> valueCodec;
+    private final int pageCapacity;          // usable bytes of a page of the database file
     //private Map<Integer, BPlusTreePage> pageTable;  // <PageId, PageObject> if using integer IDs
 
+    private enum Operation { INSERT, REMOVE }
+
+    // Frames write-latched by one pessimistic insert/remove, released together when the operation ends.
+    // Only the unsafe suffix of the path stays here, safe ancestors are released during the descent.
+    private static class LatchContext {
+        final Deque<Page> writeSet = new ArrayDeque<>();
+        final Set<Integer> dirtyPages = new HashSet<>();
+        final List<Integer> deletedPages = new ArrayList<>();
+        boolean holdsRootLatch = true;
+    }
+
+    // a tree of int keys and rids whose pages hold as many entries as the file's page size allows
+    public BPlusTree(BufferPoolManager bpm) {
+        this(maxSizeFor(bpm.getPageSize(), Integer.BYTES, Integer.BYTES), bpm);
+    }
+
+    // pageMaxSize entries per page, at most what a page of the file holds (see maxSizeFor)
     public BPlusTree(int pageMaxSize, BufferPoolManager bpm) {
+        this(pageMaxSize, bpm, null, null);
+    }
+
+    // A tree of variable-length keys and values stored through the codecs, its pages fill by bytes (see SlottedPage).
+    public BPlusTree(BufferPoolManager bpm, KeyCodec<Key> keyCodec, KeyCodec<RID> valueCodec) {
+        this(SlottedPage.maxSlots(Page.usableSize(bpm.getPageSize())), bpm, keyCodec, valueCodec);
+    }
+
+    private BPlusTree(int pageMaxSize, BufferPoolManager bpm, KeyCodec<Key> keyCodec, KeyCodec<RID> valueCodec) {
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.pageCapacity = Page.usableSize(bpm.getPageSize());
+        if (keyCodec == null && pageMaxSize > maxSizeFor(bpm.getPageSize(), Integer.BYTES, Integer.BYTES)) {
+            throw new IllegalArgumentException("pageMaxSize " + pageMaxSize + " does not fit a page of "
+                    + bpm.getPageSize() + " bytes");
+        }
         try {
             this.bufferPool = bpm;
-            this.rootPageId = allocatePageId();
+            this.rootPageId = allocatePageId(-1);
             System.out.println("The root ID: "+this.rootPageId);
 
             // Deserialize the new page as LeafPage
-            LeafPage<Key, RID> rootLeaf = new LeafPage<>();
+            LeafPage<Key, RID> rootLeaf = newLeafPage();
             rootLeaf.init(pageMaxSize, this.rootPageId);
             rootLeaf.setNextPageId(-1);
             rootLeaf.setSize(0);
@@ -27,51 +64,92 @@ public class BPlusTree<Key extends Comparable<Key>, RID> {
             System.out.println(e);
         }
     }
+    // The entries a fixed-layout page of pageSize bytes holds, for keys and values of the given widths: the smaller
+    // of the leaf's and the internal page's count, as one maxSize serves both (an internal entry is a key and a child id).
+    public static int maxSizeFor(int pageSize, int keyWidth, int valueWidth) {
+        int usable = Page.usableSize(pageSize);
+        int leaf = (usable - LeafPageView.HEADER_SIZE) / (keyWidth + valueWidth);
+        int internal = (usable - InternalPageView.HEADER_SIZE - Integer.BYTES) / (keyWidth + Integer.BYTES);
+        return Math.min(leaf, internal);
+    }
+
     public int getRootPageID(){
             return rootPageId;
     }
     public void setRootPageID(int rootID){
         this.rootPageId=rootID;
     }
-    private int allocatePageId() {
-        Page p = bufferPool.newPage();
+    // nearPageId is the page the new one should sit next to on disk, -1 for none
+    private int allocatePageId(int nearPageId) {
+        Page p = bufferPool.newPage(nearPageId);
         if(p==null)
             return -1;
-        else
-            return p.getPageId();
+        try {
+            bufferPool.UnpinPage(p.getPageId(), true); // dirty so the blank page reaches disk if evicted before writePage
+        }
+        catch (Exception e)
+        {
+            System.out.println(e);
+        }
+        return p.getPageId();
     }
+    // with synchronous commit the insert is durable once it returns true
     public boolean insert(Key key, RID value) {
+        checkEntrySize(key, value);
+        boolean inserted = insertLatched(key, value);
+        if (inserted) bufferPool.commit(); // after every latch is released, so other writers proceed meanwhile
+        return inserted;
+    }
+
+    private byte[] encode(Key key) {
+        return keyCodec == null ? null : keyCodec.encode(key);
+    }
+
+    // a variable-length entry must fit a cell, in the leaf and as a separator, so any page split leaves halves that fit
+    private void checkEntrySize(Key key, RID value) {
+        if (keyCodec == null) return;
+        int keyLength = keyCodec.encode(key).length;
+        int cell = Math.max(SlottedPage.LEAF_CELL_OVERHEAD + keyLength + valueCodec.encode(value).length,
+                SlottedPage.INTERNAL_CELL_OVERHEAD + keyLength);
+        if (cell > SlottedPage.maxCellSize(pageCapacity)) {
+            throw new IllegalArgumentException("entry of " + cell + " bytes is over the limit of " + SlottedPage.maxCellSize(pageCapacity));
+        }
+    }
+
+    private boolean insertLatched(Key key, RID value) {
+        if (keyCodec == null && key instanceof Integer && value instanceof Integer) {
+            int result = insertInPlace((Integer) key, (Integer) value);
+            if (result != -1) return result == 1;
+        }
+        // optimistic attempt failed (leaf would split), retry holding write latches from the root down
+        LatchContext ctx = beginPessimistic();
+        try {
+            return insertPessimistic(key, value);
+        }
+        finally {
+            endPessimistic(ctx);
+        }
+    }
+
+    private boolean insertPessimistic(Key key, RID value) {
         Stack<BPlusTreePage> parentStack = new Stack<>();
-        LeafPage<Key, RID> leaf = findLeafPage(key, parentStack); //get the correct leaf
-        // Duplicate-key check
-        if (leaf.containsKey(key)) {
+        LeafPage<Key, RID> leaf = findLeafPage(key, parentStack, Operation.INSERT); //get the correct leaf
+        // Duplicate-key check, the same search gives the insertion point
+        int slot = leaf.search(key);
+        if (slot >= 0) {
             return false;
         }
 
-        //  normal Case
-        if (leaf.getSize() < leaf.getMaxSize()) {
-            leaf.insertIntoLeaf(key, value);
+        //  normal Case, the page has one spare slot so an overflowing insert is split right after
+        leaf.insertAt(-(slot + 1), key, value);
+        if (!leaf.isOverflowing()) {
             writePage(leaf);
             return true;
         }
 
-        // Leaf is full → split + insert + push key up
+        // Leaf overflowed → split + push key up
         try {
-            int newleafID = allocatePageId();
-            if (newleafID==-1){
-                throw new RuntimeException("Cannot Find free frame, there is no evictable frames");
-            }
-            LeafPage<Key, RID> newLeaf = leaf.splitLeafPage(newleafID);
-
-            if (key.compareTo(newLeaf.keyAt(0)) < 0) {
-                leaf.insertIntoLeaf(key, value);
-            } else {
-                newLeaf.insertIntoLeaf(key, value);
-            }
-
-            // add new separator in the parent //
-            Key promoteKey = newLeaf.keyAt(0);
-            insertIntoParent(leaf, promoteKey, newLeaf, parentStack);
+            LeafPage<Key, RID> newLeaf = splitLeaf(leaf, parentStack);
             writePage(leaf);
             writePage(newLeaf);
             return true;
@@ -83,22 +161,49 @@ public class BPlusTree<Key extends Comparable<Key>, RID> {
         }
     }
 
+    // Splits an overflowing leaf and adds the new one to the parent, the caller writes both leaves
+    private LeafPage<Key, RID> splitLeaf(LeafPage<Key, RID> leaf, Stack<BPlusTreePage> parentStack) throws Exception {
+        int newleafID = allocatePageId(leaf.getPageID()); // next to its left sibling, scans read them in order
+        if (newleafID==-1){
+            throw new RuntimeException("Cannot Find free frame, there is no evictable frames");
+        }
+        LeafPage<Key, RID> newLeaf = leaf.splitLeafPage(newleafID);
+
+        // add new separator in the parent //
+        insertIntoParent(leaf, newLeaf.keyAt(0), newLeaf, parentStack);
+        return newLeaf;
+    }
+
+    private LeafPage<Key, RID> findLeafPage(Key key, Stack<BPlusTreePage> parentStack, Operation op) {
+        return findLeafPage(key, parentStack, op, null);
+    }
 
+    // Pessimistic descent for insert/remove, must run inside beginPessimistic/endPessimistic.
+    // Every frame is write-latched, ancestors are released as soon as a child can absorb the operation.
+    // When upperBound is given it receives the separator right of the path, the first key past the leaf's
+    // range, or null when the leaf is the last one.
     @SuppressWarnings("unchecked")
-    public LeafPage<Key, RID> findLeafPage(Key key, Stack<BPlusTreePage> parentStack) {
+    private LeafPage<Key, RID> findLeafPage(Key key, Stack<BPlusTreePage> parentStack, Operation op, Bound<Key> upperBound) {
         try {
+            LatchContext ctx = writeContext.get();
             BPlusTreePage currentPage = readPage(rootPageId);
-            //System.out.println("[findLeaf] the content of the root leaf is: "+((LeafPage<?, ?>) currentPage).toString());
+            if (isSafe(currentPage, op, true)) {
+                releaseAncestors(ctx);
+            }
             while (!currentPage.isLeafPage()) {
                 InternalPage<Key> internalPage = (InternalPage<Key>) currentPage;
-
-                if (parentStack != null) {
-                    parentStack.push(internalPage);
-                }
+                parentStack.push(internalPage);
 
                 int keyIndex = internalPage.binarySearch(key);
+                if (upperBound != null && keyIndex < internalPage.getSize()) {
+                    upperBound.key = internalPage.keyAt(keyIndex + 1); // tighter than any bound from above
+                }
                 int childPageId = internalPage.valueAt(keyIndex);
-                currentPage = readPage(childPageId);  // Deserialize the next page
+                currentPage = readPage(childPageId);  // write-latches the child
+                if (isSafe(currentPage, op, false)) {
+                    releaseAncestors(ctx);
+                    parentStack.clear();
+                }
             }
 
             return (LeafPage<Key, RID>) currentPage;
@@ -107,6 +212,19 @@ public class BPlusTree<Key extends Comparable<Key>, RID> {
         }
     }
 
+    // A page is safe when the operation cannot split or merge it, so nothing above it changes
+    private boolean isSafe(BPlusTreePage page, Operation op, boolean isRoot) {
+        if (op == Operation.INSERT) {
+            return page.hasRoomForEntry();
+        }
+        // a remove below may also swap one of the page's separators for a longer key (redistribution)
+        if (isRoot) {
+            // only an internal root losing its last key changes rootPageId
+            return page.isLeafPage() || (page.getSize() > 1 && page.canReplaceSeparator());
+        }
+        return page.canLendEntry() && page.canReplaceSeparator();
+    }
+
 
     private void insertIntoParent(BPlusTreePage leftChild, Key midkey, BPlusTreePage rightChild, Stack<BPlusTreePage> parentStack) throws Exception {
         int leftPageId = leftChild.getPageID();
@@ -114,8 +232,8 @@ public class BPlusTree<Key extends Comparable<Key>, RID> {
 
         // Case 1: creates new root
         if (parentStack.isEmpty()) {
-            InternalPage<Key> newRoot = new InternalPage<>();
-            int newRootId = allocatePageId();
+            InternalPage<Key> newRoot = newInternalPage();
+            int newRootId = allocatePageId(-1);
             newRoot.init(leftChild.getMaxSize(), newRootId);
 
             newRoot.setKeyAt(1, midkey); // first key is dummy, real keys start at 1
@@ -138,202 +256,235 @@ public class BPlusTree<Key extends Comparable<Key>, RID> {
             return;
         }
 
-        // Insert entry
-        if (parent.insertEntry(midkey, rightPageId)) {
-            Set<Integer> seen = new HashSet<>();
-            int [] pageIdArray = parent.getPageIDs();
-            for (int i = 0; i <= parent.getSize(); i++) {
-                if (!seen.add(pageIdArray[i])) {
-                    throw new RuntimeException("❌ Duplicate child pointer detected in internal node!");
-                }
+        // Insert entry, the page has one spare slot so an overflowing insert is split right after
+        parent.insertEntry(midkey, rightPageId);
+        Set<Integer> seen = new HashSet<>();
+        int [] pageIdArray = parent.getPageIDs();
+        for (int i = 0; i <= parent.getSize(); i++) {
+            if (!seen.add(pageIdArray[i])) {
+                throw new RuntimeException("❌ Duplicate child pointer detected in internal node!");
             }
+        }
+        if (!parent.isOverflowing()) {
             writePage(parent);
             return; // No overflow, done
         }
+        splitInternal(parent, parentStack);
+    }
 
-        // Overflow: split parent
-        InternalPage<Key> newParent = new InternalPage<>();
-        int newParentId = allocatePageId();
-        newParent.init(parent.getMaxSize(), newParentId);
+    // Splits an overflowing internal page into two and pushes the middle key up, the parents are on the stack
+    private void splitInternal(InternalPage<Key> page, Stack<BPlusTreePage> parentStack) throws Exception {
+        InternalPage<Key> newPage = newInternalPage();
+        int newPageId = allocatePageId(page.getPageID());
+        newPage.init(page.getMaxSize(), newPageId);
 
-        // Split current parent into two internal pages
-        Key newMidKey = parent.splitInternalPage(newParent);
+        // Split current page into two internal pages
+        Key newMidKey = page.splitInternalPage(newPage);
+        writePage(page);
+        writePage(newPage);
 
         // Recurse upward
-        insertIntoParent(parent, newMidKey, newParent, parentStack);
+        insertIntoParent(page, newMidKey, newPage, parentStack);
     }
 
 
+    @SuppressWarnings("unchecked")
     public RID getValue(Key key)
     {
-        LeafPage<Key, RID> leaf = findLeafPage(key, null);  // No need to track parents for search
-       // System.out.println("[getValue]: We Search for "+key+" in PageID: "+leaf.getPageID());
-        int size = leaf.getSize();
-        for (int i = 0; i < size; i++) {
-            if (key.compareTo(leaf.keyAt(i)) == 0) {
-                return leaf.valueAt(i);
+        byte[] encodedKey = encode(key);
+        Page frame = findLeafFrame(key, encodedKey);
+        try {
+            if (keyCodec == null && key instanceof Integer) {
+                LeafPageView leaf = new LeafPageView().wrap(frame);
+                int index = leaf.keyIndex((Integer) key);
+                return index == -1 ? null : (RID) Integer.valueOf(leaf.valueAt(index));
+            }
+            if (keyCodec != null) {
+                // searched on the page bytes, only the value found is decoded
+                SlottedPageView leaf = new SlottedPageView().wrap(frame);
+                int index = leaf.search(encodedKey);
+                if (index < 0) return null;
+                byte[] value = leaf.valueBytes(index);
+                return valueCodec.decode(value, 0, value.length);
             }
+            LeafPage<Key, RID> leaf = (LeafPage<Key, RID>) deserialize(frame);
+            int index = leaf.keyIndex(key);
+            return index == -1 ? null : leaf.valueAt(index);
+        }
+        finally {
+            releaseRead(frame);
         }
-        return null;  // Key not found
     }
 
     public boolean remove(Key key) {
+        boolean removed = removeLatched(key);
+        if (removed) bufferPool.commit();
+        return removed;
+    }
+
+    private boolean removeLatched(Key key) {
+        if (keyCodec == null && key instanceof Integer) {
+            int result = removeInPlace((Integer) key);
+            if (result != -1) return result == 1;
+        }
+        LatchContext ctx = beginPessimistic();
+        try {
+            return removePessimistic(key);
+        }
+        finally {
+            endPessimistic(ctx);
+        }
+    }
+
+    private boolean removePessimistic(Key key) {
         Stack<BPlusTreePage> parentStack = new Stack<>();
-        LeafPage<Key, RID> leaf = findLeafPage(key, parentStack);
+        LeafPage<Key, RID> leaf = findLeafPage(key, parentStack, Operation.REMOVE);
 
         boolean removed = leaf.remove(key);
         if (!removed) return false;
         writePage(leaf);
-        if(leaf.getSize() < ceil(leaf.getMaxSize()/2))
+        if(leaf.isUnderflowing())
             handleUnderflow(leaf, parentStack);
         return true;
     }
 
+    // Restores the minimum fill of an underflowed page by borrowing from a sibling or merging with it.
+    // The stack holds the ancestors still latched by the pessimistic descent, the caller's parent is on top.
+    // Variable-length pages may fit neither, the page then stays underfull until a later insert or remove.
     private void handleUnderflow(BPlusTreePage page, Stack<BPlusTreePage> stack) {
         // Underflow at root is allowed if it still has one child or entry
-        if (stack.isEmpty()) return;
+        if (stack == null || stack.isEmpty()) return;
 
-        BPlusTreePage parentPage = stack.pop();
-        InternalPage<Key> parent = (InternalPage<Key>) parentPage;
+        InternalPage<Key> parent = (InternalPage<Key>) stack.pop();
 
         int indexInParent = parent.valueIndex(page.getPageID());
         if (indexInParent == -1)
             throw new RuntimeException("❌ Page not found in parent during underflow.");
 
         // ---- Try right sibling
+        BPlusTreePage rightSibling = null;
         if (indexInParent + 1 <= parent.getSize()) {
-            int rightSiblingId = parent.valueAt(indexInParent + 1);
-            BPlusTreePage rightSibling = readPage(rightSiblingId);
-
-            if (rightSibling != null && rightSibling.getSize() > (int) Math.ceil(rightSibling.getMaxSize() / 2.0)) {
+            rightSibling = readPage(parent.valueAt(indexInParent + 1));
+            if (rightSibling.canLendEntry() && canBorrow(page, rightSibling, false, parent, indexInParent + 1)) {
                 if (page.isLeafPage())
-                    redistributeLeaf((LeafPage<Key, RID>) page, (LeafPage<Key, RID>) rightSibling, parent, indexInParent);
+                    redistributeLeaf((LeafPage<Key, RID>) page, (LeafPage<Key, RID>) rightSibling, false, parent, indexInParent + 1);
                 else
-                    redistributeInternal((InternalPage<Key>) page, (InternalPage<Key>) rightSibling, parent, indexInParent);
+                    redistributeInternal((InternalPage<Key>) page, (InternalPage<Key>) rightSibling, false, parent, indexInParent + 1);
+                splitIfOverflowing(parent, stack);
                 return;
             }
         }
 
         // ---- Try left sibling
+        BPlusTreePage leftSibling = null;
         if (indexInParent - 1 >= 0) {
-            int leftSiblingId = parent.valueAt(indexInParent - 1);
-            BPlusTreePage leftSibling = readPage(leftSiblingId);
-
-            if (leftSibling != null && leftSibling.getSize() > (int) Math.ceil(leftSibling.getMaxSize() / 2.0)) {
+            leftSibling = readPage(parent.valueAt(indexInParent - 1));
+            if (leftSibling.canLendEntry() && canBorrow(page, leftSibling, true, parent, indexInParent)) {
                 if (page.isLeafPage())
-                    redistributeLeaf((LeafPage<Key, RID>) leftSibling, (LeafPage<Key, RID>) page, parent, indexInParent - 1);
+                    redistributeLeaf((LeafPage<Key, RID>) leftSibling, (LeafPage<Key, RID>) page, true, parent, indexInParent);
                 else
-                    redistributeInternal((InternalPage<Key>) leftSibling, (InternalPage<Key>) page, parent, indexInParent - 1);
+                    redistributeInternal((InternalPage<Key>) leftSibling, (InternalPage<Key>) page, true, parent, indexInParent);
+                splitIfOverflowing(parent, stack);
                 return;
             }
         }
 
-        // ---- If redistribution failed → merge
-        if (indexInParent + 1 <= parent.getSize()) {
-            // merge with right sibling
-            int rightSiblingId = parent.valueAt(indexInParent + 1);
-            BPlusTreePage rightSibling = readPage(rightSiblingId);
-
+        // ---- If redistribution failed → merge, always into the left page of the pair
+        if (rightSibling != null && canMerge(page, rightSibling, parent, indexInParent + 1)) {
             if (page.isLeafPage())
-                mergeLeafPages((LeafPage<Key, RID>) page, (LeafPage<Key, RID>) rightSibling, parent, stack);
+                mergeLeafPages((LeafPage<Key, RID>) page, (LeafPage<Key, RID>) rightSibling, parent, indexInParent + 1);
             else
-                mergeInternalPages((InternalPage<Key>) page, (InternalPage<Key>) rightSibling, parent, indexInParent);
-        } else if (indexInParent - 1 >= 0) {
-            // merge with left sibling
-            int leftSiblingId = parent.valueAt(indexInParent - 1);
-            BPlusTreePage leftSibling = readPage(leftSiblingId);
-
+                mergeInternalPages((InternalPage<Key>) page, (InternalPage<Key>) rightSibling, parent, indexInParent + 1);
+        } else if (leftSibling != null && canMerge(leftSibling, page, parent, indexInParent)) {
             if (page.isLeafPage())
-                mergeLeafPages((LeafPage<Key, RID>) leftSibling, (LeafPage<Key, RID>) page, parent, stack);
+                mergeLeafPages((LeafPage<Key, RID>) leftSibling, (LeafPage<Key, RID>) page, parent, indexInParent);
             else
-                mergeInternalPages((InternalPage<Key>) leftSibling, (InternalPage<Key>) page, parent, indexInParent - 1);
+                mergeInternalPages((InternalPage<Key>) leftSibling, (InternalPage<Key>) page, parent, indexInParent);
+        } else {
+            return; // neither fits, the page stays underfull
         }
 
+        if (parent.getPageID() == rootPageId) {
+            // Special case: if parent becomes empty and is root, the tree shrinks by one level
+            if (parent.getSize() == 0) {
+                rootPageId = parent.valueAt(0);
+                deletePage(parent.getPageID());
+            }
+            return;
+        }
         // Recursive upward if parent now underflows
-        if (parent.getSize() < Math.ceil(parent.getMaxSize() / 2.0)) {
+        if (parent.isUnderflowing()) {
             handleUnderflow(parent, stack);
         }
     }
 
+    // page can take the entry its sibling would lend it, through the parent's separator for internal pages
+    @SuppressWarnings("unchecked")
+    private boolean canBorrow(BPlusTreePage page, BPlusTreePage sibling, boolean fromLeft,
+                              InternalPage<Key> parent, int separatorIndex) {
+        if (!page.isLeafPage()) {
+            return ((InternalPage<Key>) page).fitsWith(parent.keyAt(separatorIndex));
+        }
+        LeafPage<Key, RID> lender = (LeafPage<Key, RID>) sibling;
+        int index = fromLeft ? lender.getSize() - 1 : 0;
+        return ((LeafPage<Key, RID>) page).fitsWith(lender.keyAt(index), lender.valueAt(index));
+    }
 
-    private void redistributeLeaf(LeafPage<Key, RID> underflowedLeaf,
-                     LeafPage<Key, RID> siblingLeaf,
-                     InternalPage<Key> parent,
-                     int leafIndexInParent)
-    {
-        boolean isLeftSibling;
-        if(siblingLeaf.keyAt(0).compareTo(underflowedLeaf.keyAt(0)) > 0) // Reliable check
-            isLeftSibling = false ;
-        else
-            isLeftSibling = true ;
-
-        if (isLeftSibling) {
-            // Borrow from left sibling: move last key of sibling to front of leaf
-            int sibLast = siblingLeaf.getSize() - 1;
-            Key borrowedKey = siblingLeaf.keyAt(sibLast);
-            RID borrowedVal = siblingLeaf.valueAt(sibLast);
-            underflowedLeaf.insertIntoLeaf(borrowedKey, borrowedVal);
+    @SuppressWarnings("unchecked")
+    private boolean canMerge(BPlusTreePage left, BPlusTreePage right, InternalPage<Key> parent, int separatorIndex) {
+        if (left.isLeafPage()) {
+            return ((LeafPage<Key, RID>) left).canMerge((LeafPage<Key, RID>) right);
+        }
+        return ((InternalPage<Key>) left).canMerge((InternalPage<Key>) right, parent.keyAt(separatorIndex));
+    }
 
-            // Shrink sibling
-            siblingLeaf.setSize(siblingLeaf.getSize() - 1);
+    // a redistribution puts a new separator in the parent, a longer variable-length key can overflow it
+    private void splitIfOverflowing(InternalPage<Key> parent, Stack<BPlusTreePage> stack) {
+        if (!parent.isOverflowing()) return;
+        try {
+            splitInternal(parent, stack);
+        }
+        catch (Exception e) {
+            throw new RuntimeException("[Underflow]  Error splitting parent " + parent.getPageID() + ": " + e.getMessage(), e);
+        }
+    }
 
-            // Update separator key in parent
-            parent.setKeyAt(leafIndexInParent, borrowedKey);
 
+    // Moves one entry between adjacent leaves, separatorIndex is the parent key between left and right
+    private void redistributeLeaf(LeafPage<Key, RID> leftLeaf,
+                     LeafPage<Key, RID> rightLeaf,
+                     boolean fromLeft,
+                     InternalPage<Key> parent,
+                     int separatorIndex)
+    {
+        if (fromLeft) {
+            // Borrow from left sibling: move last key of left to front of right
+            int last = leftLeaf.getSize() - 1;
+            rightLeaf.insertAt(0, leftLeaf.keyAt(last), leftLeaf.valueAt(last));
+            leftLeaf.setKeyAt(last, null);
+            leftLeaf.setValueAt(last, null);
+            leftLeaf.setSize(last);
         } else {
-            // Borrow from right sibling: move first key of sibling to end of leaf
-            Key borrowedKey = siblingLeaf.keyAt(0);
-            RID borrowedVal = siblingLeaf.valueAt(0);
-
-            // Append to leaf
-            int leafSize = underflowedLeaf.getSize();
-            underflowedLeaf.insertIntoLeaf(borrowedKey, borrowedVal);
-
-            // Shift sibling contents left
-            for (int i = 0; i < siblingLeaf.getSize()-1; i++) {
-                siblingLeaf.setKeyAt(i, siblingLeaf.keyAt(i + 1));
-                siblingLeaf.setValueAt(i, siblingLeaf.valueAt(i + 1));
-            }
-            siblingLeaf.setSize(siblingLeaf.getSize() - 1);
-
-            // Update separator key in parent
-            parent.setKeyAt(leafIndexInParent + 1, siblingLeaf.keyAt(0));
+            // Borrow from right sibling: move first key of right to end of left
+            leftLeaf.insertAt(leftLeaf.getSize(), rightLeaf.keyAt(0), rightLeaf.valueAt(0));
+            rightLeaf.removeAt(0);
         }
 
+        // Update separator key in parent
+        parent.setKeyAt(separatorIndex, rightLeaf.keyAt(0));
+
         //      write   //
-        writePage(underflowedLeaf);
-        writePage(siblingLeaf);
+        writePage(leftLeaf);
+        writePage(rightLeaf);
         writePage(parent);
     }
 
-    private void mergeLeafPages (LeafPage<Key, RID> underflowedLeaf,
-                                 LeafPage<Key, RID> siblingLeaf,
+    private void mergeLeafPages (LeafPage<Key, RID> leftLeaf,
+                                 LeafPage<Key, RID> rightLeaf,
                                  InternalPage<Key> parent,
-                                 Stack<BPlusTreePage> stack) {
-
-        boolean isLeftSibling;
-        if(siblingLeaf.keyAt(0).compareTo(underflowedLeaf.keyAt(0)) < 0) // Reliable check
-            isLeftSibling = true ;
-        else
-            isLeftSibling = false ;
-
-        LeafPage<Key, RID> leftLeaf;
-        LeafPage<Key, RID> rightLeaf;
-
-        if (isLeftSibling)
-        {
-            leftLeaf = siblingLeaf;
-            rightLeaf = underflowedLeaf;
-        }
-        else
-        {
-            leftLeaf = underflowedLeaf;
-            rightLeaf = siblingLeaf;
-        }
-
+                                 int separatorIndex) {
         int offset = leftLeaf.getSize();
         // 1. Copying
-        //System.out.println("[inside Merge Leaf]: the size of the left: "+offset+" the size of the right: "+rightLeaf.getSize());
         for (int i = 0; i < rightLeaf.getSize(); i++) {
             leftLeaf.setKeyAt(offset + i, rightLeaf.keyAt(i));
             leftLeaf.setValueAt(offset + i, rightLeaf.valueAt(i));
@@ -343,200 +494,943 @@ public class BPlusTree<Key extends Comparable<Key>, RID> {
         leftLeaf.setNextPageId(rightLeaf.getNextPageId());
 
         // delete the right leaf
-        try {
-            bufferPool.DeletePage(rightLeaf.getPageID());
-        }
-        catch (Exception e)
-        {
-            System.out.println(e);
-        }
+        deletePage(rightLeaf.getPageID());
 
-        int leftPageID = leftLeaf.getPageID();
-        int leftIndexInParent = parent.valueIndex(leftPageID);
-        System.out.println("[Merge Leaf]: the leftIndexInParent: "+leftIndexInParent+ " and size: "+parent.getSize());
-        if(!parent.removeEntry(leftIndexInParent + 1)) // Key and right pageID
+        if(!parent.removeEntry(separatorIndex)) // Key and right pageID
         {
             throw new RuntimeException("❌ Failed while removing the Key from the parent");
         }
 
-        //    ===========================   recursive part  ======================
-        if (parent.getSize() < Math.ceil(parent.getMaxSize() / 2.0)) {
-            handleUnderflow(parent, stack);
-        }
-
-        // Special case: if parent becomes empty and is root
-        if (parent.getPageID() == rootPageId && parent.getSize() == 0) {
-            rootPageId = leftLeaf.getPageID(); // Tree shrinks to only one node
-        }
-
         //   write   //
         writePage(leftLeaf);
         writePage(parent);
     }
 
-    private void redistributeInternal(InternalPage<Key> underflowedPage,
-                                      InternalPage<Key> siblingPage,
+    // Rotates one child through the parent: the separator moves down and the sibling's edge key moves up
+    private void redistributeInternal(InternalPage<Key> left,
+                                      InternalPage<Key> right,
+                                      boolean fromLeft,
                                       InternalPage<Key> parent,
-                                      int underflowIndex) {
-        boolean isLeftSibling = siblingPage.keyAt(0).compareTo(underflowedPage.keyAt(0)) < 0;
-
-        if (isLeftSibling) {
-            // Borrow the last key and child from the left sibling
-            int sibSize = siblingPage.getSize();
+                                      int separatorIndex) {
+        int leftSize = left.getSize();
+        int rightSize = right.getSize();
 
-            // Shift underflowedPage to make space at front
-            for (int i = underflowedPage.getSize(); i > 0; i--) {
-                underflowedPage.setKeyAt(i, underflowedPage.keyAt(i - 1));
-                underflowedPage.setValueAt(i + 1, underflowedPage.valueAt(i));
+        if (fromLeft) {
+            // Borrow the last key and child from the left sibling, shift right to make space at front
+            for (int i = rightSize; i >= 1; i--) {
+                right.setKeyAt(i + 1, right.keyAt(i));
             }
-            underflowedPage.setValueAt(1, underflowedPage.valueAt(0));
-
-            // Move separator key from parent into underflowed page
-            Key parentSeparator = parent.keyAt(underflowIndex);
-            underflowedPage.setKeyAt(0, parentSeparator);
-            underflowedPage.setValueAt(0, siblingPage.valueAt(sibSize)); // rightmost child of sibling
-
-            // Replace parent key with sibling's last key
-            Key borrowedKey = siblingPage.keyAt(sibSize - 1);
-            parent.setKeyAt(underflowIndex, borrowedKey);
+            for (int i = rightSize; i >= 0; i--) {
+                right.setValueAt(i + 1, right.valueAt(i));
+            }
+            right.setKeyAt(1, parent.keyAt(separatorIndex));
+            right.setValueAt(0, left.valueAt(leftSize));
+            parent.setKeyAt(separatorIndex, left.keyAt(leftSize));
 
-            siblingPage.setSize(sibSize - 1);
-            underflowedPage.setSize(underflowedPage.getSize() + 1);
+            left.setKeyAt(leftSize, null);
+            left.setSize(leftSize - 1);
+            right.setSize(rightSize + 1);
 
         } else {
             // Borrow first key and child from right sibling
-            int sibSize = siblingPage.getSize();
+            left.setKeyAt(leftSize + 1, parent.keyAt(separatorIndex));
+            left.setValueAt(leftSize + 1, right.valueAt(0));
+            parent.setKeyAt(separatorIndex, right.keyAt(1));
 
-            // Move parent's separator key down into underflowed page
-            Key parentSeparator = parent.keyAt(underflowIndex + 1);
-            underflowedPage.setKeyAt(underflowedPage.getSize(), parentSeparator);
-            underflowedPage.setValueAt(underflowedPage.getSize() + 1, siblingPage.valueAt(0));
-
-            // Replace parent's separator key with sibling's first key
-            Key newSeparator = siblingPage.keyAt(0);
-            parent.setKeyAt(underflowIndex + 1, newSeparator);
-
-            // Shift sibling left
-            for (int i = 0; i < sibSize - 1; i++) {
-                siblingPage.setKeyAt(i, siblingPage.keyAt(i + 1));
-                siblingPage.setValueAt(i, siblingPage.valueAt(i + 1));
+            // Shift right sibling left
+            for (int i = 1; i < rightSize; i++) {
+                right.setKeyAt(i, right.keyAt(i + 1));
+            }
+            for (int i = 0; i < rightSize; i++) {
+                right.setValueAt(i, right.valueAt(i + 1));
             }
-            siblingPage.setValueAt(sibSize - 1, siblingPage.valueAt(sibSize));
+            right.setKeyAt(rightSize, null);
 
-            siblingPage.setSize(sibSize - 1);
-            underflowedPage.setSize(underflowedPage.getSize() + 1);
+            right.setSize(rightSize - 1);
+            left.setSize(leftSize + 1);
         }
 
         //   write   //
-        writePage(underflowedPage);
-        writePage(siblingPage);
+        writePage(left);
+        writePage(right);
         writePage(parent);
     }
     private void mergeInternalPages(InternalPage<Key> left,
                                     InternalPage<Key> right,
                                     InternalPage<Key> parent,
-                                    int separatorIndexInParent) {
-        Key separatorKey = parent.keyAt(separatorIndexInParent);
-
+                                    int separatorIndex) {
         int leftSize = left.getSize();
+        int rightSize = right.getSize();
+
+        // Pull the separator key down, then append the right page's keys and children
+        left.setKeyAt(leftSize + 1, parent.keyAt(separatorIndex));
+        for (int i = 1; i <= rightSize; i++) {
+            left.setKeyAt(leftSize + 1 + i, right.keyAt(i));
+        }
+        for (int i = 0; i <= rightSize; i++) {
+            left.setValueAt(leftSize + 1 + i, right.valueAt(i));
+        }
+        left.setSize(leftSize + 1 + rightSize);
+
+        deletePage(right.getPageID()); // Remove the right page from the page table
+
+        // Remove the separator key and right child from parent
+        if(!parent.removeEntry(separatorIndex))
+        {
+            throw new RuntimeException("❌ Failed while removing the Key from the parent");
+        }
+
+        //  Write  //
+        writePage(left);
+        writePage(parent);
+    }
+
+
+    public List<Key> getAllKeysInOrder() {
+        List<Key> result = new ArrayList<>();
 
-        // Append the separator key to the left node
-        left.setKeyAt(leftSize, separatorKey);
-        left.setValueAt(leftSize + 1, right.valueAt(0));
-        left.setSize(leftSize + 1 + right.getSize());
+        // the leaf ids in key order, so the buffer pool can read ahead of the walk along nextPageId
+        bufferPool.hintReadAhead(collectLeafPageIds());
+        try {
+            // Go to the leftmost leaf
+            Page frame = findLeftmostLeafFrame();
+            System.out.println("The left Most ID is: "+frame.getPageId());
+
+            // Iterate through linked list of leaf pages, a leaf is released before the next one is latched
+            // so a scan never waits while holding a latch (writers latch siblings right-to-left during merges)
+            Set<Integer> visitedPages = new HashSet<>();  // Prevent infinite loops
+            while (frame != null) {
+                int pageId = frame.getPageId();
+                if (!visitedPages.add(pageId)) {
+                    releaseRead(frame);
+                    throw new RuntimeException("Cycle detected in leaf page links!");
+                }
 
-        // Copy keys and values from right into left
-        for (int i = 1; i <= right.getSize(); i++) {
-            left.setKeyAt(leftSize + i, right.keyAt(i));
+                LeafPage<Key, RID> leaf = decodeLeaf(frame);
+                releaseRead(frame);
+                for (int i = 0; i < leaf.getSize(); i++) {
+                    result.add(leaf.keyAt(i));
+                }
+                frame = leaf.getNextPageId() == -1 ? null : fetchRead(leaf.getNextPageId());
+            }
         }
-        for (int i = 0; i <= right.getSize(); i++) {
-            left.setValueAt(leftSize+i+1, right.valueAt(i));
+        finally {
+            bufferPool.clearReadAheadHint();
         }
+        return result;
+    }
 
+    // Leaf page ids from left to right, read from the internal levels only (one page in fanout of the tree).
+    // Each internal page is latched on its own, so the list is a snapshot that concurrent splits and merges
+    // may outdate, which is fine for a read-ahead hint.
+    private int[] collectLeafPageIds() {
+        List<Integer> level = new ArrayList<>();
+        rootLatch.readLock().lock();
         try {
-            bufferPool.DeletePage(right.getPageID()); // Remove the right page from the page table
+            level.add(rootPageId);
         }
-        catch(Exception e)
-        {
-            System.out.println(e);
+        finally {
+            rootLatch.readLock().unlock();
+        }
+        InternalPageView internal = new InternalPageView();
+        while (true) {
+            List<Integer> children = new ArrayList<>();
+            for (int pageId : level) {
+                Page frame = fetchRead(pageId);
+                if (!isInternalFrame(frame)) {
+                    releaseRead(frame);
+                    if (children.isEmpty()) return toIntArray(level); // reached the leaf level
+                    continue; // the level changed under us, keep what was collected
+                }
+                if (InternalPageView.isInternalPage(frame)) {
+                    internal.wrap(frame);
+                    for (int i = 0; i <= internal.getSize(); i++) {
+                        children.add(internal.valueAt(i));
+                    }
+                }
+                else {
+                    BPlusTreePage page = deserialize(frame);
+                    for (int i = 0; i <= page.getSize(); i++) {
+                        children.add(((InternalPage<?>) page).valueAt(i));
+                    }
+                }
+                releaseRead(frame);
+            }
+            level = children;
         }
+    }
 
-        // Remove the separator key and right child from parent
-        int parentSize = parent.getSize();
-        for (int i = separatorIndexInParent; i < parentSize - 1; i++) {
-            parent.setKeyAt(i, parent.keyAt(i + 1));
-            parent.setValueAt(i + 1, parent.valueAt(i + 2));
+    private static int[] toIntArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) array[i] = values.get(i);
+        return array;
+    }
+
+//   =========================================    batch lookup    ========================
+    // The values of keys, in the same order (null where a key is absent). The probes are sorted and the tree walked
+    // once: each node is latched once for all the probes below it and each leaf searched for all of its probes,
+    // the leaves under one parent are prefetched together so their reads overlap.
+    // A node stays read-latched until its probes are done, so no split or merge moves a key the walk has routed.
+    public List<RID> getAll(List<Key> keys) {
+        List<RID> result = new ArrayList<>(Collections.nCopies(keys.size(), null));
+        if (keys.isEmpty()) return result;
+        Integer[] order = new Integer[keys.size()]; // probe positions in key order
+        byte[][] encoded = new byte[keys.size()][];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            encoded[i] = encode(keys.get(i));
         }
-        parent.setKeyAt(parentSize - 1, null);
-        parent.setValueAt(parentSize, 0);
-        parent.setSize(parentSize - 1);
+        Arrays.sort(order, Comparator.comparing(keys::get));
 
-        // Check if parent now underflows
-        if (parent.getSize() < Math.ceil(parent.getMaxSize() / 2.0) && parent.getPageID() != rootPageId) {
-            handleUnderflow(parent, null);  // Or pass stack if you need recursion
+        rootLatch.readLock().lock();
+        Page root;
+        try {
+            root = fetchRead(rootPageId);
         }
+        finally {
+            rootLatch.readLock().unlock();
+        }
+        lookupAll(root, keys, encoded, order, 0, order.length, result);
+        return result;
+    }
 
-        // If parent becomes empty and is root, update root
-        if (parent.getPageID() == rootPageId && parent.getSize() == 0) {
-            rootPageId = left.getPageID();  // left becomes new root
+    // Looks up the probes order[from..to), all routed to frame, and releases the frame
+    private void lookupAll(Page frame, List<Key> keys, byte[][] encoded, Integer[] order, int from, int to, List<RID> result) {
+        try {
+            if (!isInternalFrame(frame)) {
+                searchLeaf(frame, keys, encoded, order, from, to, result);
+                return;
+            }
+            // the children with probes below them, sorted probes give each one a contiguous run ending at ends[g]
+            List<Integer> children = new ArrayList<>();
+            List<Integer> ends = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                int child = childFor(frame, keys.get(order[i]), encoded[order[i]]);
+                if (children.isEmpty() || children.get(children.size() - 1) != child) {
+                    if (!children.isEmpty()) ends.add(i);
+                    children.add(child);
+                }
+            }
+            ends.add(to);
+
+            int start = from;
+            for (int g = 0; g < children.size(); g++) {
+                Page child = fetchRead(children.get(g));
+                if (g == 0 && isLeafFrame(child)) {
+                    // the other leaves are read while this one is searched
+                    for (int next = 1; next < children.size(); next++) bufferPool.prefetchPage(children.get(next));
+                }
+                lookupAll(child, keys, encoded, order, start, ends.get(g), result);
+                start = ends.get(g);
+            }
+        }
+        finally {
+            releaseRead(frame);
         }
+    }
 
-        //  Write  //
-        writePage(left);
-        writePage(parent);
+    // searches one read-latched leaf for the probes order[from..to), as getValue does for a single key
+    @SuppressWarnings("unchecked")
+    private void searchLeaf(Page frame, List<Key> keys, byte[][] encoded, Integer[] order, int from, int to, List<RID> result) {
+        if (keyCodec != null) {
+            SlottedPageView leaf = new SlottedPageView().wrap(frame);
+            for (int i = from; i < to; i++) {
+                int index = leaf.search(encoded[order[i]]);
+                if (index < 0) continue;
+                byte[] value = leaf.valueBytes(index);
+                result.set(order[i], valueCodec.decode(value, 0, value.length));
+            }
+            return;
+        }
+        if (keys.get(order[from]) instanceof Integer) {
+            LeafPageView leaf = new LeafPageView().wrap(frame);
+            for (int i = from; i < to; i++) {
+                int index = leaf.keyIndex((Integer) keys.get(order[i]));
+                if (index != -1) result.set(order[i], (RID) Integer.valueOf(leaf.valueAt(index)));
+            }
+            return;
+        }
+        LeafPage<Key, RID> leaf = (LeafPage<Key, RID>) deserialize(frame);
+        for (int i = from; i < to; i++) {
+            int index = leaf.keyIndex(keys.get(order[i]));
+            if (index != -1) result.set(order[i], leaf.valueAt(index));
+        }
     }
 
+//   =========================================    batch insert    ========================
+    // Inserts the entries in key order, one descent per leaf they land in: the leaf takes every entry of its range
+    // that fits and is written once, a full leaf is split and both halves filled before they are written.
+    // Keys already in the tree (or earlier in the batch) are skipped as by insert, returns the number inserted.
+    public int insertAll(Collection<? extends Map.Entry<Key, RID>> entries) {
+        List<Map.Entry<Key, RID>> sorted = new ArrayList<>(entries);
+        sorted.sort(Map.Entry.comparingByKey()); // stable, the first of equal keys wins
+        for (Map.Entry<Key, RID> entry : sorted) {
+            checkEntrySize(entry.getKey(), entry.getValue());
+        }
+        int[] inserted = new int[1];
+        int next = 0;
+        while (next < sorted.size()) {
+            LatchContext ctx = beginPessimistic();
+            try {
+                next = insertGroup(sorted, next, inserted);
+            }
+            finally {
+                endPessimistic(ctx);
+            }
+        }
+        if (inserted[0] > 0) bufferPool.commit(); // one commit for the batch
+        return inserted[0];
+    }
 
-    public List<Key> getAllKeysInOrder() {
-        List<Key> result = new ArrayList<>();
-        int pageId = rootPageId;
+    // the separator right of a descent's path, see findLeafPage
+    private static class Bound<K> {
+        K key;
+    }
+
+    // One descent of insertAll, returns the index of the first entry left for the next one
+    private int insertGroup(List<Map.Entry<Key, RID>> sorted, int from, int[] inserted) {
+        Stack<BPlusTreePage> parentStack = new Stack<>();
+        Bound<Key> upperBound = new Bound<>();
+        LeafPage<Key, RID> leaf = findLeafPage(sorted.get(from).getKey(), parentStack, Operation.INSERT, upperBound);
+        // a leaf with no room was not safe, so the descent kept the latches a split needs (see isSafe)
+        boolean canSplit = !leaf.hasRoomForEntry();
+        int before = inserted[0];
+        int next = fill(leaf, sorted, from, upperBound.key, inserted);
+        if (!canSplit || !belongsBelow(sorted, next, upperBound.key)) {
+            if (inserted[0] > before) writePage(leaf);
+            return next;
+        }
 
-        // Go to the leftmost leaf
-        BPlusTreePage page = readPage(pageId);
-        System.out.println("[getAllKeysInOrder] the rootPage ID IS: "+pageId);
-        if(page==null)
+        // the entry at next overflows the leaf, take it with a split, then fill each half up to its bound
+        Map.Entry<Key, RID> entry = sorted.get(next);
+        leaf.insertAt(-(leaf.search(entry.getKey()) + 1), entry.getKey(), entry.getValue());
+        try {
+            LeafPage<Key, RID> newLeaf = splitLeaf(leaf, parentStack);
+            inserted[0]++;
+            next++;
+            Key promoteKey = newLeaf.keyAt(0);
+            next = fill(leaf, sorted, next, promoteKey, inserted);
+            if (!belongsBelow(sorted, next, promoteKey)) {
+                next = fill(newLeaf, sorted, next, upperBound.key, inserted);
+            }
+            writePage(leaf);
+            writePage(newLeaf);
+        }
+        catch (Exception e)
         {
-            System.out.println("Cannot Fetch the root Page to start traversal");
-            return result;
+            throw new RuntimeException("[InsertAll] Error splitting leaf " + leaf.getPageID() + ": " + e.getMessage(), e);
+        }
+        return next;
+    }
+
+    // Inserts the entries from next on that sort below bound while the leaf takes them without a split,
+    // returns the index of the first entry not handled (bound null is open)
+    private int fill(LeafPage<Key, RID> leaf, List<Map.Entry<Key, RID>> sorted, int next, Key bound, int[] inserted) {
+        while (belongsBelow(sorted, next, bound)) {
+            Map.Entry<Key, RID> entry = sorted.get(next);
+            int slot = leaf.search(entry.getKey());
+            if (slot < 0) {
+                int index = -(slot + 1);
+                leaf.insertAt(index, entry.getKey(), entry.getValue());
+                if (leaf.isOverflowing()) {
+                    leaf.removeAt(index);
+                    return next;
+                }
+                inserted[0]++;
+            }
+            next++;
+        }
+        return next;
+    }
+
+    private boolean belongsBelow(List<Map.Entry<Key, RID>> sorted, int index, Key bound) {
+        return index < sorted.size() && (bound == null || sorted.get(index).getKey().compareTo(bound) < 0);
+    }
+
+//   =========================================    range scan    ========================
+    // The entries with keys between lo and hi in key order, read lazily. A null bound is open, the flags say whether
+    // each bound itself is included. Close the cursor when done with it, it keeps a pin on its current leaf.
+    public Cursor scan(Key lo, boolean loInclusive, Key hi, boolean hiInclusive) {
+        return new Cursor(lo, loInclusive, hi, hiInclusive);
+    }
+
+    // Seeks with one descent, then walks nextPageId. The current leaf stays pinned but not latched between calls:
+    // its entries in range are copied out under a short read latch, so the caller may change the tree while scanning.
+    // When the cursor moves on and finds its leaf changed since the copy (its LSN moved on), it descends again to the
+    // last key it returned. Keys present for the whole scan are returned once, in order; keys inserted or removed
+    // meanwhile may or may not be seen. Memory stays at one leaf's worth of entries.
+    public class Cursor implements Iterator<Map.Entry<Key, RID>>, AutoCloseable {
+        private final Key lo;
+        private final Key hi;
+        private final boolean loInclusive;
+        private final boolean hiInclusive;
+        private Page leaf;           // pinned, null once the cursor is closed
+        private long leafLsn;        // the leaf's LSN when its entries were copied
+        private int nextLeafId;
+        private final List<Key> keys = new ArrayList<>();   // the copied entries not returned yet start at position
+        private final List<RID> values = new ArrayList<>();
+        private int position = 0;
+        private Key lastKey = null;  // the last key returned
+        private boolean reachedHi = false;
+
+        private Cursor(Key lo, boolean loInclusive, Key hi, boolean hiInclusive) {
+            this.lo = lo;
+            this.loInclusive = loInclusive;
+            this.hi = hi;
+            this.hiInclusive = hiInclusive;
+            seek();
+        }
+
+        public boolean hasNext() {
+            while (position == keys.size()) {
+                if (leaf == null || reachedHi) {
+                    close(); // an exhausted cursor lets go of its leaf even if the caller never closes it
+                    return false;
+                }
+                advance();
+            }
+            return true;
+        }
+
+        public Map.Entry<Key, RID> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            lastKey = keys.get(position);
+            return new AbstractMap.SimpleImmutableEntry<>(lastKey, values.get(position++));
         }
-        while (!page.isLeafPage()) {
-            InternalPage<Key> internal = (InternalPage<Key>) readPage(pageId);
-            pageId = internal.valueAt(0);
-            page = readPage(pageId);
+
+        public void close() {
+            if (leaf != null) {
+                unpin(leaf, false);
+                leaf = null;
+            }
+            keys.clear();
+            values.clear();
+            position = 0;
+        }
+
+        // descends to the leaf holding the first key still to return
+        private void seek() {
+            Key from = lastKey != null ? lastKey : lo;
+            Page frame = from == null ? findLeftmostLeafFrame() : findLeafFrame(from);
+            copyEntries(frame);
+            frame.rUnlatch(); // keeps the pin
+            leaf = frame;
         }
-        System.out.println("The left Most ID is: "+pageId);
 
-        // Iterate through linked list of leaf pages
-        Set<Integer> visitedPages = new HashSet<>();  // Prevent infinite loops
-        while (pageId != -1) {
-            if (visitedPages.contains(pageId)) {
-                throw new RuntimeException("Cycle detected in leaf page links!");
+        // every copied entry was returned, moves to the next leaf
+        private void advance() {
+            Page previous = leaf;
+            previous.rLatch();
+            boolean changed = previous.getLSN() != leafLsn;
+            previous.rUnlatch();
+            if (changed) {
+                unpin(previous, false);
+                seek();
+                return;
+            }
+            if (nextLeafId == -1) {
+                close();
+                return;
+            }
+            // the previous leaf is only pinned, so this cannot deadlock with writers latching siblings right-to-left
+            Page frame = fetchRead(nextLeafId);
+            unpin(previous, false);
+            if (!isLeafFrame(frame) || frame.getBuffer().getInt(SlottedPage.PAGE_ID_OFFSET) != nextLeafId) {
+                releaseRead(frame); // the link went stale, the page was merged away and reused
+                seek();
+                return;
             }
-            visitedPages.add(pageId);
+            copyEntries(frame);
+            frame.rUnlatch();
+            leaf = frame;
+        }
 
-            LeafPage<Key, RID> leaf = (LeafPage<Key, RID>) readPage(pageId);
-            for (int i = 0; i < leaf.getSize(); i++) {
-                result.add(leaf.keyAt(i));
+        // must hold the read latch of frame
+        private void copyEntries(Page frame) {
+            LeafPage<Key, RID> page = decodeLeaf(frame);
+            keys.clear();
+            values.clear();
+            position = 0;
+            for (int i = 0; i < page.getSize(); i++) {
+                Key key = page.keyAt(i);
+                if (!afterStart(key)) continue;
+                if (!beforeEnd(key)) {
+                    reachedHi = true;
+                    break;
+                }
+                keys.add(key);
+                values.add(page.valueAt(i));
             }
-            pageId = leaf.getNextPageId();
+            leafLsn = frame.getLSN();
+            nextLeafId = page.getNextPageId();
+        }
+
+        private boolean afterStart(Key key) {
+            if (lastKey != null) return key.compareTo(lastKey) > 0;
+            if (lo == null) return true;
+            int cmp = key.compareTo(lo);
+            return cmp > 0 || (cmp == 0 && loInclusive);
+        }
+
+        private boolean beforeEnd(Key key) {
+            if (hi == null) return true;
+            int cmp = key.compareTo(hi);
+            return cmp < 0 || (cmp == 0 && hiInclusive);
+        }
+    }
+
+//   =========================================    bulk load    ========================
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+    public void bulkLoad(Iterator<Map.Entry<Key, RID>> sortedEntries) {
+        bulkLoad(sortedEntries, DEFAULT_FILL_FACTOR);
+    }
+
+    // Builds the tree from entries in strictly increasing key order, the tree must be empty. Leaves are packed left
+    // to right to fillFactor of their capacity and linked, then each internal level is built from the one below,
+    // so every page is written once, in key order, next to its left neighbour on disk. A fillFactor of at least
+    // one half keeps every page at or above its minimum size. Other operations wait until the load is done.
+    public void bulkLoad(Iterator<Map.Entry<Key, RID>> sortedEntries, double fillFactor) {
+        if (fillFactor < 0.5 || fillFactor > 1) {
+            throw new IllegalArgumentException("fillFactor must be between 0.5 and 1: " + fillFactor);
+        }
+        rootLatch.writeLock().lock();
+        try {
+            BPlusTreePage root = readPage(rootPageId);
+            if (!root.isLeafPage() || root.getSize() != 0) {
+                throw new IllegalStateException("bulkLoad needs an empty tree");
+            }
+            List<Key> separators = new ArrayList<>(); // separators.get(i - 1) is the first key under pageIds.get(i)
+            List<Integer> pageIds = new ArrayList<>();
+            loadLeaves(sortedEntries, root.getMaxSize(), fillFactor, separators, pageIds);
+            while (pageIds.size() > 1) {
+                loadInternalLevel(root.getMaxSize(), fillFactor, separators, pageIds);
+            }
+            rootPageId = pageIds.get(0);
+        }
+        finally {
+            rootLatch.writeLock().unlock();
+        }
+        bufferPool.commit();
+    }
+
+    // Sorts the entries with an external merge sort (see ExternalSorter) and bulk loads them, duplicate keys are rejected.
+    // The sorter packs int keys and values, so this is for trees of the fixed int layout.
+    public void bulkLoadUnsorted(Iterator<Map.Entry<Key, RID>> entries) throws IOException {
+        bulkLoadUnsorted(entries, ExternalSorter.DEFAULT_RUN_SIZE);
+    }
+
+    // runSize bounds the entries sorted in memory at once, see ExternalSorter.sort
+    @SuppressWarnings("unchecked")
+    public void bulkLoadUnsorted(Iterator<Map.Entry<Key, RID>> entries, int runSize) throws IOException {
+        if (keyCodec != null) {
+            throw new IllegalStateException("bulkLoadUnsorted needs a tree of int keys and values");
+        }
+        Iterator<?> sorted = ExternalSorter.sort((Iterator<Map.Entry<Integer, Integer>>) (Iterator<?>) entries, runSize);
+        bulkLoad((Iterator<Map.Entry<Key, RID>>) sorted);
+    }
+
+    // The empty root becomes the first leaf. A leaf is written once the next one has its id (its nextPageId),
+    // and the last two are written together so the last one can take entries from its neighbour.
+    private void loadLeaves(Iterator<Map.Entry<Key, RID>> entries, int maxSize, double fillFactor,
+                            List<Key> separators, List<Integer> pageIds) {
+        LeafPage<Key, RID> previous = null;
+        LeafPage<Key, RID> current = newLeafPage();
+        current.init(maxSize, rootPageId);
+        pageIds.add(rootPageId);
+        Key lastKey = null;
+        while (entries.hasNext()) {
+            Map.Entry<Key, RID> entry = entries.next();
+            Key key = entry.getKey();
+            if (lastKey != null && key.compareTo(lastKey) <= 0) {
+                throw new IllegalArgumentException("bulkLoad needs strictly increasing keys: " + key + " after " + lastKey);
+            }
+            checkEntrySize(key, entry.getValue());
+            lastKey = key;
+            if (current.getSize() > 0 && !current.fitsWithin(key, entry.getValue(), fillFactor)) {
+                int nextId = allocatePageId(current.getPageID());
+                if (nextId == -1) {
+                    throw new RuntimeException("Cannot Find free frame, there is no evictable frames");
+                }
+                current.setNextPageId(nextId);
+                if (previous != null) writePage(previous);
+                previous = current;
+                current = newLeafPage();
+                current.init(maxSize, nextId);
+                separators.add(key);
+                pageIds.add(nextId);
+            }
+            current.insertAt(current.getSize(), key, entry.getValue());
+        }
+        if (previous != null && current.isUnderflowing()) {
+            if (previous.canMerge(current)) {
+                // both fit in one leaf
+                for (int i = 0; i < current.getSize(); i++) {
+                    previous.insertAt(previous.getSize(), current.keyAt(i), current.valueAt(i));
+                }
+                previous.setNextPageId(-1);
+                writePage(previous);
+                deletePage(current.getPageID());
+                separators.remove(separators.size() - 1);
+                pageIds.remove(pageIds.size() - 1);
+                return;
+            }
+            // move the last entries of the previous leaf over until the last one reaches its minimum
+            while (current.isUnderflowing() && previous.canLendEntry()) {
+                int last = previous.getSize() - 1;
+                if (!current.fitsWith(previous.keyAt(last), previous.valueAt(last))) break;
+                current.insertAt(0, previous.keyAt(last), previous.valueAt(last));
+                previous.removeAt(last);
+            }
+            separators.set(separators.size() - 1, current.keyAt(0));
+        }
+        if (previous != null) writePage(previous);
+        if (current.getSize() > 0) writePage(current);
+    }
+
+    // Replaces the pages of a level (pageIds, separators) by the internal pages above them. Each page takes children
+    // while it stays within fillFactor of its capacity, a short last page is merged with or evened out against the
+    // one before it, so like the leaves the last two pages are written together.
+    private void loadInternalLevel(int maxSize, double fillFactor, List<Key> separators, List<Integer> pageIds) {
+        List<Key> upperSeparators = new ArrayList<>();
+        List<Integer> upperPageIds = new ArrayList<>();
+        InternalPage<Key> previous = null;
+        InternalPage<Key> current = newInternalLoadPage(maxSize, pageIds.get(pageIds.size() - 1), pageIds.get(0));
+        upperPageIds.add(current.getPageID());
+        for (int i = 1; i < pageIds.size(); i++) {
+            Key separator = separators.get(i - 1);
+            if (current.getSize() > 0 && !current.fitsWithin(separator, fillFactor)) {
+                if (previous != null) writePage(previous);
+                previous = current;
+                current = newInternalLoadPage(maxSize, previous.getPageID(), pageIds.get(i));
+                upperSeparators.add(separator); // moves up, neither page keeps it
+                upperPageIds.add(current.getPageID());
+                continue;
+            }
+            current.setKeyAt(current.getSize() + 1, separator);
+            current.setValueAt(current.getSize() + 1, pageIds.get(i));
+            current.setSize(current.getSize() + 1);
+        }
+        if (previous != null && current.isUnderflowing()) {
+            int last = upperSeparators.size() - 1;
+            if (previous.canMerge(current, upperSeparators.get(last))) {
+                int previousSize = previous.getSize();
+                previous.setKeyAt(previousSize + 1, upperSeparators.get(last));
+                for (int i = 1; i <= current.getSize(); i++) {
+                    previous.setKeyAt(previousSize + 1 + i, current.keyAt(i));
+                }
+                for (int i = 0; i <= current.getSize(); i++) {
+                    previous.setValueAt(previousSize + 1 + i, current.valueAt(i));
+                }
+                previous.setSize(previousSize + 1 + current.getSize());
+                deletePage(current.getPageID());
+                upperSeparators.remove(last);
+                upperPageIds.remove(upperPageIds.size() - 1);
+                current = previous;
+                previous = null;
+            }
+            else {
+                // rotate children over through the separator until the last page reaches its minimum
+                while (current.isUnderflowing() && previous.canLendEntry() && current.fitsWith(upperSeparators.get(last))) {
+                    int previousSize = previous.getSize();
+                    current.insertEntry(upperSeparators.get(last), current.valueAt(0));
+                    current.setValueAt(0, previous.valueAt(previousSize));
+                    upperSeparators.set(last, previous.keyAt(previousSize));
+                    previous.removeEntry(previousSize);
+                }
+            }
+        }
+        if (previous != null) writePage(previous);
+        writePage(current);
+        separators.clear();
+        separators.addAll(upperSeparators);
+        pageIds.clear();
+        pageIds.addAll(upperPageIds);
+    }
+
+    // an internal page of a level being loaded, next to nearPageId on disk, holding firstChild so far
+    private InternalPage<Key> newInternalLoadPage(int maxSize, int nearPageId, int firstChild) {
+        int pageId = allocatePageId(nearPageId);
+        if (pageId == -1) {
+            throw new RuntimeException("Cannot Find free frame, there is no evictable frames");
+        }
+        InternalPage<Key> internal = newInternalPage();
+        internal.init(maxSize, pageId);
+        internal.setValueAt(0, firstChild);
+        return internal;
+    }
+
+//   =========================================    latch crabbing    ========================
+    // Read crabbing: the child is latched before the parent is released, returns the leaf read-latched and pinned.
+    private Page findLeafFrame(Key key) {
+        return findLeafFrame(key, encode(key));
+    }
+
+    // encodedKey is the key through keyCodec, encoded once for the whole descent (null without a codec)
+    private Page findLeafFrame(Key key, byte[] encodedKey) {
+        rootLatch.readLock().lock();
+        Page frame;
+        try {
+            frame = fetchRead(rootPageId);
+        }
+        finally {
+            rootLatch.readLock().unlock();
+        }
+        while (isInternalFrame(frame)) {
+            Page child = fetchRead(childFor(frame, key, encodedKey));
+            releaseRead(frame);
+            frame = child;
+        }
+        return frame;
+    }
+
+    private Page findLeftmostLeafFrame() {
+        rootLatch.readLock().lock();
+        Page frame;
+        try {
+            frame = fetchRead(rootPageId);
+        }
+        finally {
+            rootLatch.readLock().unlock();
+        }
+        while (isInternalFrame(frame)) {
+            Page child = fetchRead(firstChild(frame));
+            releaseRead(frame);
+            frame = child;
+        }
+        return frame;
+    }
+
+    // Optimistic descent for writers: read latches on the way down, only the leaf is write-latched.
+    // The parent stays read-latched while the leaf latch is upgraded, so no split or merge can move the key meanwhile.
+    private Page findLeafFrameForWrite(Key key) {
+        rootLatch.readLock().lock();
+        Page parent = null; // null while rootLatch plays the parent
+        Page frame;
+        try {
+            frame = fetchRead(rootPageId);
+            while (isInternalFrame(frame)) {
+                Page child = fetchRead(childFor(frame, key, null));
+                if (parent == null) rootLatch.readLock().unlock(); else releaseRead(parent);
+                parent = frame;
+                frame = child;
+            }
+            frame.rUnlatch();
+            frame.wLatch();
+        }
+        finally {
+            if (parent == null) rootLatch.readLock().unlock(); else releaseRead(parent);
+        }
+        return frame;
+    }
+
+    // the page type in either layout, read from the frame without decoding it
+    private static boolean isLeafFrame(Page frame) {
+        return LeafPageView.isLeafPage(frame) || SlottedPage.isLeafPage(frame);
+    }
+
+    private static boolean isInternalFrame(Page frame) {
+        return InternalPageView.isInternalPage(frame) || SlottedPage.isInternalPage(frame);
+    }
+
+    private static int firstChild(Page frame) {
+        if (SlottedPage.isInternalPage(frame)) return frame.getBuffer().getInt(SlottedPage.LINK_OFFSET);
+        return new InternalPageView().wrap(frame).valueAt(0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int childFor(Page frame, Key key, byte[] encodedKey) {
+        if (keyCodec == null && key instanceof Integer) {
+            return new InternalPageView().wrap(frame).childFor((Integer) key);
+        }
+        if (encodedKey != null) {
+            return new SlottedPageView().wrap(frame).childFor(encodedKey);
+        }
+        InternalPage<Key> internal = (InternalPage<Key>) deserialize(frame);
+        return internal.valueAt(internal.binarySearch(key));
+    }
+
+    // 1 = inserted, 0 = duplicate key, -1 = leaf is full, the caller falls back to the pessimistic path
+    private int insertInPlace(int key, int value) {
+        Page frame = findLeafFrameForWrite((Key) Integer.valueOf(key));
+        LeafPageView leaf = new LeafPageView().wrap(frame);
+        int slot = leaf.search(key);
+        if (slot >= 0) {
+            releaseWrite(frame, false);
+            return 0;
+        }
+        if (leaf.getSize() >= leaf.getMaxSize()) {
+            releaseWrite(frame, false);
+            return -1;
+        }
+        int index = -(slot + 1);
+        leaf.insertAt(index, key, value);
+        bufferPool.logLeafInsert(frame, index, key, value);
+        releaseWrite(frame, true);
+        return 1;
+    }
+
+    // 1 = removed, 0 = key not found, -1 = removal would underflow, the caller falls back to the pessimistic path
+    private int removeInPlace(int key) {
+        Page frame = findLeafFrameForWrite((Key) Integer.valueOf(key));
+        LeafPageView leaf = new LeafPageView().wrap(frame);
+        int index = leaf.keyIndex(key);
+        if (index == -1) {
+            releaseWrite(frame, false);
+            return 0;
+        }
+        boolean isRoot = leaf.getPageID() == rootPageId;
+        if (!isRoot && leaf.getSize() - 1 < leaf.getMinSize()) {
+            releaseWrite(frame, false);
+            return -1;
+        }
+        leaf.removeAt(index);
+        bufferPool.logLeafRemove(frame, index, key);
+        releaseWrite(frame, true);
+        return 1;
+    }
+
+    private LatchContext beginPessimistic() {
+        LatchContext ctx = new LatchContext();
+        rootLatch.writeLock().lock();
+        writeContext.set(ctx);
+        return ctx;
+    }
+
+    private void endPessimistic(LatchContext ctx) {
+        writeContext.remove();
+        if (ctx.holdsRootLatch) {
+            rootLatch.writeLock().unlock();
+        }
+        while (!ctx.writeSet.isEmpty()) {
+            Page frame = ctx.writeSet.pollFirst();
+            releaseWrite(frame, ctx.dirtyPages.contains(frame.getPageId()));
+        }
+        // merged-away pages can only be dropped once nobody holds them, a page another thread still holds is freed
+        // when it lets go (see BufferPoolShard.DeletePage)
+        RuntimeException failure = null;
+        for (int pageId : ctx.deletedPages) {
+            try {
+                bufferPool.DeletePage(pageId);
+            }
+            catch (Exception e)
+            {
+                if (failure == null) failure = new RuntimeException("[BPlusTree] Failed while deleting page " + pageId, e);
+                else failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) throw failure; // every latch is released by now
+    }
+
+    // releases every latched ancestor, only the most recently latched frame is kept
+    private void releaseAncestors(LatchContext ctx) {
+        if (ctx.holdsRootLatch) {
+            rootLatch.writeLock().unlock();
+            ctx.holdsRootLatch = false;
+        }
+        while (ctx.writeSet.size() > 1) {
+            Page frame = ctx.writeSet.pollFirst();
+            releaseWrite(frame, ctx.dirtyPages.contains(frame.getPageId()));
+        }
+    }
+
+    private Page latchForWrite(LatchContext ctx, int pageId) {
+        for (Page frame : ctx.writeSet) {
+            if (frame.getPageId() == pageId) return frame;
+        }
+        Page frame = fetch(pageId);
+        frame.wLatch();
+        ctx.writeSet.addLast(frame);
+        return frame;
+    }
+
+    private void deletePage(int pageId) {
+        LatchContext ctx = writeContext.get();
+        if (ctx != null) {
+            ctx.deletedPages.add(pageId);
+            return;
+        }
+        try {
+            bufferPool.DeletePage(pageId);
+        }
+        catch (Exception e)
+        {
+            System.out.println(e);
+        }
+    }
+
+    private Page fetch(int pageId) {
+        try {
+            Page page = bufferPool.FetchPage(pageId);
+            if (page == null)
+                throw new RuntimeException("[BPlusTree/fetch]  fetched page is null");
+            return page;
+        } catch (Exception e) {
+            throw new RuntimeException("[BPlusTree/fetch]  Error fetching page " + pageId + ": " + e.getMessage(), e);
+        }
+    }
+
+    private Page fetchRead(int pageId) {
+        Page frame = fetch(pageId);
+        frame.rLatch();
+        return frame;
+    }
+
+    private void releaseRead(Page frame) {
+        frame.rUnlatch();
+        unpin(frame, false);
+    }
+
+    private void releaseWrite(Page frame, boolean isDirty) {
+        frame.wUnlatch();
+        unpin(frame, isDirty);
+    }
+
+    private void unpin(Page frame, boolean isDirty) {
+        try {
+            bufferPool.UnpinPage(frame.getPageId(), isDirty);
+        }
+        catch (Exception e)
+        {
+            System.out.println(e);
         }
-        return result;
     }
 
 //   =========================================    read/write into page table    ========================
-    private BPlusTreePage deserialize(byte[] data){
-        ByteBuffer buffer = ByteBuffer.wrap(data);
+    // Without codecs pages store int keys and rids, so every node is an IntLeafPage or IntInternalPage, which keep
+    // their entries unboxed, behind the generic type. With them nodes are generic pages in the SlottedPage layout.
+    @SuppressWarnings("unchecked")
+    private LeafPage<Key, RID> newLeafPage() {
+        if (keyCodec == null) return (LeafPage<Key, RID>) (LeafPage<?, ?>) new IntLeafPage();
+        LeafPage<Key, RID> leaf = new LeafPage<>();
+        leaf.setCodecs(keyCodec, valueCodec, pageCapacity);
+        return leaf;
+    }
+    @SuppressWarnings("unchecked")
+    private InternalPage<Key> newInternalPage() {
+        if (keyCodec == null) return (InternalPage<Key>) (InternalPage<?>) new IntInternalPage();
+        InternalPage<Key> internal = new InternalPage<>();
+        internal.setCodec(keyCodec, pageCapacity);
+        return internal;
+    }
+    // decodes straight from the frame, through a duplicate so the frame's position is untouched
+    private BPlusTreePage deserialize(Page frame){
+        ByteBuffer buffer = frame.getBuffer().duplicate();
         int type = buffer.getInt();
-        if(type==2)
+        if(type==2 || type==SlottedPage.INTERNAL_PAGE_TYPE)
         {
-            InternalPage<Key> internal = new InternalPage<>();
+            InternalPage<Key> internal = newInternalPage();
             internal.fromBytes(buffer);
             return internal;
         }
-        LeafPage<Key, RID> leaf = new LeafPage<>();
+        LeafPage<Key, RID> leaf = newLeafPage();
         leaf.fromBytes(buffer);
         return leaf;
     }
+    @SuppressWarnings("unchecked")
+    private LeafPage<Key, RID> decodeLeaf(Page frame) {
+        return (LeafPage<Key, RID>) deserialize(frame);
+    }
     private byte[] serialize(BPlusTreePage treePage){
         if(treePage.isLeafPage())
         {
@@ -544,16 +1438,20 @@ public class BPlusTree<Key extends Comparable<Key>, RID> {
         }
         return ((InternalPage<?>) treePage).toBytes();
     }
+    // Inside a pessimistic operation the page is write-latched and kept in the context,
+    // otherwise it is read-latched only while decoding.
     private BPlusTreePage readPage(int pageId) {
         try{
-            Page page = bufferPool.FetchPage(pageId);
-            if(page == null)
-                throw new RuntimeException("[BPlusTree/readPage]  fetched page is null");
-            byte[] data = page.getData();
+            LatchContext ctx = writeContext.get();
+            if (ctx != null) {
+                return deserialize(latchForWrite(ctx, pageId));
+            }
+            Page page = fetchRead(pageId);
             //System.out.println("[readPage] the data to be desrialized into a BPlusTree obj: "+page.toString());
             // Deserialize into BPlusTreePage (LeafPage or InternalPage)
-            BPlusTreePage treePage = deserialize(data);
+            BPlusTreePage treePage = deserialize(page);
             //System.out.println("[readPage] the data after being wrapped into BPlusTree object:\n"+((LeafPage<?, ?>)treePage).toString());
+            releaseRead(page); // the decoded copy no longer needs the frame
             return treePage;
         }
         catch(Exception e)
@@ -562,15 +1460,40 @@ public class BPlusTree<Key extends Comparable<Key>, RID> {
         }
         return  null;
     }
+    // Copies the serialized page into the write-latched frame and logs only the bytes that changed. A page that was
+    // never logged (LSN 0, a new page) is logged whole, the frame's old contents are not known to recovery.
+    private void setAndLog(Page frame, byte[] data) {
+        if (frame.getLSN() == 0) {
+            frame.setData(data);
+            bufferPool.logPageImage(frame, data.length);
+            return;
+        }
+        ByteBuffer buffer = frame.getBuffer();
+        int end = frame.getUsableSize(); // setData zero-fills the rest of the usable area
+        int first = 0;
+        while (first < end && buffer.get(first) == (first < data.length ? data[first] : 0)) first++;
+        if (first == end) return; // nothing changed
+        int last = end - 1;
+        while (buffer.get(last) == (last < data.length ? data[last] : 0)) last--;
+        frame.setData(data);
+        bufferPool.logPageWrite(frame, first, last - first + 1);
+    }
+
     private void writePage(BPlusTreePage treePage) {
         try{
-            Page page = bufferPool.FetchPage(treePage.getPageID());
-            if(page == null)
-                throw new RuntimeException("[BPlusTree/writePage]  fetched page is null");
             byte[] data = serialize(treePage);
-            page.setData(data);
+            LatchContext ctx = writeContext.get();
+            if (ctx != null) {
+                Page frame = latchForWrite(ctx, treePage.getPageID());
+                setAndLog(frame, data);
+                ctx.dirtyPages.add(treePage.getPageID());
+                return;
+            }
+            Page page = fetch(treePage.getPageID());
+            page.wLatch();
+            setAndLog(page, data);
            // System.out.println("the Page data stored in the page buffer after write operation: \n"+page.toString());
-            bufferPool.UnpinPage(treePage.getPageID(), true);  // Mark as dirty
+            releaseWrite(page, true);  // Mark as dirty
         }
         catch (Exception e)
         {
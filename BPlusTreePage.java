@@ -36,4 +36,30 @@ public abstract class BPlusTreePage {
     public int getMinSize() {
         return maxSize / 2;
     }
+
+    //   ===================   fill   ===================
+    // Counted in entries here, pages in the variable-length format (SlottedPage) count bytes instead.
+
+    // one more entry of any allowed size fits, so an insert cannot split the page
+    public boolean hasRoomForEntry() {
+        return size < maxSize;
+    }
+
+    public boolean isOverflowing() {
+        return size > maxSize;
+    }
+
+    public boolean isUnderflowing() {
+        return size < getMinSize();
+    }
+
+    // the page can give an entry to a sibling and stay at its minimum
+    public boolean canLendEntry() {
+        return size > getMinSize();
+    }
+
+    // a separator of the page can be swapped for any other key without overflowing it
+    public boolean canReplaceSeparator() {
+        return true;
+    }
 }
@@ -1,211 +1,387 @@
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
+// Front of the buffer pool: page ids are hashed to independent BufferPoolShards so threads working
+// on different pages never contend on one monitor. Page id allocation is the only state shared by all shards:
+// ids come from a FreeSpaceMap stored in the database file, so deleted pages are reused and siblings kept together.
+// Changes are logged to a write-ahead log next to the database file (see LogManager). Fuzzy checkpoints (see
+// Checkpointer) bound how much of it is replayed when the pool is built over a file that was not shut down cleanly.
 public class BufferPoolManager {
-    private Map<Integer,Integer> PageTable; //<PageID, FrameID>
-    private Set<Integer> UsedPageIDs;
-    Page[] frames;
-    private int nextPageId = 0;
-    public Map<Integer,Boolean> UsedFrames; //<frameID,Used>
-    public LRUKReplacer lruk;
+    private static final int MIN_FRAMES_PER_SHARD = 64;
+
+    private final Set<Integer> UsedPageIDs = ConcurrentHashMap.newKeySet();
+    private FreeSpaceMap freeSpace;
+    private LogManager log;
+    private volatile boolean syncCommit = false;
+    private BufferPoolShard[] shards;
+    private final ReadAhead readAhead = new ReadAhead();
+    private PageFlusher flusher;
+    private Checkpointer checkpointer;
     public DiskScheduler disk_sch;
     private int BoolSize;
 
     public BufferPoolManager(int BoolSize, int kForLRU){
+        this(BoolSize, kForLRU, defaultShardCount(BoolSize));
+    }
+
+    public BufferPoolManager(int BoolSize, int kForLRU, int numShards){
+        this(BoolSize, kForLRU, numShards, Types.ReplacerType.LRU_K);
+    }
+
+    public BufferPoolManager(int BoolSize, int kForLRU, int numShards, Types.ReplacerType replacerType){
+        this(BoolSize, kForLRU, numShards, replacerType, DiskScheduler.DEFAULT_WORKERS);
+    }
+
+    // numDiskWorkers is the number of requests the disk may see at once
+    public BufferPoolManager(int BoolSize, int kForLRU, int numShards, Types.ReplacerType replacerType, int numDiskWorkers){
+        this(BoolSize, kForLRU, numShards, replacerType, newDiskScheduler(numDiskWorkers));
+    }
+
+    // kForLRU is only used by the LRU_K policy, disk_sch decides the I/O backend (see MappedDiskManager)
+    public BufferPoolManager(int BoolSize, int kForLRU, int numShards, Types.ReplacerType replacerType, DiskScheduler disk_sch){
         try {
-            lruk = new LRUKReplacer(kForLRU);
-            disk_sch = new DiskScheduler();
+            this.disk_sch = disk_sch;
             this.BoolSize = BoolSize;
-            this.frames = new Page[this.BoolSize];
-            this.UsedFrames = new HashMap<>();
-            this.PageTable = new HashMap<>();
-            this.UsedPageIDs = new HashSet<>();
+            if (numShards < 1 || numShards > BoolSize) {
+                throw new IllegalArgumentException("numShards must be between 1 and the pool size: " + numShards);
+            }
+            // an existing database keeps its pages, the ones allocated at its last flush point exist on disk
+            this.freeSpace = FreeSpaceMap.load(disk_sch);
+            freeSpace.allocatedPages().forEach(UsedPageIDs::add);
+            // every frame of the pool comes from one off-heap arena, allocated here and reused until the process exits
+            FrameArena arena = new FrameArena(BoolSize, disk_sch.getPageSize());
+            int firstFrame = 0;
+            this.shards = new BufferPoolShard[numShards];
+            for (int i = 0; i < numShards; i++) {
+                int shardSize = BoolSize / numShards + (i < BoolSize % numShards ? 1 : 0);
+                shards[i] = new BufferPoolShard(shardSize, arena, firstFrame, newReplacer(replacerType, shardSize, kForLRU), readAhead, disk_sch, UsedPageIDs, freeSpace::free);
+                firstFrame += shardSize;
+            }
+            this.log = new LogManager(disk_sch.getFileName() + ".wal");
+            disk_sch.setLogManager(log);
         }
         catch(Exception e)
         {
             System.out.println("Failed while Creating BufferPoolManager, "+e);
+            return;
         }
-    }
-
-    public synchronized Page FetchPage(int pageId) throws Exception
-    {
-        //System.out.println("[FetchPage] The Required ID is: "+pageId);
-        //System.out.println("[FetchPage] Frames[]: ");
-        //printFrames();
-        Page fetchedPage;
-        if(PageTable.containsKey(pageId))
-        {
-            int frameIdx = PageTable.get(pageId);
-            fetchedPage = frames[frameIdx];
-            fetchedPage.pin_count++;
-            lruk.recordAccess(frameIdx);
-            return fetchedPage;
+        // a replay that stopped half way leaves pages that look healthy, so the pool is not handed out over them
+        try {
+            boolean recovered = recover();
+            freeSpace.setLogManager(log);
+            this.flusher = new PageFlusher(shards);
+            this.checkpointer = new Checkpointer(shards, disk_sch, log, freeSpace);
+            if (recovered) {
+                checkpointer.checkpoint(); // the next restart does not replay the same records again
+            }
         }
-        else {
+        catch (Exception e)
+        {
+            disk_sch.shutdown(); // the log is kept, the next attempt replays it again
             try {
-                int freeFrame = getFreeFrame();
-                if (freeFrame == -1) {
-                    throw new RuntimeException("[BufferPoolManager/FetchPage] There is no Free Frame");
-                }
+                log.shutdown();
+            }
+            catch (IOException closeError) {
+                e.addSuppressed(closeError);
+            }
+            throw new IllegalStateException("[BufferPoolManager] Failed while recovering " + disk_sch.getFileName(), e);
+        }
+    }
 
-                fetchedPage = new Page(pageId);
-                frames[freeFrame] = fetchedPage;
-                PageTable.put(pageId, freeFrame);
-                fetchedPage.pin_count++;
-
-                if(UsedPageIDs.contains(pageId)) {
-                    //  perform read request //
-                    DiskRequest read_rqst = new DiskRequest(DiskRequest.RequestType.READ, pageId, fetchedPage.buffer);
-                    read_rqst.getCompletionFuture();
-                    disk_sch.schedule(read_rqst);
-                    read_rqst.getCompletionFuture().get();
-                }
-                else {
-                    UsedPageIDs.add(pageId);
+    // Redo: replays the log from the last checkpoint's redo LSN onto the pages and the free-space map. A page record
+    // is applied only to a page whose LSN is older, so records whose changes already reached disk are skipped.
+    // What was redone is then flushed. Returns whether there was anything to replay.
+    private boolean recover() throws Exception {
+        long pagesOnDisk = disk_sch.getFileSize() / disk_sch.getPageSize();
+        Set<Integer> touched = new HashSet<>();
+        log.scan(log.getRedoLsn(), record -> {
+            if (record.type == LogManager.CHECKPOINT) return;
+            touched.add(record.pageId);
+            if (record.pageId < pagesOnDisk) {
+                UsedPageIDs.add(record.pageId); // read what is on disk, even of a page freed at the last flush point
+            }
+            switch (record.type) {
+                case LogManager.ALLOCATE: freeSpace.redoAllocate(record.pageId); return;
+                case LogManager.FREE:     freeSpace.free(record.pageId); return;
+                default: break;
+            }
+            try {
+                BufferPoolShard shard = shardFor(record.pageId);
+                Page page = shard.FetchPage(record.pageId);
+                boolean redo = page.getLSN() < record.lsn;
+                if (redo) {
+                    redo(page, record);
+                    page.setLSN(record.lsn);
                 }
-                lruk.recordAccess(freeFrame);
-                return fetchedPage;
+                shard.UnpinPage(record.pageId, redo);
             }
             catch (Exception e)
             {
-                System.out.println(e);
+                throw new RuntimeException("[BufferPoolManager] Failed while replaying the log at LSN " + record.lsn, e);
+            }
+        });
+        for (int pageId : touched) {
+            if (!freeSpace.isAllocated(pageId)) {
+                shardFor(pageId).DeletePage(pageId); // free at the end of the log, its redone frame is dropped
             }
         }
-        return null;
+        if (touched.isEmpty()) return false;
+        flushAllPages();
+        return true;
     }
-    public void printFrames() {
-        System.out.println("=== Buffer Pool Frames ===");
-        for (int i = 0; i < frames.length; i++) {
-            Page page = frames[i];
-            if (page != null) {
-                System.out.println("Frame " + i + ": Page ID = " + page.getPageId());
-                System.out.println(page.toString());
-            } else {
-                System.out.println("Frame " + i + ": EMPTY");
-            }
+
+    // applies a record to a page that does not have it yet
+    private static void redo(Page page, LogManager.LogRecord record) {
+        ByteBuffer data = ByteBuffer.wrap(record.data);
+        switch (record.type) {
+            case LogManager.PAGE_IMAGE:
+                page.setData(record.data);
+                return;
+            case LogManager.LEAF_INSERT:
+                new LeafPageView().wrap(page).insertAt(record.offset, data.getInt(0), data.getInt(4));
+                return;
+            case LogManager.LEAF_REMOVE:
+                LeafPageView leaf = new LeafPageView().wrap(page);
+                if (leaf.keyAt(record.offset) != data.getInt(0)) {
+                    throw new IllegalStateException("leaf " + record.pageId + " does not hold the removed key at " + record.offset);
+                }
+                leaf.removeAt(record.offset);
+                return;
+            default:
+                page.getBuffer().put(record.offset, record.data);
         }
     }
-    public synchronized void UnpinPage(int pageId, boolean isDirty) throws Exception {
-        if (!PageTable.containsKey(pageId)) {
-            throw new Exception("UnpinPage: Page not found in buffer pool: " + pageId);
+
+    private static DiskScheduler newDiskScheduler(int numDiskWorkers) {
+        try {
+            return new DiskScheduler(numDiskWorkers);
         }
-        int frameID = PageTable.get(pageId);
-        Page target = frames[frameID];
-        target.pin_count--;
-        target.is_dirty = isDirty;
-        if(target.pin_count==0)
+        catch (IOException e)
         {
-            flushPage(pageId);
-            lruk.setEvictable(frameID,true);
+            throw new RuntimeException("[BufferPoolManager] Failed while creating the DiskScheduler", e);
         }
     }
 
-    private int getFreeFrame() {
-        for (int i = 0; i < BoolSize; i++) {
-            if (UsedFrames.containsKey(i)) continue;
-            UsedFrames.put(i, true);
-            return i;
+    // one shard per core, but small pools stay whole so a shard never runs out of frames on its own
+    private static int defaultShardCount(int poolSize) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cores, poolSize / MIN_FRAMES_PER_SHARD));
+    }
+
+    private static Replacer newReplacer(Types.ReplacerType replacerType, int numFrames, int kForLRU) {
+        switch (replacerType) {
+            case CLOCK: return new ClockReplacer(numFrames);
+            case TWO_Q: return new TwoQReplacer(numFrames);
+            case ARC:   return new ArcReplacer(numFrames);
+            default:    return new LRUKReplacer(numFrames, kForLRU);
         }
+    }
 
-        // No free frame, ask replacer for one
-        int[] frame = new int[1];
-        boolean evicted = lruk.evict(frame);
-        if (!evicted) return -1; //no evictable frame
+    private BufferPoolShard shardFor(int pageId) {
+        return shards[Math.floorMod(pageId, shards.length)];
+    }
 
-        int victimFrameId = frame[0];
-        Page victim = frames[victimFrameId];
-        if (victim.pin_count > 0) return -1; //the victim already in use
+    // the page size of the database file, every frame of the pool is one page
+    public int getPageSize() {
+        return disk_sch.getPageSize();
+    }
 
-        if (victim.is_dirty) {
-            try {
-                flushPage(victim.getPageId()); // wait for flush
-            } catch (Exception e) {
-                e.printStackTrace();
-                return -1;
-            }
-        }
-        UsedFrames.remove(victimFrameId);
-        PageTable.remove(victim.getPageId());
-        return frame[0];
+    public int getShardCount() {
+        return shards.length;
     }
 
-    public synchronized Page newPage(){
-        int frameId = getFreeFrame();
-        try {
-            if (frameId == -1)
-                throw new RuntimeException("[BufferPoolManager] Cannot Find Free Frame, there is no evictable frames");
-            int pageId = nextPageId++;
-            Page page = new Page(pageId);
-            page.pin_count = 1;
-
-            frames[frameId] = page;
-            PageTable.put(pageId, frameId);
-            lruk.recordAccess(frameId);
-            UsedFrames.put(frameId, true);
-            /*// ✅ Debug Print
-            System.out.println("✅ New page allocated: PageID=" + pageId + ", FrameID=" + frameId);
-            System.out.println("📘 PageTable:");
-            for (Map.Entry<Integer, Integer> entry : PageTable.entrySet()) {
-                System.out.println("  PageID " + entry.getKey() + " -> FrameID " + entry.getValue());
-            }
+    //  =====================   statistics   =====================
+    public long getHits() {
+        long hits = 0;
+        for (BufferPoolShard shard : shards) hits += shard.getHits();
+        return hits;
+    }
+
+    public long getMisses() {
+        long misses = 0;
+        for (BufferPoolShard shard : shards) misses += shard.getMisses();
+        return misses;
+    }
 
-            System.out.println("📦 Frames:");
-            for (int i = 0; i < frames.length; i++) {
-                Page p = frames[i];
-                if (p != null)
-                    System.out.println("  Frame[" + i + "] = PageID " + p.getPageId() + ", pin_count=" + p.pin_count + ", dirty=" + p.is_dirty);
-                else
-                    System.out.println("  Frame[" + i + "] = null");
-            }*/
-            return page;
+    // requests queued or in service on each disk worker
+    public int[] getDiskQueueDepths() {
+        return disk_sch.getQueueDepths();
+    }
+
+    // fraction of FetchPage calls served without a disk read, 0 before the first fetch
+    public double getHitRatio() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    // log forces so far, with group commit many commits share one
+    public long getLogForceCount() { return log.getForceCount(); }
+
+    public long getReadAheadUsed() { return readAhead.getUsed(); }
+    public long getReadAheadWasted() { return readAhead.getWasted(); }
+    public int getReadAheadWindow() { return readAhead.getWindow(); }
+
+    public Page FetchPage(int pageId) throws Exception
+    {
+        try {
+            return fetchPageAsync(pageId).get();
         }
-        catch(Exception e)
+        catch (ExecutionException e)
+        {
+            System.out.println(e.getCause());
+        }
+        catch (Exception e)
         {
             System.out.println(e);
-            return null;
         }
+        return null;
     }
-
-    private void flushPage (int pageID) throws Exception
-    {
-        if (!PageTable.containsKey(pageID)) {
-            throw new Exception("flushPage: Page not found in buffer pool: " + pageID);
+    // Never blocks on I/O: the page is pinned immediately and the future completes once its data is in the frame,
+    // so a caller can issue many reads and overlap them. The page must be unpinned once used, like FetchPage.
+    public CompletableFuture<Page> fetchPageAsync(int pageId) {
+        CompletableFuture<Page> page = shardFor(pageId).fetchPageAsync(pageId);
+        // queued after this page's own read, so read-ahead never delays the page that was asked for
+        for (int next : readAhead.onFetch(pageId)) {
+            shardFor(next).prefetchPage(next);
         }
-        int frameId = PageTable.get(pageID);
-        Page victim = frames[frameId];
-        if (victim.is_dirty) //schedule write request
-        {
-            DiskRequest write_rqst = new DiskRequest(DiskRequest.RequestType.WRITE, victim.getPageId(), victim.buffer);
-            //write_rqst.getCompletionFuture();  // <- ensure DiskRequest has a future
-            disk_sch.schedule(write_rqst);
-            write_rqst.getCompletionFuture().get(); //request served correctly
-            victim.is_dirty = false; //now it is not dirty
+        return page;
+    }
 
+    //  =====================   read-ahead   =====================
+    // The calling thread is about to fetch pageIds in this order (e.g. the leaves of a scan). Until clearReadAheadHint,
+    // each fetch along the list keeps the next pages of the list queued, as many as the adaptive window allows.
+    public void hintReadAhead(int[] pageIds) {
+        readAhead.hint(pageIds);
+    }
+
+    public void clearReadAheadHint() {
+        readAhead.clearHint();
+    }
+
+    // Queues the read of a page the caller will fetch soon, without pinning it (see BufferPoolShard.prefetchPage)
+    public void prefetchPage(int pageId) {
+        shardFor(pageId).prefetchPage(pageId);
+    }
+
+    public void printFrames() {
+        System.out.println("=== Buffer Pool Frames ===");
+        for (int i = 0; i < shards.length; i++) {
+            System.out.println("--- Shard " + i + " ---");
+            shards[i].printFrames();
         }
     }
+    public void UnpinPage(int pageId, boolean isDirty) throws Exception {
+        shardFor(pageId).UnpinPage(pageId, isDirty);
+    }
+
+    public Page newPage(){
+        return newPage(-1);
+    }
 
-    public synchronized boolean DeletePage(int pageId) throws Exception {
-        if (!PageTable.containsKey(pageId)) {
-            throw new Exception("DeletePage: Page not found in buffer pool: " + pageId);
+    // a new page placed next to nearPageId on disk when possible (e.g. the new sibling of a split), -1 for no preference
+    public Page newPage(int nearPageId){
+        int pageId = freeSpace.allocate(nearPageId);
+        Page page = shardFor(pageId).newPage(pageId);
+        if (page == null) {
+            freeSpace.free(pageId);
         }
-        int frameID = PageTable.get(pageId);
-        Page victim = frames[frameID];
-        if (victim.pin_count == 0) {
-            if(victim.is_dirty)
-                flushPage(pageId);
-            PageTable.remove(pageId);
-            UsedFrames.remove(frameID);
-            frames[frameID]= null;
-            lruk.remove(frameID); //remove entirely
-            return true;
+        return page;
+    }
+
+    // The page id is reused by a later newPage. A page that is still pinned or being read is freed once its last pin
+    // goes or its read lands, returns whether it was freed now.
+    public boolean DeletePage(int pageId) throws Exception {
+        return shardFor(pageId).DeletePage(pageId);
+    }
+
+    public int getAllocatedPageCount() {
+        return freeSpace.getAllocatedCount();
+    }
+
+    //  =====================   write-ahead log   =====================
+    // Logs a change the caller made to length bytes of the page's frame at offset, the caller holds the write latch.
+    // The page cannot be written to disk before its record is durable.
+    public long logPageWrite(Page page, int offset, int length) {
+        return log.logPageWrite(page, LogManager.PAGE_RANGE, offset, length);
+    }
+
+    // logs the page's new contents, the first length bytes, everything after them up to the LSN is zeros
+    public long logPageImage(Page page, int length) {
+        return log.logPageWrite(page, LogManager.PAGE_IMAGE, 0, length);
+    }
+
+    // A leaf entry inserted at index by LeafPageView.insertAt, logged as the entry rather than the shifted tail.
+    public long logLeafInsert(Page page, int index, int key, int value) {
+        return log.logPageChange(page, LogManager.LEAF_INSERT, index, ByteBuffer.allocate(8).putInt(key).putInt(value).array());
+    }
+
+    // the entry at index removed by LeafPageView.removeAt, key is checked on replay
+    public long logLeafRemove(Page page, int index, int key) {
+        return log.logPageChange(page, LogManager.LEAF_REMOVE, index, ByteBuffer.allocate(4).putInt(key).array());
+    }
+
+    // With synchronous commit every commit waits until the log is durable up to the changes made so far.
+    // Concurrent committers share one log force.
+    public void setSyncCommit(boolean syncCommit) {
+        this.syncCommit = syncCommit;
+    }
+
+    public void commit() {
+        if (syncCommit) {
+            log.flushAll();
         }
-        return false;
     }
 
-    public synchronized void flushAllPages () throws Exception
+    //  =====================   checkpoints   =====================
+    // Takes a fuzzy checkpoint now, see Checkpointer. Returns false when a page write failed during it.
+    public boolean checkpoint() throws Exception {
+        return checkpointer.checkpoint();
+    }
+
+    // Checkpoints are taken every intervalMillis, or once the log has grown by maxLogBytes since the last one,
+    // writing at most pagesPerSecond pages.
+    public void setCheckpointPolicy(long intervalMillis, long maxLogBytes, int pagesPerSecond) {
+        checkpointer.setPolicy(intervalMillis, maxLogBytes, pagesPerSecond);
+    }
+
+    public long getCheckpointCount() { return checkpointer.getCheckpointCount(); }
+
+    // A sharp flush point: every dirty page is written, pinned ones too, then the free-space map, and the writes are
+    // made durable. It waits for all of them at once, a checkpoint spreads the same work out instead.
+    public void flushAllPages () throws Exception
     {
-        for(Integer pageId :PageTable.keySet())
-            flushPage(pageId);
+        for (BufferPoolShard shard : shards)
+            shard.flushAllPages();
+        log.flushAll(); // the map's changes are logged too, their records go first
+        freeSpace.flush(disk_sch);
+        disk_sch.sync();
+    }
+
+    //  =====================   write-back   =====================
+    // Dirty pages are written by the background flusher once more than dirtyRatio of a shard's frames are dirty,
+    // or once they have been dirty for maxAgeMillis, whichever comes first.
+    public void setFlushPolicy(double dirtyRatio, long maxAgeMillis) {
+        flusher.setPolicy(dirtyRatio, maxAgeMillis);
+    }
+
+    public int getDirtyPageCount() {
+        int dirtyCount = 0;
+        for (BufferPoolShard shard : shards) dirtyCount += shard.getDirtyCount();
+        return dirtyCount;
+    }
+
+    // writes every dirty page and stops the background threads, the pool must not be used afterwards
+    public void shutdown() throws Exception {
+        flusher.shutdown();
+        checkpointer.shutdown();
+        flushAllPages();
+        checkpointer.checkpoint(); // nothing is left to write, a restart replays nothing
+        disk_sch.shutdown();
+        log.shutdown();
     }
 }
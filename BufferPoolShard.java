@@ -0,0 +1,498 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntConsumer;
+
+// One partition of the buffer pool: its own frames, page table, free list and replacer behind its own monitor.
+// Disk requests are never awaited while holding the monitor, a slow read or write only blocks the thread that
+// needs that page. fetchPageAsync does not block at all: the returned future completes once the read issued by
+// the first miss lands.
+// Each frame is a fixed slice of the pool's off-heap arena with one Page object recycled for every page it holds.
+// A write from a frame's slice must land before the frame is filled again, so frameWrites keeps the last one and
+// the read (or zeroing) for the next page is chained after it. When that write (of an evicted dirty page) fails, the
+// fetch or newPage that took the frame fails with it, the evicted page's changes are left to redo from the log.
+// The pool is write-back: unpinning never writes, dirty pages reach disk when they are evicted (clean victims are
+// preferred), when the background flusher or a checkpoint picks them, or on flushAllPages.
+// Read-ahead pages are loaded into unpinned frames and flagged until their first fetch, so ReadAhead learns
+// whether its window pays off.
+// A page deleted while it is pinned or being read is dropped, and its id freed, once the last pin goes or the
+// read lands.
+public class BufferPoolShard {
+    private final Map<Integer,Integer> PageTable = new HashMap<>(); //<PageID, FrameID>
+    private final Map<Integer, CompletableFuture<Void>> loadingPages = new HashMap<>(); //<PageID, in-flight read>
+    private final Deque<Integer> freeList = new ArrayDeque<>();
+    private final Page[] frames;
+    private final CompletableFuture<?>[] frameWrites; // last write issued from each frame's slice, null once reused
+    private final Deque<ByteBuffer> flushBuffers = new ArrayDeque<>(); // copies for the background writes, reused
+    private final boolean[] readAheadFrames; // loaded by read-ahead and not fetched yet
+    private final Set<Integer> pendingDeletes = new HashSet<>(); // deleted while pinned or loading, still resident
+    private final IntConsumer freePage; // hands a dropped page's id back for reuse
+    private final Replacer replacer;
+    private final ReadAhead readAhead;
+    private long hits = 0;
+    private long misses = 0;
+    private final DiskScheduler disk_sch;
+    private final Set<Integer> UsedPageIDs; // shared by all shards, pages that exist on disk
+
+    // the shard's frames are arena frames firstFrame .. firstFrame + poolSize - 1, freePage is called with the id of
+    // every deleted page once its frame is dropped (under the shard's monitor)
+    public BufferPoolShard(int poolSize, FrameArena arena, int firstFrame, Replacer replacer, ReadAhead readAhead,
+                           DiskScheduler disk_sch, Set<Integer> UsedPageIDs, IntConsumer freePage) {
+        this.frames = new Page[poolSize];
+        this.frameWrites = new CompletableFuture<?>[poolSize];
+        this.readAheadFrames = new boolean[poolSize];
+        this.replacer = replacer;
+        this.readAhead = readAhead;
+        this.disk_sch = disk_sch;
+        this.UsedPageIDs = UsedPageIDs;
+        this.freePage = freePage;
+        for (int i = 0; i < poolSize; i++) {
+            frames[i] = new Page(Page.INVALID_PAGE_ID, arena.frame(firstFrame + i));
+            freeList.addLast(i);
+        }
+    }
+
+    public Page FetchPage(int pageId) throws Exception
+    {
+        try {
+            return fetchPageAsync(pageId).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    // Pins the page and returns at once; the future completes when the frame holds the page's data.
+    // A miss queues the read and returns, a hit on a page that is still being read shares that read.
+    public CompletableFuture<Page> fetchPageAsync(int pageId)
+    {
+        Page fetchedPage;
+        CompletableFuture<Void> loading;
+        CompletableFuture<?>[] frameBusy = new CompletableFuture<?>[1];
+        boolean fill = false;
+        boolean fromDisk = false;
+        synchronized (this) {
+            Integer frameIdx = PageTable.get(pageId);
+            if (frameIdx != null) {
+                fetchedPage = frames[frameIdx];
+                fetchedPage.pin_count++;
+                hits++;
+                if (readAheadFrames[frameIdx]) {
+                    // the read-ahead already counted as this page's first access
+                    readAheadFrames[frameIdx] = false;
+                    readAhead.onUsed();
+                }
+                else {
+                    replacer.recordAccess(frameIdx, pageId);
+                }
+                replacer.setEvictable(frameIdx, false); // pinned frames must not be picked as victims
+                loading = loadingPages.get(pageId); // another thread may still be reading it in
+            }
+            else {
+                int freeFrame = getFreeFrame(frameBusy);
+                if (freeFrame == -1) {
+                    return CompletableFuture.failedFuture(new RuntimeException("[BufferPoolManager/FetchPage] There is no Free Frame"));
+                }
+
+                fetchedPage = frames[freeFrame];
+                fetchedPage.reset(pageId);
+                PageTable.put(pageId, freeFrame);
+                fetchedPage.pin_count++;
+                misses++;
+                replacer.recordAccess(freeFrame, pageId);
+                replacer.setEvictable(freeFrame, false);
+
+                fromDisk = UsedPageIDs.contains(pageId);
+                if (!fromDisk) {
+                    UsedPageIDs.add(pageId);
+                }
+                if (fromDisk || frameBusy[0] != null) {
+                    loading = new CompletableFuture<>();
+                    loadingPages.put(pageId, loading);
+                    fill = true;
+                }
+                else {
+                    fetchedPage.zero(); // a page that was never written, and nothing is being written from the frame
+                    loading = null;
+                }
+            }
+        }
+
+        final Page page = fetchedPage;
+        if (fill) {
+            final CompletableFuture<Void> pending = loading;
+            fillFrame(pageId, page, frameBusy[0], fromDisk).whenComplete((ignored, error) -> finishLoading(pageId, pending, error));
+        }
+        CompletableFuture<Void> ready = loading == null ? CompletableFuture.completedFuture(null) : loading;
+        return ready.thenApply(ignored -> page);
+    }
+
+    // Fills the frame for pageId once the last write from its slice has landed: a read when the page exists on disk,
+    // zeros otherwise. The read may be queued outside the monitor, the page is clean and loading so no write of it
+    // can be queued meanwhile, and any earlier one is already ahead of it in its worker's queue.
+    // Fails, without filling the frame, when that write failed.
+    private CompletableFuture<Void> fillFrame(int pageId, Page page, CompletableFuture<?> frameBusy, boolean fromDisk) {
+        CompletableFuture<?> free = frameBusy == null ? CompletableFuture.completedFuture(null)
+                : frameBusy.exceptionally(error -> { throw evictionFailed(pageId, error); });
+        if (!fromDisk) {
+            return free.thenRun(page::zero);
+        }
+        return free.thenCompose(ignored -> {
+            DiskRequest read_rqst = new DiskRequest(DiskRequest.RequestType.READ, pageId, page.getBuffer());
+            disk_sch.schedule(read_rqst);
+            return read_rqst.getCompletionFuture();
+        });
+    }
+
+    // Reads the page into an unpinned frame ahead of its first fetch. Nothing happens when the page is
+    // resident or being read, does not exist on disk, or when most of the shard is pinned or loading.
+    public void prefetchPage(int pageId) {
+        CompletableFuture<?>[] frameBusy = new CompletableFuture<?>[1];
+        CompletableFuture<Void> loading = new CompletableFuture<>();
+        Page page;
+        synchronized (this) {
+            if (PageTable.containsKey(pageId) || !UsedPageIDs.contains(pageId)) return;
+            // loading frames cannot be evicted, so reads in flight may hold at most a quarter of the shard and another
+            // quarter must stay free or evictable for the fetches that are not speculative (tiny shards never read ahead)
+            int reserve = frames.length / 4;
+            if (loadingPages.size() >= reserve || freeList.size() + replacer.size() <= reserve) return;
+            int freeFrame = getFreeFrame(frameBusy);
+            if (freeFrame == -1) return;
+
+            page = frames[freeFrame];
+            page.reset(pageId);
+            PageTable.put(pageId, freeFrame);
+            readAheadFrames[freeFrame] = true;
+            replacer.recordAccess(freeFrame, pageId);
+            replacer.setEvictable(freeFrame, false); // becomes evictable once the read lands, see finishLoading
+            loadingPages.put(pageId, loading);
+        }
+        fillFrame(pageId, page, frameBusy[0], true).whenComplete((ignored, error) -> finishLoading(pageId, loading, error));
+    }
+
+    private synchronized void finishLoading(int pageId, CompletableFuture<Void> loading, Throwable error) {
+        loadingPages.remove(pageId);
+        if (error == null) {
+            int frameId = PageTable.get(pageId); // DeletePage leaves pages that are being read for later
+            if (frames[frameId].pin_count == 0) {
+                if (pendingDeletes.contains(pageId)) {
+                    dropPage(pageId, frameId); // deleted while a read-ahead was filling it
+                }
+                else {
+                    replacer.setEvictable(frameId, true); // a read-ahead page nobody has fetched yet
+                }
+            }
+            loading.complete(null);
+            return;
+        }
+        // drop the half-read page, every waiter unpins its own reference
+        Integer frameId = PageTable.remove(pageId);
+        if (frameId != null) {
+            frames[frameId].reset(Page.INVALID_PAGE_ID);
+            readAheadFrames[frameId] = false;
+            replacer.remove(frameId);
+            freeList.addLast(frameId);
+        }
+        if (pendingDeletes.remove(pageId)) {
+            UsedPageIDs.remove(pageId);
+            freePage.accept(pageId);
+        }
+        loading.completeExceptionally(error);
+    }
+
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+
+    public synchronized void printFrames() {
+        for (int i = 0; i < frames.length; i++) {
+            Page page = frames[i];
+            if (page.getPageId() != Page.INVALID_PAGE_ID) {
+                System.out.println("Frame " + i + ": Page ID = " + page.getPageId());
+                System.out.println(page.toString());
+            } else {
+                System.out.println("Frame " + i + ": EMPTY");
+            }
+        }
+    }
+
+    public synchronized void UnpinPage(int pageId, boolean isDirty) throws Exception {
+        if (!PageTable.containsKey(pageId)) {
+            throw new Exception("UnpinPage: Page not found in buffer pool: " + pageId);
+        }
+        int frameID = PageTable.get(pageId);
+        Page target = frames[frameID];
+        target.pin_count--;
+        if (isDirty && !target.is_dirty) {
+            target.dirty_since = System.nanoTime();
+        }
+        target.is_dirty = target.is_dirty || isDirty; // sticky until written, a clean unpin must not drop another pinner's changes
+        if (target.pin_count == 0) {
+            if (pendingDeletes.contains(pageId) && !loadingPages.containsKey(pageId)) {
+                dropPage(pageId, frameID); // the last pin of a deleted page
+            }
+            else {
+                replacer.setEvictable(frameID, true);
+            }
+        }
+    }
+
+    // Queues writes of unpinned dirty pages for the background flusher: every page dirty for longer than maxAgeNanos,
+    // then the oldest others until at most dirtyRatio of the frames are dirty. Each write is of a copy taken here,
+    // as the page can be pinned and changed again, or its frame reused, while the write is queued.
+    // Returns the writes to wait for.
+    public List<DiskRequest> flushDirtyPages(double dirtyRatio, long maxAgeNanos) {
+        List<DiskRequest> writes = new ArrayList<>();
+        synchronized (this) {
+            List<Page> candidates = new ArrayList<>();
+            int dirtyCount = 0;
+            for (Page page : frames) {
+                if (!page.is_dirty) continue; // free frames are never dirty
+                dirtyCount++;
+                if (page.pin_count == 0) candidates.add(page); // nobody can hold its latch, the copy is consistent
+            }
+            int target = (int) (dirtyRatio * frames.length);
+            long now = System.nanoTime();
+            candidates.sort(Comparator.comparingLong(page -> page.dirty_since));
+            for (Page page : candidates) {
+                if (dirtyCount <= target && now - page.dirty_since < maxAgeNanos) break;
+                writes.add(scheduleCopyFlush(page));
+                dirtyCount--;
+            }
+        }
+        return writes;
+    }
+
+    // must hold the monitor, the page must be unpinned: queues a write of a copy of it and marks it clean
+    private DiskRequest scheduleCopyFlush(Page page) {
+        ByteBuffer copy = flushBuffer(page.getSize());
+        copy.put(0, page.getBuffer(), 0, page.getSize());
+        page.is_dirty = false;
+        page.rec_lsn = 0;
+        return scheduleCopyWrite(page.getPageId(), copy);
+    }
+
+    // must hold the monitor
+    private ByteBuffer flushBuffer(int pageSize) {
+        return flushBuffers.isEmpty() ? ByteBuffer.allocateDirect(pageSize) : flushBuffers.pollFirst();
+    }
+
+    // queues the write of a copy taken from flushBuffer, the copy goes back to flushBuffers once written
+    private DiskRequest scheduleCopyWrite(int pageId, ByteBuffer copy) {
+        DiskRequest write_rqst = new DiskRequest(DiskRequest.RequestType.WRITE, pageId, copy);
+        disk_sch.schedule(write_rqst);
+        write_rqst.getCompletionFuture().whenComplete((ignored, error) -> finishFlush(pageId, copy, error));
+        return write_rqst;
+    }
+
+    // after a failed background write the page is dirty again, so it is not evicted as if it were on disk
+    private synchronized void finishFlush(int pageId, ByteBuffer copy, Throwable error) {
+        flushBuffers.addFirst(copy);
+        if (error == null) return;
+        Integer frameId = PageTable.get(pageId);
+        if (frameId != null && !frames[frameId].is_dirty) {
+            frames[frameId].is_dirty = true;
+            frames[frameId].dirty_since = System.nanoTime();
+            frames[frameId].rec_lsn = 1; // which change was lost is unknown, recovery must start from the oldest
+        }
+    }
+
+    //  =====================   checkpoints   =====================
+    // adds the shard's dirty page table to table: every resident page with changes not on disk, and its rec_lsn
+    public synchronized void collectDirtyPages(Map<Integer, Long> table) {
+        for (Page page : frames) {
+            long recLsn = page.rec_lsn;
+            if (recLsn != 0) table.put(page.getPageId(), recLsn);
+        }
+    }
+
+    // Queues a write of a copy of the page when it still has a change older than beforeLsn and is unpinned.
+    // Returns null when there is nothing to write or the page is pinned, a pinned page keeps its rec_lsn.
+    public synchronized DiskRequest checkpointPage(int pageId, long beforeLsn) {
+        Integer frameId = PageTable.get(pageId);
+        if (frameId == null || loadingPages.containsKey(pageId)) return null;
+        Page page = frames[frameId];
+        long recLsn = page.rec_lsn;
+        if (recLsn == 0 || recLsn >= beforeLsn || page.pin_count > 0) return null;
+        return scheduleCopyFlush(page);
+    }
+
+    public synchronized int getDirtyCount() {
+        int dirtyCount = 0;
+        for (Page page : frames) {
+            if (page.is_dirty) dirtyCount++;
+        }
+        return dirtyCount;
+    }
+
+    // must hold the monitor, frameBusy receives the last write from the frame's slice while it is still in flight or
+    // when it failed (the write of a dirty victim), the caller fills the frame only after it, once the monitor is
+    // released, and fails when it did
+    private int getFreeFrame(CompletableFuture<?>[] frameBusy) {
+        int frameId = freeList.isEmpty() ? evictFrame() : freeList.pollFirst();
+        if (frameId == -1) return -1;
+        CompletableFuture<?> lastWrite = frameWrites[frameId];
+        frameWrites[frameId] = null;
+        boolean landed = lastWrite == null || (lastWrite.isDone() && !lastWrite.isCompletedExceptionally());
+        frameBusy[0] = landed ? null : lastWrite;
+        return frameId;
+    }
+
+    private static CompletionException evictionFailed(int pageId, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return new CompletionException(new RuntimeException(
+                "[BufferPoolManager] The page evicted to make room for page " + pageId + " could not be written", cause));
+    }
+
+    // must hold the monitor
+    private int evictFrame() {
+        // No free frame, ask replacer for one, a clean victim can be reused without waiting for a write
+        int[] frame = new int[1];
+        boolean evicted = replacer.evict(frame, frameId -> !frames[frameId].is_dirty);
+        if (!evicted) return -1; //no evictable frame
+
+        int victimFrameId = frame[0];
+        Page victim = frames[victimFrameId];
+        if (victim.pin_count > 0) return -1; //the victim already in use
+        if (readAheadFrames[victimFrameId]) {
+            readAheadFrames[victimFrameId] = false;
+            readAhead.onWasted();
+        }
+
+        scheduleFlush(victimFrameId); // a failed write fails whoever takes the frame, see getFreeFrame
+        PageTable.remove(victim.getPageId());
+        return victimFrameId;
+    }
+
+    public Page newPage(int pageId) {
+        CompletableFuture<?>[] frameBusy = new CompletableFuture<?>[1];
+        Page page;
+        int frameId;
+        synchronized (this) {
+            frameId = getFreeFrame(frameBusy);
+            if (frameId == -1) {
+                System.out.println(new RuntimeException("[BufferPoolManager] Cannot Find Free Frame, there is no evictable frames"));
+                return null;
+            }
+            page = frames[frameId];
+            page.reset(pageId);
+            page.pin_count = 1;
+            UsedPageIDs.add(pageId); // a later miss must read it back instead of handing out a blank frame
+
+            PageTable.put(pageId, frameId);
+            replacer.recordAccess(frameId, pageId);
+            replacer.setEvictable(frameId, false);
+        }
+        // nobody else knows the page id yet, so the frame can be cleared outside the monitor
+        if (frameBusy[0] != null) {
+            try {
+                frameBusy[0].join();
+            }
+            catch (CompletionException e) {
+                synchronized (this) {
+                    PageTable.remove(pageId);
+                    page.reset(Page.INVALID_PAGE_ID);
+                    replacer.remove(frameId);
+                    freeList.addLast(frameId);
+                    UsedPageIDs.remove(pageId);
+                }
+                System.out.println(evictionFailed(pageId, e).getCause());
+                return null;
+            }
+        }
+        page.zero();
+        return page;
+    }
+
+    // must hold the monitor, the page must be unpinned and leaving the pool, so nobody can change the frame while
+    // its write is queued: queues the write from the frame's slice and marks the page clean, null when there is
+    // nothing to write
+    private DiskRequest scheduleFlush(int frameId) {
+        Page page = frames[frameId];
+        if (!page.is_dirty) return null;
+        DiskRequest write_rqst = new DiskRequest(DiskRequest.RequestType.WRITE, page.getPageId(), page.getBuffer());
+        disk_sch.schedule(write_rqst);
+        page.is_dirty = false;
+        page.rec_lsn = 0;
+        frameWrites[frameId] = write_rqst.getCompletionFuture();
+        return write_rqst;
+    }
+
+    private void awaitWrite(DiskRequest write_rqst) throws Exception {
+        if (write_rqst != null) {
+            write_rqst.getCompletionFuture().get(); //request served correctly
+        }
+    }
+
+    // Once deleted the page no longer exists on disk, so it is never read ahead and its id can be handed out again.
+    // A page that is pinned or being read is only marked: it is dropped when its last pin goes or its read lands.
+    // Returns whether the page was dropped now.
+    public synchronized boolean DeletePage(int pageId) {
+        Integer frameID = PageTable.get(pageId);
+        if (frameID == null) {
+            UsedPageIDs.remove(pageId); // already evicted, nothing to drop from the pool
+            freePage.accept(pageId);
+            return true;
+        }
+        if (loadingPages.containsKey(pageId) || frames[frameID].pin_count > 0) {
+            pendingDeletes.add(pageId);
+            return false;
+        }
+        dropPage(pageId, frameID);
+        return true;
+    }
+
+    // must hold the monitor, the page must be unpinned and not loading: frees its frame and its id. The contents of
+    // a deleted page are garbage, so a dirty frame is dropped without writing it
+    private void dropPage(int pageId, int frameId) {
+        PageTable.remove(pageId);
+        frames[frameId].reset(Page.INVALID_PAGE_ID);
+        readAheadFrames[frameId] = false;
+        replacer.remove(frameId); //remove entirely
+        freeList.addLast(frameId);
+        pendingDeletes.remove(pageId);
+        UsedPageIDs.remove(pageId);
+        freePage.accept(pageId);
+    }
+
+    // Writes every dirty page, pinned ones too, and waits for the writes. Each write is of a copy: an unpinned page is
+    // copied under the monitor, a pinned one under its read latch, so a writer holding the latch never has a change
+    // on disk before the LSN in the trailer covers it. The caller must hold no page latches.
+    public void flushAllPages() throws Exception
+    {
+        List<DiskRequest> writes = new ArrayList<>();
+        List<Page> pinned = new ArrayList<>();
+        synchronized (this) {
+            for (int frameId : PageTable.values()) {
+                Page page = frames[frameId];
+                if (!page.is_dirty) continue;
+                if (page.pin_count == 0) {
+                    writes.add(scheduleCopyFlush(page));
+                    continue;
+                }
+                page.pin_count++; // keeps the page in its frame until it is copied
+                page.is_dirty = false; // a change after the copy dirties it again when its pinner unpins
+                pinned.add(page); // keeps its rec_lsn, a change may be logged before the copy is taken
+            }
+        }
+        for (Page page : pinned) {
+            ByteBuffer copy;
+            synchronized (this) {
+                copy = flushBuffer(page.getSize());
+            }
+            page.rLatch();
+            try {
+                copy.put(0, page.getBuffer(), 0, page.getSize());
+                // queued before the latch is released, so a later copy of the page is always written after this one
+                writes.add(scheduleCopyWrite(page.getPageId(), copy));
+            }
+            finally {
+                page.rUnlatch();
+            }
+            UnpinPage(page.getPageId(), false);
+        }
+        for (DiskRequest write_rqst : writes) {
+            awaitWrite(write_rqst);
+        }
+    }
+}
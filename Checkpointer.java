@@ -0,0 +1,160 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Fuzzy checkpoints, taken while the pool keeps working. A checkpoint notes the end of the log, takes each shard's
+// dirty page table (the resident pages with changes not on disk, each with the LSN of its oldest one) and writes
+// copies of the pages changed before that end, no faster than pagesPerSecond. Pages pinned at that moment are not
+// waited for, they bound the redo LSN instead. Once those writes, and every write queued before them, have landed,
+// a checkpoint record with the redo LSN and the remaining dirty page table is logged: recovery starts there.
+// The background thread checkpoints every interval, or sooner once the log has grown by maxLogBytes.
+public class Checkpointer {
+    public static final long DEFAULT_INTERVAL_MS = 30_000;
+    public static final long DEFAULT_MAX_LOG_BYTES = 64L << 20;
+    public static final int DEFAULT_PAGES_PER_SECOND = 2000;
+    private static final long CHECK_INTERVAL_MS = 100;
+
+    private final BufferPoolShard[] shards;
+    private final DiskScheduler disk_sch;
+    private final LogManager log;
+    private final FreeSpaceMap freeSpace;
+    private final Thread backgroundThread;
+    private final Object wakeup = new Object(); // the background thread waits on it, shutdown notifies it
+    private volatile boolean shutdown = false;
+    private volatile long intervalNanos = DEFAULT_INTERVAL_MS * 1_000_000L;
+    private volatile long maxLogBytes = DEFAULT_MAX_LOG_BYTES;
+    private volatile int pagesPerSecond = DEFAULT_PAGES_PER_SECOND;
+    private long lastCheckpointTime = System.nanoTime();
+    private long lastCheckpointEnd;   // end of the log when the last checkpoint started
+    private long checkpoints = 0;
+
+    public Checkpointer(BufferPoolShard[] shards, DiskScheduler disk_sch, LogManager log, FreeSpaceMap freeSpace) {
+        this.shards = shards;
+        this.disk_sch = disk_sch;
+        this.log = log;
+        this.freeSpace = freeSpace;
+        this.lastCheckpointEnd = log.getEndLsn();
+        backgroundThread = new Thread(this::startWorkerThread, "checkpointer");
+        backgroundThread.setDaemon(true); // shutdown checkpoints itself, an abandoned pool must not keep the JVM alive
+        backgroundThread.start();
+    }
+
+    public void setPolicy(long intervalMillis, long maxLogBytes, int pagesPerSecond) {
+        if (intervalMillis <= 0 || maxLogBytes <= 0 || pagesPerSecond <= 0) {
+            throw new IllegalArgumentException("intervalMillis, maxLogBytes and pagesPerSecond must be positive: "
+                    + intervalMillis + ", " + maxLogBytes + ", " + pagesPerSecond);
+        }
+        this.intervalNanos = intervalMillis * 1_000_000L;
+        this.maxLogBytes = maxLogBytes;
+        this.pagesPerSecond = pagesPerSecond;
+    }
+
+    public synchronized long getCheckpointCount() { return checkpoints; }
+
+    // Takes one checkpoint. Returns false when a page write failed meanwhile, the previous checkpoint then stays
+    // the one recovery starts from.
+    public synchronized boolean checkpoint() throws Exception {
+        long failedWrites = disk_sch.getFailedWriteCount();
+        long end = log.getEndLsn(); // every change logged before it has its page's rec_lsn set
+        lastCheckpointTime = System.nanoTime();
+        lastCheckpointEnd = end;
+
+        List<DiskRequest> writes = new ArrayList<>();
+        long start = System.nanoTime();
+        for (BufferPoolShard shard : shards) {
+            Map<Integer, Long> dirtyPages = new TreeMap<>(); // in page id order, so the disk can merge neighbours
+            shard.collectDirtyPages(dirtyPages);
+            for (Map.Entry<Integer, Long> entry : dirtyPages.entrySet()) {
+                if (entry.getValue() >= end) continue; // changed after the checkpoint began, the next one writes it
+                DiskRequest write_rqst = shard.checkpointPage(entry.getKey(), end);
+                if (write_rqst == null) continue;
+                writes.add(write_rqst);
+                pace(start, writes.size());
+            }
+        }
+        for (DiskRequest write_rqst : writes) {
+            try {
+                write_rqst.getCompletionFuture().get();
+            } catch (ExecutionException e) {
+                System.out.println("[Checkpointer] " + e.getCause()); // the shard has marked the page dirty again
+                return false;
+            }
+        }
+
+        // Every change logged before end is now on a page that still has a rec_lsn, or in a write queued before
+        // this scan, which the barrier waits for (e.g. an eviction, which clears rec_lsn when it is queued).
+        Map<Integer, Long> dirtyPages = new HashMap<>();
+        for (BufferPoolShard shard : shards) {
+            shard.collectDirtyPages(dirtyPages);
+        }
+        long redoLsn = end;
+        for (long recLsn : dirtyPages.values()) {
+            redoLsn = Math.min(redoLsn, recLsn);
+        }
+        disk_sch.barrier();
+        if (disk_sch.getFailedWriteCount() != failedWrites) {
+            System.out.println("[Checkpointer] a page write failed during the checkpoint, it is not recorded");
+            return false;
+        }
+        log.flushAll(); // the map's changes are logged too, their records go first
+        freeSpace.flush(disk_sch);
+        disk_sch.sync();
+        log.logCheckpoint(redoLsn, dirtyPages);
+        checkpoints++;
+        return true;
+    }
+
+    // keeps the checkpoint's writes under pagesPerSecond, so they do not crowd out the reads of the pool,
+    // once shutdown has begun the rest are issued at once
+    private void pace(long start, int issued) throws InterruptedException {
+        long wait = start + issued * 1_000_000_000L / pagesPerSecond - System.nanoTime();
+        if (wait <= 0) return;
+        synchronized (wakeup) {
+            if (!shutdown) TimeUnit.NANOSECONDS.timedWait(wakeup, wait);
+        }
+    }
+
+    private void startWorkerThread() {
+        while (true) {
+            try {
+                synchronized (wakeup) {
+                    if (!shutdown) wakeup.wait(CHECK_INTERVAL_MS);
+                }
+                if (shutdown) return;
+                boolean due;
+                synchronized (this) {
+                    due = System.nanoTime() - lastCheckpointTime >= intervalNanos
+                            || log.getEndLsn() - lastCheckpointEnd >= maxLogBytes;
+                }
+                if (due) checkpoint();
+            } catch (InterruptedException e) {
+                return; // nothing in the pool interrupts this thread
+            } catch (Exception e) {
+                System.out.println("[Checkpointer] " + e);
+            }
+        }
+    }
+
+    // Stops the background thread once a checkpoint it is taking has finished, unpaced from now on. The thread is
+    // never interrupted: it forces the data file and the log, and an interrupt during channel I/O closes the channel.
+    public void shutdown() {
+        synchronized (wakeup) {
+            shutdown = true;
+            wakeup.notifyAll();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                backgroundThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true; // the pool is shut down after this, the thread must be gone first
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+}
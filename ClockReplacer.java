@@ -0,0 +1,85 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntPredicate;
+
+// CLOCK (second chance) with lock-free bookkeeping: a hit only sets the frame's reference bit,
+// and the hand sweeps the frames clearing bits until it finds an evictable frame whose bit is already clear.
+// Victims are claimed with a CAS on the evictable flag, so no monitor is taken on any path.
+public class ClockReplacer implements Replacer {
+    private final int numFrames;
+    private final AtomicIntegerArray referenced; // 1 = accessed since the hand last passed
+    private final AtomicIntegerArray evictable;  // 1 = candidate for eviction
+    private final AtomicInteger hand = new AtomicInteger(0);
+    private final AtomicInteger currentSize = new AtomicInteger(0);
+
+    public ClockReplacer(int numFrames) {
+        this.numFrames = numFrames;
+        this.referenced = new AtomicIntegerArray(numFrames);
+        this.evictable = new AtomicIntegerArray(numFrames);
+    }
+
+    @Override
+    public void recordAccess(int frameId) {
+        checkFrame(frameId);
+        referenced.lazySet(frameId, 1);
+    }
+
+    @Override
+    public void setEvictable(int frameId, boolean isEvictable) {
+        checkFrame(frameId);
+        if (isEvictable) {
+            if (evictable.compareAndSet(frameId, 0, 1)) currentSize.incrementAndGet();
+        } else {
+            if (evictable.compareAndSet(frameId, 1, 0)) currentSize.decrementAndGet();
+        }
+    }
+
+    @Override
+    public boolean evict(int[] frameId) {
+        return evict(frameId, frame -> true);
+    }
+
+    @Override
+    public boolean evict(int[] frameId, IntPredicate preferred) {
+        int passedOver = 0; // victims skipped because they were not preferred
+        // three full turns: the first may only clear reference bits, the second may pass over frames that are
+        // not preferred, the third then takes any victim
+        for (int step = 0; step < 3 * numFrames + 1; step++) {
+            if (currentSize.get() == 0) return false;
+            int frame = Math.floorMod(hand.getAndIncrement(), numFrames);
+            if (evictable.get(frame) == 0) continue;
+            if (referenced.get(frame) == 1) {
+                referenced.set(frame, 0); // second chance
+                continue;
+            }
+            if (passedOver < PREFERRED_LOOKAHEAD && step < 2 * numFrames && !preferred.test(frame)) {
+                passedOver++; // stays unreferenced, so it is still a victim on the next turn
+                continue;
+            }
+            if (evictable.compareAndSet(frame, 1, 0)) {
+                currentSize.decrementAndGet();
+                frameId[0] = frame;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void remove(int frameId) {
+        checkFrame(frameId);
+        setEvictable(frameId, false);
+        referenced.set(frameId, 0);
+    }
+
+    @Override
+    public int size() {
+        return currentSize.get();
+    }
+
+    private void checkFrame(int frameId) {
+        if (frameId < 0 || frameId >= numFrames) {
+            throw new IllegalArgumentException("[ClockReplacer] invalid frame id: " + frameId);
+        }
+    }
+}
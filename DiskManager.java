@@ -1,56 +1,180 @@
-import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
 
+// Page I/O with positional FileChannel reads and writes. They do not move a shared file pointer, so no lock is
+// needed and the scheduler's workers can have many requests on the device at once. The file size is tracked
+// in memory instead of asked from the file system on every read.
+// Callers must not read and write the same page concurrently (the DiskScheduler serves one page from one worker).
+// The page size is a property of the file: page 0 starts with a file header (magic | pageSize) written when the file
+// is created, and every later open reads its page size from there. The free-space map keeps the header in its pages.
 public class DiskManager {
-    private static final int PAGE_SIZE = 4096;
-    private RandomAccessFile file=null;
+    public static final int FILE_MAGIC = 0x44424631; // "DBF1"
+    public static final int FILE_HEADER_SIZE = 8;
+    private static final ByteBuffer ZEROS = ByteBuffer.allocate(Page.MAX_PAGE_SIZE).asReadOnlyBuffer();
+    protected FileChannel file=null;
+    private final String fileName;
+    private final int pageSize;
+    protected final AtomicLong fileSize = new AtomicLong(0); // end of the last page written, not the length on disk
+    private final Object gatherLock = new Object(); // a gathering write starts at the channel's position, which is shared
 
     public DiskManager(String fileName){
+        this(fileName, 0);
+    }
+
+    // pageSize is used when the file is created, 0 for Page.DEFAULT_PAGE_SIZE. An existing file keeps the page size
+    // in its header, asking for another one is an error. A file without a header predates it and has 4 KB pages.
+    public DiskManager(String fileName, int pageSize){
+        if (pageSize != 0) checkPageSize(pageSize);
+        this.fileName = fileName;
+        int recorded = 0;
         try {
-            File f = new File(fileName);
-            if (!f.exists()) {
-                f.createNewFile();
-            }
-            file = new RandomAccessFile(f, "rw");
+            file = FileChannel.open(Path.of(fileName), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            fileSize.set(file.size());
+            recorded = readFileHeader();
         }
         catch(Exception e)
             {
                 System.out.println(e);
             }
+        if (recorded != 0 && pageSize != 0 && recorded != pageSize) {
+            throw new IllegalArgumentException("The file " + fileName + " has pages of " + recorded + " bytes, not " + pageSize);
+        }
+        this.pageSize = recorded != 0 ? recorded : pageSize != 0 ? pageSize : Page.DEFAULT_PAGE_SIZE;
+        if (recorded == 0 && fileSize.get() == 0) {
+            try {
+                // straight to the channel, a subclass is not built yet; page 0 is the free-space map's first header
+                // page, which keeps this header when it is written
+                ByteBuffer header = ByteBuffer.allocate(this.pageSize);
+                putFileHeader(header, this.pageSize);
+                writeFully(header, 0);
+                fileSize.set(this.pageSize);
+            }
+            catch (IOException e)
+            {
+                System.out.println(e);
+            }
+        }
     }
 
-    public synchronized void writePage(int pageId, byte[] data) throws IOException {
-        if (data.length > PAGE_SIZE) {
-            throw new IllegalArgumentException("Page size must be less than or equals: "+PAGE_SIZE);
+    public static void checkPageSize(int pageSize) {
+        if (pageSize < Page.MIN_PAGE_SIZE || pageSize > Page.MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1) {
+            throw new IllegalArgumentException("pageSize must be a power of two between " + Page.MIN_PAGE_SIZE
+                    + " and " + Page.MAX_PAGE_SIZE + ": " + pageSize);
         }
-        byte[] paddedData = new byte[PAGE_SIZE];
-        System.arraycopy(data, 0, paddedData, 0, data.length);
+    }
 
-        file.seek((long) pageId * PAGE_SIZE); //(offset within the file)
-        file.write(paddedData);
+    // writes the file header at the start of page, which goes to page 0
+    public static void putFileHeader(ByteBuffer page, int pageSize) {
+        page.putInt(0, FILE_MAGIC);
+        page.putInt(4, pageSize);
+    }
+
+    // the page size in the header of an existing file, the default for a file from before headers, 0 for a new file
+    private int readFileHeader() throws IOException {
+        if (fileSize.get() == 0) return 0;
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (file.read(header, header.position()) == -1) break;
+        }
+        if (header.position() < FILE_HEADER_SIZE || header.getInt(0) != FILE_MAGIC) return Page.DEFAULT_PAGE_SIZE;
+        int recorded = header.getInt(4);
+        checkPageSize(recorded);
+        return recorded;
+    }
+
+    public void writePage(int pageId, byte[] data) throws IOException {
+        writePage(pageId, ByteBuffer.wrap(data));
+    }
+
+    // writes data from index 0 to its limit, a buffer pool frame is written straight from its slice
+    public void writePage(int pageId, ByteBuffer data) throws IOException {
+        int length = data.limit();
+        if (length > pageSize) {
+            throw new IllegalArgumentException("Page size must be less than or equals: "+pageSize);
+        }
+        long offset = (long) pageId * pageSize; //(offset within the file)
+        writeFully(data.duplicate().position(0), offset); // a duplicate, the caller's position is left alone
+        if (length < pageSize) {
+            writeFully(ZEROS.duplicate().limit(pageSize - length), offset + length); // pad the page with zeros
+        }
+        fileSize.accumulateAndGet(offset + pageSize, Math::max);
     }
 
-    public synchronized void readPage(int pageId, byte[] buffer) throws IOException {
-        long offset = (long) pageId * PAGE_SIZE;
-        if (offset >= file.length()) {
+    // writes pages to consecutive page ids starting at firstPageId with one gathering write, each page from index 0
+    // and exactly pageSize long. Positional reads and writes do not use the channel's position, only other
+    // gathering writes wait for the lock.
+    public void writePages(int firstPageId, ByteBuffer[] pages) throws IOException {
+        ByteBuffer[] sources = new ByteBuffer[pages.length];
+        for (int i = 0; i < pages.length; i++) {
+            if (pages[i].limit() != pageSize) {
+                throw new IllegalArgumentException("Every page of a gathering write must be: "+pageSize);
+            }
+            sources[i] = pages[i].duplicate().position(0);
+        }
+        long offset = (long) firstPageId * pageSize;
+        synchronized (gatherLock) {
+            file.position(offset);
+            ByteBuffer last = sources[sources.length - 1];
+            while (last.hasRemaining()) {
+                file.write(sources); // may write less than asked, skips the sources already written
+            }
+        }
+        fileSize.accumulateAndGet(offset + (long) pages.length * pageSize, Math::max);
+    }
+
+    public void readPage(int pageId, byte[] buffer) throws IOException {
+        readPage(pageId, ByteBuffer.wrap(buffer));
+    }
+
+    // fills buffer from index 0 with pageSize bytes
+    public void readPage(int pageId, ByteBuffer buffer) throws IOException {
+        long offset = (long) pageId * pageSize;
+        long length = fileSize.get();
+        if (offset >= length) {
             throw new IllegalArgumentException("Offset Must be within the file length, offset = " + offset +
-                    "  File Length = "+file.length());
+                    "  File Length = "+length);
+        }
+
+        ByteBuffer target = buffer.duplicate().position(0).limit(pageSize);
+        while (target.hasRemaining()) {
+            int bytesRead = file.read(target, offset + target.position());
+            if (bytesRead == -1) break; // end of file
+        }
+        if (target.hasRemaining()) {
+            target.put(ZEROS.duplicate().limit(target.remaining())); // Pad rest with zeros
         }
+    }
 
-        file.seek(offset);
-        int bytesRead = file.read(buffer);
-        if (bytesRead < PAGE_SIZE) {
-            Arrays.fill(buffer, bytesRead, PAGE_SIZE, (byte) 0); // Pad rest with zeros
+    // a positional write may write less than asked, the rest is written at the next position
+    private void writeFully(ByteBuffer source, long offset) throws IOException {
+        long position = offset;
+        while (source.hasRemaining()) {
+            position += file.write(source, position);
         }
     }
 
-    public synchronized void shutdown() throws IOException {
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getFileSize() {
+        return fileSize.get();
+    }
+
+    // makes every write so far durable, called at flush points
+    public void sync() throws IOException {
+        file.force(false);
+    }
+
+    public void shutdown() throws IOException {
         file.close();
     }
 
-    public static int getPageSize() {
-        return PAGE_SIZE;
+    public int getPageSize() {
+        return pageSize;
     }
 }
@@ -1,17 +1,19 @@
+import java.nio.ByteBuffer;
 import java.util.concurrent.CompletableFuture;
 
 public class DiskRequest {
     public enum RequestType {
         READ,
-        WRITE
+        WRITE,
+        BARRIER // completes once every request queued on its worker before it is served
     }
 
     private final RequestType type;
     private final int pageId;
-    private final byte[] buffer;  // For write: data to write; for read: will be filled
+    private final ByteBuffer buffer;  // For write: data to write; for read: will be filled, a frame is used from index 0
     private final CompletableFuture<Void> completionFuture;
 
-    public DiskRequest(RequestType type, int pageId, byte[] buffer) {
+    public DiskRequest(RequestType type, int pageId, ByteBuffer buffer) {
         this.type = type;
         this.pageId = pageId;
         this.buffer = buffer;
@@ -20,6 +22,6 @@ public class DiskRequest {
 
     public RequestType getType() { return type; }
     public int getPageId() { return pageId; }
-    public byte[] getBuffer() { return buffer; }
+    public ByteBuffer getBuffer() { return buffer; }
     public CompletableFuture<Void> getCompletionFuture() { return completionFuture; }
 }
\ No newline at end of file
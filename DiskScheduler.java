@@ -1,57 +1,237 @@
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
+// Serves disk requests with a pool of worker threads so the device sees many requests at once.
+// Each page id is routed to one worker and a worker serves its queue in order, so the requests for one page
+// complete in the order they were scheduled, which the buffer pool relies on (a page's write is scheduled before
+// the read that brings it back).
+// Pages are routed in stripes of consecutive ids, so neighbouring pages share a worker. A worker drains its queue
+// in batches and holds the batch's writes back, sorted by page id: a page written twice is written once with its
+// latest image, and runs of adjacent pages go to the disk as one gathering write. A read of a held-back page
+// writes the held-back pages first.
+// With a LogManager attached, a page is only written once the log is durable up to the LSN in its trailer (the
+// WAL rule), so the disk never holds a change whose redo record could still be lost.
 public class DiskScheduler {
-    private final BlockingQueue<DiskRequest> requestQueue = new LinkedBlockingQueue<>();
-    private final Thread backgroundThread;
-    private volatile boolean shutdown = false;
-    private final DiskManager diskManager = new DiskManager("database.db");
+    public static final int DEFAULT_WORKERS = 16;
+    private static final int PAGES_PER_STRIPE = 16; // consecutive page ids served by one worker
+    private static final int MAX_BATCH = 64; // requests taken from a queue at once, bounds a merged write
+
+    private final List<BlockingQueue<DiskRequest>> requestQueues;
+    private final Thread[] workers;
+    private final AtomicIntegerArray outstanding; // per worker: queued requests plus the one being served
+    private final AtomicLong failedWrites = new AtomicLong(0);
+    private static final DiskRequest STOP = new DiskRequest(DiskRequest.RequestType.READ, -1, null); // queued last by shutdown
+    private final DiskManager diskManager;
+    private volatile LogManager logManager; // null until the buffer pool attaches its log
 
     public DiskScheduler() throws IOException {
-        backgroundThread = new Thread(this::startWorkerThread);
-        backgroundThread.start();
+        this(DEFAULT_WORKERS);
+    }
+
+    public DiskScheduler(int numWorkers) throws IOException {
+        this(numWorkers, new DiskManager("database.db"));
+    }
+
+    // diskManager picks the I/O backend, e.g. a MappedDiskManager for files that fit in memory
+    public DiskScheduler(int numWorkers, DiskManager diskManager) throws IOException {
+        this.diskManager = diskManager;
+        if (numWorkers < 1) {
+            throw new IllegalArgumentException("numWorkers must be at least 1: " + numWorkers);
+        }
+        requestQueues = new ArrayList<>(numWorkers);
+        workers = new Thread[numWorkers];
+        outstanding = new AtomicIntegerArray(numWorkers);
+        for (int i = 0; i < numWorkers; i++) {
+            BlockingQueue<DiskRequest> requestQueue = new LinkedBlockingQueue<>();
+            requestQueues.add(requestQueue);
+            final int worker = i;
+            workers[i] = new Thread(() -> startWorkerThread(worker, requestQueue), "disk-worker-" + i);
+            workers[i].start();
+        }
     }
 
-    public void schedule(DiskRequest request) {requestQueue.offer(request);} // Non-blocking enqueue
+    public void schedule(DiskRequest request) { // Non-blocking enqueue
+        int worker = Math.floorMod(Math.floorDiv(request.getPageId(), PAGES_PER_STRIPE), workers.length);
+        outstanding.incrementAndGet(worker);
+        requestQueues.get(worker).offer(request);
+    }
 
+    // Blocks until every request scheduled before the call has been served, on every worker.
+    public void barrier() {
+        CompletableFuture<?>[] served = new CompletableFuture<?>[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            DiskRequest barrier = new DiskRequest(DiskRequest.RequestType.BARRIER, -1, null);
+            outstanding.incrementAndGet(i);
+            requestQueues.get(i).offer(barrier);
+            served[i] = barrier.getCompletionFuture();
+        }
+        CompletableFuture.allOf(served).join();
+    }
+
+    // writes that failed so far, a change means some page's write was lost since the last look
+    public long getFailedWriteCount() {
+        return failedWrites.get();
+    }
 
-    private void startWorkerThread() {
-        while (!shutdown || !requestQueue.isEmpty()) {
+    public void setLogManager(LogManager logManager) {
+        this.logManager = logManager;
+    }
+
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    // requests waiting for or being served by each worker, a snapshot
+    public int[] getQueueDepths() {
+        int[] depths = new int[workers.length];
+        for (int i = 0; i < depths.length; i++) depths[i] = outstanding.get(i);
+        return depths;
+    }
+
+    private void startWorkerThread(int worker, BlockingQueue<DiskRequest> requestQueue) {
+        List<DiskRequest> batch = new ArrayList<>(MAX_BATCH);
+        TreeMap<Integer, List<DiskRequest>> heldWrites = new TreeMap<>(); // <PageID, writes in order, the last is the latest image>
+        while (true) {
             try {
-                DiskRequest request = requestQueue.take(); // blocks until available
-                if(request.getType() == DiskRequest.RequestType.READ)
-                {
-                    try{
-                        diskManager.readPage(request.getPageId(), request.getBuffer());
-                        request.getCompletionFuture().complete(null);
-                    } catch (Exception e) {
-                        request.getCompletionFuture().completeExceptionally(e);
-                    }
+                batch.add(requestQueue.take()); // blocks until available
+            } catch (InterruptedException e) {
+                continue; // only shutdown stops a worker, and only once its queue is served
+            }
+            requestQueue.drainTo(batch, MAX_BATCH - 1);
+            boolean stop = false;
+            for (DiskRequest request : batch) {
+                if (request == STOP) {
+                    stop = true;
+                    break;
                 }
-                else
-                {
-                    try{
-                        diskManager.writePage(request.getPageId(), request.getBuffer());
-                        request.getCompletionFuture().complete(null);
-                    } catch (Exception e) {
-                        request.getCompletionFuture().completeExceptionally(e);
-                    }
+                if (request.getType() == DiskRequest.RequestType.WRITE) {
+                    heldWrites.computeIfAbsent(request.getPageId(), pageId -> new ArrayList<>()).add(request);
+                    continue;
+                }
+                if (request.getType() == DiskRequest.RequestType.BARRIER) {
+                    writeHeld(worker, heldWrites);
+                    complete(worker, List.of(request), null);
+                    continue;
+                }
+                if (heldWrites.containsKey(request.getPageId())) {
+                    writeHeld(worker, heldWrites); // the read must see the writes scheduled before it
+                }
+                try {
+                    diskManager.readPage(request.getPageId(), request.getBuffer());
+                    complete(worker, List.of(request), null);
+                } catch (Exception e) {
+                    complete(worker, List.of(request), e);
                 }
-            } catch (InterruptedException e) {
-                if (shutdown) break;
             }
+            writeHeld(worker, heldWrites);
+            batch.clear();
+            if (stop) return;
         }
     }
 
+    // writes the latest image of every held-back page, runs of adjacent full pages with one call, and empties heldWrites
+    private void writeHeld(int worker, TreeMap<Integer, List<DiskRequest>> heldWrites) {
+        List<ByteBuffer> run = new ArrayList<>();
+        List<DiskRequest> runRequests = new ArrayList<>();
+        int firstPageId = 0;
+        for (Map.Entry<Integer, List<DiskRequest>> entry : heldWrites.entrySet()) {
+            int pageId = entry.getKey();
+            List<DiskRequest> writes = entry.getValue();
+            ByteBuffer latest = writes.get(writes.size() - 1).getBuffer();
+            boolean fullPage = latest.limit() == diskManager.getPageSize(); // a short page is padded, it is written alone
+            if (!run.isEmpty() && (pageId != firstPageId + run.size() || !fullPage)) {
+                writeRun(worker, firstPageId, run, runRequests);
+            }
+            if (run.isEmpty()) firstPageId = pageId;
+            run.add(latest);
+            runRequests.addAll(writes); // superseded images complete when the latest one lands
+            if (!fullPage) {
+                writeRun(worker, firstPageId, run, runRequests);
+            }
+        }
+        if (!run.isEmpty()) {
+            writeRun(worker, firstPageId, run, runRequests);
+        }
+        heldWrites.clear();
+    }
+
+    private void writeRun(int worker, int firstPageId, List<ByteBuffer> run, List<DiskRequest> runRequests) {
+        try {
+            LogManager log = logManager;
+            if (log != null) {
+                long lsn = 0;
+                int pageSize = diskManager.getPageSize();
+                for (ByteBuffer page : run) {
+                    if (page.limit() == pageSize) lsn = Math.max(lsn, page.getLong(Page.lsnOffset(pageSize)));
+                }
+                if (lsn > 0) log.flush(lsn); // shares the log writer's next force with every other waiter
+            }
+            if (run.size() == 1) {
+                diskManager.writePage(firstPageId, run.get(0));
+            }
+            else {
+                diskManager.writePages(firstPageId, run.toArray(new ByteBuffer[0]));
+            }
+            complete(worker, runRequests, null);
+        } catch (Exception e) {
+            failedWrites.incrementAndGet();
+            complete(worker, runRequests, e);
+        }
+        run.clear();
+        runRequests.clear();
+    }
+
+    private void complete(int worker, List<DiskRequest> requests, Exception error) {
+        outstanding.addAndGet(worker, -requests.size());
+        for (DiskRequest request : requests) {
+            if (error == null) request.getCompletionFuture().complete(null);
+            else request.getCompletionFuture().completeExceptionally(error);
+        }
+    }
+
+    // the page size of the file, see DiskManager
+    public int getPageSize() {
+        return diskManager.getPageSize();
+    }
+
+    // end of the last page written, see DiskManager.getFileSize
+    public long getFileSize() {
+        return diskManager.getFileSize();
+    }
+
+    // the file the pages are stored in, the write-ahead log is kept next to it
+    public String getFileName() {
+        return diskManager.getFileName();
+    }
+
+    // makes the writes completed so far durable, callers wait for the writes they need first
+    public void sync() throws IOException {
+        diskManager.sync();
+    }
+
+    // serves every request already scheduled, then stops the workers
     public void shutdown() {
-        shutdown = true;
-        backgroundThread.interrupt(); // Wake the thread if blocked
+        for (BlockingQueue<DiskRequest> requestQueue : requestQueues) {
+            requestQueue.offer(STOP);
+        }
         try {
-            backgroundThread.join();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            diskManager.shutdown();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println(e);
         }
     }
 }
@@ -0,0 +1,129 @@
+import java.io.*;
+import java.util.*;
+
+// External merge sort for the bulk loader's unsorted input. Entries are read runSize at a time, each run is sorted
+// in memory and spilled to a temporary file, then the runs are merged through a priority queue, so memory stays
+// at one run plus one buffered entry per run. Input that fits in one run is never written out.
+// The run buffer starts small and doubles up to runSize as entries arrive, so small input gets a small buffer.
+// Keys and values are ints (the only types pages serialize), packed as key << 32 | value so a run sorts as a long[].
+public class ExternalSorter {
+    public static final int DEFAULT_RUN_SIZE = 1 << 20;
+    private static final int INITIAL_RUN_BUFFER = 1 << 12;
+
+    public static Iterator<Map.Entry<Integer, Integer>> sort(Iterator<Map.Entry<Integer, Integer>> entries, int runSize)
+            throws IOException {
+        if (runSize <= 0) {
+            throw new IllegalArgumentException("runSize must be positive: " + runSize);
+        }
+        long[] run = new long[Math.min(runSize, INITIAL_RUN_BUFFER)];
+        List<File> runFiles = new ArrayList<>();
+        try {
+            while (true) {
+                int size = 0;
+                while (size < runSize && entries.hasNext()) {
+                    if (size == run.length) {
+                        run = Arrays.copyOf(run, (int) Math.min(runSize, 2L * run.length));
+                    }
+                    Map.Entry<Integer, Integer> entry = entries.next();
+                    run[size++] = ((long) entry.getKey() << 32) | (entry.getValue() & 0xFFFFFFFFL);
+                }
+                Arrays.sort(run, 0, size);
+                if (!entries.hasNext() && runFiles.isEmpty()) {
+                    return new ArrayRun(run, size); // a single run, no need to touch the disk
+                }
+                if (size > 0) runFiles.add(spill(run, size));
+                if (!entries.hasNext()) break;
+            }
+            return new Merge(runFiles);
+        }
+        catch (IOException | RuntimeException e) {
+            for (File file : runFiles) file.delete();
+            throw e;
+        }
+    }
+
+    private static File spill(long[] run, int size) throws IOException {
+        File file = File.createTempFile("bulkload-run", ".tmp");
+        file.deleteOnExit(); // in case the merge is abandoned before it drains the file
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            for (int i = 0; i < size; i++) {
+                out.writeLong(run[i]);
+            }
+        }
+        return file;
+    }
+
+    private static Map.Entry<Integer, Integer> unpack(long packed) {
+        return new AbstractMap.SimpleImmutableEntry<>((int) (packed >> 32), (int) packed);
+    }
+
+    private static class ArrayRun implements Iterator<Map.Entry<Integer, Integer>> {
+        private final long[] run;
+        private final int size;
+        private int next = 0;
+
+        ArrayRun(long[] run, int size) {
+            this.run = run;
+            this.size = size;
+        }
+
+        public boolean hasNext() { return next < size; }
+
+        public Map.Entry<Integer, Integer> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return unpack(run[next++]);
+        }
+    }
+
+    // One spilled run being read back, head is its smallest unread entry.
+    private static class RunReader {
+        final File file;
+        final DataInputStream in;
+        long head;
+        long remaining;
+
+        RunReader(File file) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            this.remaining = file.length() / Long.BYTES;
+        }
+
+        // moves to the next entry, false (and the file is gone) once the run is drained
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                in.close();
+                file.delete();
+                return false;
+            }
+            head = in.readLong();
+            remaining--;
+            return true;
+        }
+    }
+
+    private static class Merge implements Iterator<Map.Entry<Integer, Integer>> {
+        private final PriorityQueue<RunReader> queue = new PriorityQueue<>(Comparator.comparingLong(r -> r.head));
+
+        Merge(List<File> runFiles) throws IOException {
+            for (File file : runFiles) {
+                RunReader reader = new RunReader(file);
+                if (reader.advance()) queue.add(reader);
+            }
+        }
+
+        public boolean hasNext() { return !queue.isEmpty(); }
+
+        public Map.Entry<Integer, Integer> next() {
+            RunReader reader = queue.poll();
+            if (reader == null) throw new NoSuchElementException();
+            long packed = reader.head;
+            try {
+                if (reader.advance()) queue.add(reader);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("[ExternalSorter] reading run " + reader.file, e);
+            }
+            return unpack(packed);
+        }
+    }
+}
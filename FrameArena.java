@@ -0,0 +1,38 @@
+import java.nio.ByteBuffer;
+
+// The buffer pool's frames, allocated once off-heap when the pool is built and kept for its lifetime.
+// Frame i is the fixed slice [i * pageSize, (i + 1) * pageSize), so frames never move, are never collected
+// and the disk can read into or write from them without an intermediate copy.
+// A direct buffer is indexed by int, so the arena is cut into chunks of at most 1 GB.
+public class FrameArena {
+    private final ByteBuffer[] chunks;
+    private final int numFrames;
+    private final int pageSize;
+    private final int framesPerChunk;
+
+    public FrameArena(int numFrames, int pageSize) {
+        if (numFrames < 1) {
+            throw new IllegalArgumentException("numFrames must be at least 1: " + numFrames);
+        }
+        this.numFrames = numFrames;
+        this.pageSize = pageSize;
+        this.framesPerChunk = (1 << 30) / pageSize;
+        chunks = new ByteBuffer[(numFrames + framesPerChunk - 1) / framesPerChunk];
+        for (int i = 0; i < chunks.length; i++) {
+            int frames = Math.min(framesPerChunk, numFrames - i * framesPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(frames * pageSize);
+        }
+    }
+
+    // a new view of frame index, every view of one frame shares its memory
+    public ByteBuffer frame(int index) {
+        if (index < 0 || index >= numFrames) {
+            throw new IndexOutOfBoundsException("frame " + index + " of " + numFrames);
+        }
+        return chunks[index / framesPerChunk].slice((index % framesPerChunk) * pageSize, pageSize);
+    }
+
+    public int getFrameCount() {
+        return numFrames;
+    }
+}
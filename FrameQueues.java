@@ -0,0 +1,123 @@
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+// The resident queues of a replacer (2Q's A1in and Am, ARC's T1 and T2) over a fixed number of frames, with no
+// allocation or boxing after construction. A frame is in at most one queue, ordered by the stamp it got when it
+// last joined or moved to the tail. Only evictable frames are linked, in intrusive doubly linked lists over int
+// arrays indexed by frame id, so a victim is found without walking past pinned frames. A frame that becomes
+// evictable again is linked back at its stamp's position, found from the tail: the pool records an access when it
+// pins a frame, so few frames are newer by the time it is unpinned.
+public class FrameQueues {
+    public static final int NONE = -1;
+
+    private final int[] queue;  // queue of each frame, NONE when it is in none
+    private final long[] stamp; // order within the queue, larger is newer
+    private final int[] prev;   // neighbours in the queue's list of evictable frames, NONE at the ends and when unlinked
+    private final int[] next;
+    private final boolean[] isEvictable;
+    private final int[] head;   // oldest evictable frame of each queue
+    private final int[] tail;   // newest evictable frame of each queue
+    private final int[] size;   // frames in each queue, evictable or not
+    private int evictableCount;
+    private long clock = 0;
+
+    public FrameQueues(int numFrames, int numQueues) {
+        this.queue = new int[numFrames];
+        this.stamp = new long[numFrames];
+        this.prev = new int[numFrames];
+        this.next = new int[numFrames];
+        this.isEvictable = new boolean[numFrames];
+        this.head = new int[numQueues];
+        this.tail = new int[numQueues];
+        this.size = new int[numQueues];
+        Arrays.fill(queue, NONE);
+        Arrays.fill(prev, NONE);
+        Arrays.fill(next, NONE);
+        Arrays.fill(head, NONE);
+        Arrays.fill(tail, NONE);
+    }
+
+    public int queueOf(int frameId) {
+        return queue[frameId];
+    }
+
+    // frames in the queue, pinned ones included
+    public int size(int q) {
+        return size[q];
+    }
+
+    public int evictableCount() {
+        return evictableCount;
+    }
+
+    // puts the frame at the tail of q, whichever queue it was in
+    public void moveToTail(int frameId, int q) {
+        leave(frameId);
+        queue[frameId] = q;
+        stamp[frameId] = ++clock;
+        size[q]++;
+        if (isEvictable[frameId]) append(frameId, q);
+    }
+
+    // takes the frame out of its queue, it stays evictable or not
+    public void leave(int frameId) {
+        int q = queue[frameId];
+        if (q == NONE) return;
+        if (isEvictable[frameId]) unlink(frameId, q);
+        queue[frameId] = NONE;
+        size[q]--;
+    }
+
+    // returns whether the flag changed
+    public boolean setEvictable(int frameId, boolean evictable) {
+        if (evictable == isEvictable[frameId]) return false;
+        isEvictable[frameId] = evictable;
+        evictableCount += evictable ? 1 : -1;
+        int q = queue[frameId];
+        if (q != NONE) {
+            if (evictable) insert(frameId, q);
+            else unlink(frameId, q);
+        }
+        return true;
+    }
+
+    // oldest evictable frame of q, or the oldest preferred one among its first lookahead evictable frames; NONE when
+    // the queue has no evictable frame
+    public int first(int q, IntPredicate preferred, int lookahead) {
+        int seen = 0;
+        for (int frame = head[q]; frame != NONE && seen < lookahead; frame = next[frame], seen++) {
+            if (preferred.test(frame)) return frame;
+        }
+        return head[q];
+    }
+
+    private void append(int frameId, int q) {
+        prev[frameId] = tail[q];
+        next[frameId] = NONE;
+        if (tail[q] == NONE) head[q] = frameId;
+        else next[tail[q]] = frameId;
+        tail[q] = frameId;
+    }
+
+    // links the frame after the newest evictable frame that is older than it
+    private void insert(int frameId, int q) {
+        int after = tail[q];
+        while (after != NONE && stamp[after] > stamp[frameId]) after = prev[after];
+        int before = after == NONE ? head[q] : next[after];
+        prev[frameId] = after;
+        next[frameId] = before;
+        if (after == NONE) head[q] = frameId;
+        else next[after] = frameId;
+        if (before == NONE) tail[q] = frameId;
+        else prev[before] = frameId;
+    }
+
+    private void unlink(int frameId, int q) {
+        if (prev[frameId] == NONE) head[q] = next[frameId];
+        else next[prev[frameId]] = next[frameId];
+        if (next[frameId] == NONE) tail[q] = prev[frameId];
+        else prev[next[frameId]] = prev[frameId];
+        prev[frameId] = NONE;
+        next[frameId] = NONE;
+    }
+}
@@ -0,0 +1,174 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.stream.IntStream;
+
+// Page allocator backed by a free-space bitmap stored in the database file. The file is cut into groups of
+// groupPages pages and the first page of each group is its header page, holding one bit per page of the group
+// (set while the page is allocated), so the map grows with the file and never moves. A header page starts with
+// the file header (see DiskManager), so page 0 keeps the file's page size.
+// Pages are handed out from aligned extents of EXTENT_PAGES pages: a page allocated near another one (the new
+// sibling of a split) goes into the same extent when it has room, otherwise into an extent nobody uses yet, so
+// siblings stay physically adjacent. Freed pages are reused before the file grows.
+// The bitmap is kept in memory and its changed header pages are written at flush points. Every allocation and free
+// is also logged, so recovery brings the map up to date from the log.
+public class FreeSpaceMap {
+    public static final int EXTENT_PAGES = 8;
+    private static final int MAGIC = 0x46534D32; // "FSM2"
+    private static final int MAGIC_OFFSET = DiskManager.FILE_HEADER_SIZE;
+    private static final int GROUP_OFFSET = MAGIC_OFFSET + 4;
+    private static final int HEADER_SIZE = GROUP_OFFSET + 4; // file header, magic, group index
+
+    private final int pageSize;
+    private final int groupPages; // a whole number of extents
+
+    private final BitSet allocated = new BitSet();
+    private final BitSet dirtyGroups = new BitSet(); // groups whose header page changed since the last flush
+    private int freeExtentHint = 0; // no extent below this one is wholly free
+    private LogManager logManager; // null while recovery replays the log
+
+    // a fresh map for an empty file
+    public FreeSpaceMap(int pageSize) {
+        this.pageSize = pageSize;
+        this.groupPages = (Page.usableSize(pageSize) - HEADER_SIZE) * 8;
+        reserveGroup(0);
+    }
+
+    // Reads the header pages of an existing file. A file without a valid first header page (empty, or written
+    // before the map existed) starts a fresh map.
+    public static FreeSpaceMap load(DiskScheduler disk_sch) throws Exception {
+        int pageSize = disk_sch.getPageSize();
+        FreeSpaceMap map = new FreeSpaceMap(pageSize);
+        long pagesOnDisk = disk_sch.getFileSize() / pageSize;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(pageSize);
+        for (int group = 0; (long) group * map.groupPages < pagesOnDisk; group++) {
+            int headerPageId = group * map.groupPages;
+            DiskRequest read_rqst = new DiskRequest(DiskRequest.RequestType.READ, headerPageId, buffer);
+            disk_sch.schedule(read_rqst);
+            read_rqst.getCompletionFuture().get();
+            if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(GROUP_OFFSET) != group) {
+                if (group == 0) return map; // not a file this map was stored in
+                map.reserveGroup(group); // never flushed, nothing of the group was allocated at the last flush point
+                continue;
+            }
+            for (int i = 0; i < map.groupPages; i++) {
+                if ((buffer.get(HEADER_SIZE + i / 8) & (1 << (i % 8))) != 0) {
+                    map.allocated.set(headerPageId + i);
+                }
+            }
+        }
+        map.dirtyGroups.clear();
+        return map;
+    }
+
+    public synchronized void setLogManager(LogManager logManager) {
+        this.logManager = logManager;
+    }
+
+    // Allocates a page, near nearPageId when it is not -1: the first free page after it in its extent, else a wholly
+    // free extent. Without a hint, or when no extent is free, the lowest free page is taken, past the end if none is.
+    public synchronized int allocate(int nearPageId) {
+        while (true) {
+            int pageId = -1;
+            if (nearPageId >= 0) {
+                int extentEnd = extentStart(nearPageId) + EXTENT_PAGES;
+                int next = allocated.nextClearBit(nearPageId + 1);
+                pageId = next < extentEnd ? next : freeExtent();
+            }
+            if (pageId == -1) {
+                pageId = allocated.nextClearBit(0);
+            }
+            int group = pageId / groupPages;
+            if (!allocated.get(group * groupPages)) {
+                reserveGroup(group); // the first page of a new group, its header page comes first
+                continue;
+            }
+            allocated.set(pageId);
+            dirtyGroups.set(group);
+            if (logManager != null) logManager.logAllocation(LogManager.ALLOCATE, pageId); // in the map's order
+            return pageId;
+        }
+    }
+
+    public synchronized void free(int pageId) {
+        if (pageId % groupPages == 0) {
+            throw new IllegalArgumentException("Page " + pageId + " is a free-space map header page");
+        }
+        allocated.clear(pageId);
+        dirtyGroups.set(pageId / groupPages);
+        freeExtentHint = Math.min(freeExtentHint, extentStart(pageId));
+        if (logManager != null) logManager.logAllocation(LogManager.FREE, pageId);
+    }
+
+    // recovery: the log says pageId was allocated
+    public synchronized void redoAllocate(int pageId) {
+        int group = pageId / groupPages;
+        if (!allocated.get(group * groupPages)) reserveGroup(group);
+        allocated.set(pageId);
+        dirtyGroups.set(group);
+    }
+
+    public synchronized boolean isAllocated(int pageId) {
+        return allocated.get(pageId);
+    }
+
+    // every allocated page, header pages included, a snapshot
+    public synchronized IntStream allocatedPages() {
+        return ((BitSet) allocated.clone()).stream();
+    }
+
+    public synchronized int getAllocatedCount() {
+        return allocated.cardinality();
+    }
+
+    // Writes the header pages changed since the last flush and waits for them, the caller syncs the file after.
+    // Runs after the pool's own pages are written, so a page marked allocated on disk has been written too.
+    public void flush(DiskScheduler disk_sch) throws Exception {
+        List<DiskRequest> writes = new ArrayList<>();
+        synchronized (this) {
+            for (int group = dirtyGroups.nextSetBit(0); group >= 0; group = dirtyGroups.nextSetBit(group + 1)) {
+                ByteBuffer header = ByteBuffer.allocateDirect(pageSize);
+                DiskManager.putFileHeader(header, pageSize);
+                header.putInt(MAGIC_OFFSET, MAGIC);
+                header.putInt(GROUP_OFFSET, group);
+                int first = group * groupPages;
+                for (int pageId = allocated.nextSetBit(first); pageId >= 0 && pageId < first + groupPages;
+                     pageId = allocated.nextSetBit(pageId + 1)) {
+                    int i = pageId - first;
+                    header.put(HEADER_SIZE + i / 8, (byte) (header.get(HEADER_SIZE + i / 8) | (1 << (i % 8))));
+                }
+                DiskRequest write_rqst = new DiskRequest(DiskRequest.RequestType.WRITE, first, header);
+                disk_sch.schedule(write_rqst);
+                writes.add(write_rqst);
+            }
+            dirtyGroups.clear();
+        }
+        for (DiskRequest write_rqst : writes) {
+            write_rqst.getCompletionFuture().get();
+        }
+    }
+
+    // must hold the monitor, the first wholly free extent below the end of the map, -1 when there is none
+    private int freeExtent() {
+        int end = allocated.length();
+        for (int extent = freeExtentHint; extent < end; extent += EXTENT_PAGES) {
+            int next = allocated.nextSetBit(extent);
+            if (next == -1 || next >= extent + EXTENT_PAGES) {
+                freeExtentHint = extent;
+                return extent;
+            }
+        }
+        freeExtentHint = extentStart(end);
+        return -1;
+    }
+
+    private void reserveGroup(int group) {
+        allocated.set(group * groupPages);
+        dirtyGroups.set(group);
+    }
+
+    private static int extentStart(int pageId) {
+        return pageId - pageId % EXTENT_PAGES;
+    }
+}
@@ -0,0 +1,169 @@
+import java.nio.ByteBuffer;
+
+// InternalPage over int keys, the counterpart of IntLeafPage: separators live in an int[], so binary search, shifts
+// and splits compare and copy plain ints. keyAt boxes the separator it returns, like IntLeafPage's accessors.
+// Keys are 1-based like InternalPage, a null key clears the slot.
+public class IntInternalPage extends InternalPage<Integer> {
+    private int[] keys;
+    private int[] pageIds;
+
+    @Override
+    public void init(int maxSize, int ID) {
+        setPageType(Types.PageType.INTERNAL_PAGE);
+        setMaxSize(maxSize);
+        setSize(0);
+        setPageID(ID);
+        // keys are 1-based and one spare slot lets an overflowing insert happen before the split
+        this.keys = new int[maxSize + 2];
+        this.pageIds = new int[maxSize + 2];
+    }
+
+    @Override
+    public Integer keyAt(int index) { return keys[index]; }
+
+    @Override
+    public void setKeyAt(int index, Integer key) { keys[index] = key == null ? 0 : key; }
+
+    @Override
+    public int valueAt(int index) { return pageIds[index]; }
+
+    @Override
+    public void setValueAt(int index, int value) { pageIds[index] = value; }
+
+    @Override
+    public int valueIndex(int value) {
+        for (int i = 0; i <= getSize(); i++) {
+            if (pageIds[i] == value) return i;
+        }
+        return -1;
+    }
+
+    // may leave the page one entry over maxSize, the caller splits it
+    @Override
+    public boolean insertEntry(Integer key, int rightPageId) {
+        if (getSize() > getMaxSize()) {
+            return false;
+        }
+        int k = key;
+        int size = getSize();
+        int pos = 1;
+        while (pos <= size && k > keys[pos]) pos++;
+
+        System.arraycopy(keys, pos, keys, pos + 1, size - pos + 1);
+        System.arraycopy(pageIds, pos, pageIds, pos + 1, size - pos + 1);
+        keys[pos] = k;
+        pageIds[pos] = rightPageId;
+        setSize(size + 1);
+        return true;
+    }
+
+    @Override
+    public boolean removeEntry(int keyIndex) {
+        int size = getSize();
+        if (keyIndex < 1 || keyIndex > size) {
+            return false;
+        }
+        System.arraycopy(keys, keyIndex + 1, keys, keyIndex, size - keyIndex);
+        System.arraycopy(pageIds, keyIndex + 1, pageIds, keyIndex, size - keyIndex);
+        pageIds[size] = -1;
+        keys[size] = 0;
+        setSize(size - 1);
+        return true;
+    }
+
+    @Override
+    public int binarySearch(Integer key) {
+        int k = key;
+        int low = 1;
+        int high = this.getSize();
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (k < keys[mid]) {
+                high = mid - 1;
+            } else if (k > keys[mid]) {
+                low = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return low - 1; // the child left of the first key greater than the search key
+    }
+
+    @Override
+    public Integer splitInternalPage(InternalPage<Integer> newInternal) {
+        int totalSize = this.getSize();
+        int mid = (totalSize + 1) / 2;
+        int midKey = keys[mid]; // moves up, neither half keeps it
+
+        for (int i = mid + 1, j = 1; i <= totalSize; i++, j++) {
+            newInternal.setKeyAt(j, keys[i]);
+        }
+        for (int i = mid, j = 0; i <= totalSize; i++, j++) {
+            newInternal.setValueAt(j, pageIds[i]);
+        }
+
+        // this page keeps keys 1..mid-1 and children 0..mid-1
+        newInternal.setSize(totalSize - mid);
+        this.setSize(mid - 1);
+        return midKey;
+    }
+
+    // boxed copy for printing, slot 0 and the unused slots stay null as in InternalPage
+    @Override
+    public Integer[] getKeys() {
+        Integer[] boxed = new Integer[keys.length];
+        for (int i = 1; i <= getSize(); i++) boxed[i] = keys[i];
+        return boxed;
+    }
+
+    @Override
+    public int[] getPageIDs() { return pageIds; }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("the size is: "+this.size
+                + "\n PageID: "+this.getPageID()
+                +"\n MaxSize: " +this.maxSize +"(");
+        sb.append("Keys:  ");
+        for (int i = 1; i <= getSize(); i++) {
+            sb.append(keys[i] + " ");
+        }
+        sb.append("IDs: ");
+        for (int i = 0; i <= getSize(); i++) {
+            sb.append(pageIds[i] + " ");
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public byte[] toBytes() {
+        int n = this.getSize();
+        ByteBuffer buffer = ByteBuffer.allocate((4*4) + (n * 4) + ((n + 1) * 4)); // header + keys + pageIds
+        buffer.putInt(INTERNAL_PAGE_TYPE);
+        buffer.putInt(this.getPageID());
+        buffer.putInt(n);
+        buffer.putInt(this.getMaxSize());
+        for (int i = 1; i <= n; i++) {
+            buffer.putInt(keys[i]);
+        }
+        for (int i = 0; i <= n; i++) {
+            buffer.putInt(pageIds[i]);
+        }
+        return buffer.array();
+    }
+
+    @Override
+    public void fromBytes(ByteBuffer buffer) {
+        int id = buffer.getInt();
+        int size = buffer.getInt();
+        int maxSize = buffer.getInt();
+        this.init(maxSize, id);
+        this.setSize(size);
+        for (int i = 1; i <= size; i++) {
+            keys[i] = buffer.getInt();
+        }
+        for (int i = 0; i <= size; i++) {
+            pageIds[i] = buffer.getInt();
+        }
+    }
+}
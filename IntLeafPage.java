@@ -0,0 +1,170 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// LeafPage over int keys and rids, the only types a page serializes: entries live in int[] arrays, so a decoded
+// leaf holds no boxed objects and its searches, shifts, splits and (de)serialization compare and copy plain ints.
+// The tree reaches it through the generic LeafPage accessors, which box the keys and rids they return; the tree's
+// int fast paths (lookups, in-place inserts and removes) read frames through LeafPageView and decode no page at all.
+// A null key or rid clears the slot.
+public class IntLeafPage extends LeafPage<Integer, Integer> {
+    private int[] keys;
+    private int[] rids;
+
+    @Override
+    public void init(int maxSize, int ID) {
+        setPageType(Types.PageType.LEAF_PAGE);
+        setMaxSize(maxSize);
+        setSize(0);
+        setPageID(ID);
+        this.keys = new int[maxSize + 1]; // one spare slot lets an overflowing insert happen before the split
+        this.rids = new int[maxSize + 1];
+        nextPageId = -1;
+    }
+
+    @Override
+    public Integer keyAt(int index) { return keys[index]; }
+
+    @Override
+    public void setKeyAt(int index, Integer key) { keys[index] = key == null ? 0 : key; }
+
+    @Override
+    public Integer valueAt(int index) { return rids[index]; }
+
+    @Override
+    public void setValueAt(int index, Integer value) { rids[index] = value == null ? 0 : value; }
+
+    @Override
+    public int search(Integer key) {
+        int k = key;
+        int low = 0;
+        int high = getSize() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (k > keys[mid]) {
+                low = mid + 1;
+            } else if (k < keys[mid]) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public int valueIndex(Integer value) {
+        for (int i = 0; i < getSize(); i++) {
+            if (rids[i] == value) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public Integer[] getKeyArray() {
+        Integer[] boxed = new Integer[keys.length];
+        for (int i = 0; i < getSize(); i++) boxed[i] = keys[i];
+        return boxed;
+    }
+
+    @Override
+    public Integer[] getValueArray() {
+        Integer[] boxed = new Integer[rids.length];
+        for (int i = 0; i < getSize(); i++) boxed[i] = rids[i];
+        return boxed;
+    }
+
+    @Override
+    public void setKeyArray(Integer[] keyArray) {
+        for (int i = 0; i < keyArray.length; i++) setKeyAt(i, keyArray[i]);
+    }
+
+    @Override
+    public void setValueArray(Integer[] valueArray) {
+        for (int i = 0; i < valueArray.length; i++) setValueAt(i, valueArray[i]);
+    }
+
+    @Override
+    public IntLeafPage splitLeafPage(int newLeafId) {
+        int mid = this.getSize() / 2;
+        int total = this.getSize();
+        IntLeafPage newLeaf = new IntLeafPage();
+        newLeaf.init(this.getMaxSize(), newLeafId);
+
+        System.arraycopy(keys, mid, newLeaf.keys, 0, total - mid);
+        System.arraycopy(rids, mid, newLeaf.rids, 0, total - mid);
+        Arrays.fill(keys, mid, total, 0);
+        Arrays.fill(rids, mid, total, 0);
+
+        newLeaf.setSize(total - mid);
+        this.setSize(mid);
+
+        newLeaf.setNextPageId(this.getNextPageId());
+        this.setNextPageId(newLeafId);
+        return newLeaf;
+    }
+
+    @Override
+    public void insertAt(int index, Integer key, Integer value) {
+        int size = getSize();
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(rids, index, rids, index + 1, size - index);
+        keys[index] = key;
+        rids[index] = value;
+        this.size++;
+    }
+
+    @Override
+    public void removeAt(int index) {
+        int size = getSize();
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(rids, index + 1, rids, index, size - index - 1);
+        keys[size - 1] = 0;
+        rids[size - 1] = 0;
+        setSize(size - 1);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("the size is: "+this.size
+                                            + "\n PageID: "+this.getPageID()
+                                             +"\n nextID: "+this.nextPageId
+                                            +"\n MaxSize: " +this.maxSize +"(");
+        for (int i = 0; i < getSize(); i++) {
+            sb.append("(" + keys[i] + "," + rids[i] + ")");
+            if (i != getSize() - 1) sb.append(",");
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+
+    @Override
+    public byte[] toBytes() {
+        int numEntries = this.getSize();
+        ByteBuffer buffer = ByteBuffer.allocate((4*5) + (numEntries * 8)); // type + ID + size + maxSize + nextID + pairs
+        buffer.putInt(LeafPageView.LEAF_PAGE_TYPE);
+        buffer.putInt(this.getPageID());
+        buffer.putInt(numEntries);
+        buffer.putInt(this.maxSize);
+        buffer.putInt(this.nextPageId);
+        for (int i = 0; i < numEntries; i++) {
+            buffer.putInt(keys[i]);
+            buffer.putInt(rids[i]);
+        }
+        return buffer.array();
+    }
+
+    @Override
+    public void fromBytes(ByteBuffer buffer) {
+        int pageID = buffer.getInt();
+        int numEntries = buffer.getInt();
+        int maxSize = buffer.getInt();
+        int nextPageId = buffer.getInt();
+        this.init(maxSize, pageID);
+        this.setSize(numEntries);
+        this.setNextPageId(nextPageId);
+        for (int i = 0; i < numEntries; i++) {
+            keys[i] = buffer.getInt();
+            rids[i] = buffer.getInt();
+        }
+    }
+}
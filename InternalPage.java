@@ -2,9 +2,21 @@ import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Stack;
 import java.nio.ByteBuffer;
+// An internal page decoded from its page, fixed int layout without a codec, SlottedPage layout with one.
 public class InternalPage<Key extends Comparable<Key>> extends BPlusTreePage {
     private Key[] keyArray;
     private int[] pageIdArray;
+    private KeyCodec<Key> keyCodec;     // null for the fixed layout
+    private int capacity;               // usable bytes of a page of the file
+    private byte[][] keyBytes;          // encoded keys, filled lazily and dropped when the key changes
+
+    // selects the variable-length format for pages of capacity usable bytes, called before init
+    public void setCodec(KeyCodec<Key> keyCodec, int capacity) {
+        this.keyCodec = keyCodec;
+        this.capacity = capacity;
+    }
+
+    public boolean isVariableLength() { return keyCodec != null; }
 
     @SuppressWarnings("unchecked")
     public void init(int maxSize, int ID) {
@@ -12,9 +24,10 @@ public class InternalPage<Key extends Comparable<Key>> extends BPlusTreePage {
         setMaxSize(maxSize);
         setSize(0);
         setPageID(ID);
-        // Initialize arrays
-        this.keyArray = (Key[]) new Comparable[maxSize];
-        this.pageIdArray = new int[maxSize + 1];
+        // Initialize arrays, keys are 1-based and one spare slot lets an overflowing insert happen before the split
+        this.keyArray = (Key[]) new Comparable[maxSize + 2];
+        this.pageIdArray = new int[maxSize + 2];
+        if (isVariableLength()) this.keyBytes = new byte[maxSize + 2][];
     }
 
     public Key keyAt(int index) {
@@ -23,6 +36,7 @@ public class InternalPage<Key extends Comparable<Key>> extends BPlusTreePage {
 
     public void setKeyAt(int index, Key key) {
         keyArray[index] = key;
+        if (keyBytes != null) keyBytes[index] = null;
     }
 
     public int valueAt(int index) {
@@ -40,8 +54,9 @@ public class InternalPage<Key extends Comparable<Key>> extends BPlusTreePage {
         return -1;
     }
 
+    // may leave the page one entry over maxSize, the caller splits it
     public boolean insertEntry(Key key, int rightPageId) {
-        if (getSize() >= getMaxSize()) {
+        if (getSize() > getMaxSize()) {
             return false;
         }
 
@@ -55,11 +70,12 @@ public class InternalPage<Key extends Comparable<Key>> extends BPlusTreePage {
         for (int i = getSize(); i >= pos; i--) {
             keyArray[i + 1] = keyArray[i];
         }
+        if (keyBytes != null) System.arraycopy(keyBytes, pos, keyBytes, pos + 1, getSize() - pos + 1);
         for (int i = getSize() + 1; i >= pos + 1; i--) {
             pageIdArray[i] = pageIdArray[i - 1];
         }
 
-        keyArray[pos] = key;
+        setKeyAt(pos, key);
         pageIdArray[pos] = rightPageId;
 
         setSize(getSize() + 1);
@@ -74,18 +90,20 @@ public class InternalPage<Key extends Comparable<Key>> extends BPlusTreePage {
         for (int i = keyIndex; i<getSize(); i++) {
             keyArray[i] = keyArray[i + 1];
         }
+        if (keyBytes != null) System.arraycopy(keyBytes, keyIndex + 1, keyBytes, keyIndex, getSize() - keyIndex);
 
         for (int i = keyIndex; i < getSize(); i++) {
             pageIdArray[i] = pageIdArray[i + 1];
         }
         pageIdArray[getSize()] = -1;
-        keyArray[getSize()] = null;
+        setKeyAt(getSize(), null);
 
         setSize(getSize() - 1);
         return true;
     }
     public int binarySearch( Key key) //looks for the index of a key
     {
+        if (isVariableLength()) return binarySearch(keyCodec.encode(key));
         // Binary search for efficiency with many keys
         int low = 1;
         int high = this.getSize();
@@ -106,10 +124,28 @@ public class InternalPage<Key extends Comparable<Key>> extends BPlusTreePage {
         return low-1; // Return the first key greater than search key
     }
 
+    // the variable-length search, on the encoded keys, same result as binarySearch(Key)
+    public int binarySearch(byte[] key) {
+        int low = 1;
+        int high = this.getSize();
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = Arrays.compareUnsigned(key, encodedKey(mid));
+            if (cmp < 0) {
+                high = mid - 1;
+            } else if (cmp > 0) {
+                low = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return low - 1;
+    }
+
     public Key splitInternalPage(InternalPage<Key> newInternal) {
         int totalSize = this.getSize();
-        int mid = totalSize / 2;
-        Key midKey = this.keyAt(mid);
+        int mid = splitIndex();
+        Key midKey = this.keyAt(mid); // moves up, neither half keeps it
 
         // Copy keys: from mid + 1 to totalSize - 1 (inclusive)
         for (int i = mid + 1, j = 1; i <= totalSize; i++, j++) {
@@ -121,12 +157,149 @@ public class InternalPage<Key extends Comparable<Key>> extends BPlusTreePage {
             newInternal.setValueAt(j, this.valueAt(i));
         }
 
-        // Set sizes
+        // Set sizes, this page keeps keys 1..mid-1 and children 0..mid-1
         newInternal.setSize(totalSize - mid);
-        this.setSize(mid);
+        this.setSize(mid - 1);
 
         return midKey;
     }
+    //  =====================   fill   =====================
+    // Counted in keys for the fixed layout, in bytes for the variable-length one, as in LeafPage.
+
+    @Override
+    public boolean hasRoomForEntry() {
+        if (!isVariableLength()) return super.hasRoomForEntry();
+        return size < maxSize
+                && uncompressedBytes() + SlottedPage.SLOT_SIZE + SlottedPage.maxCellSize(capacity) <= capacity;
+    }
+
+    @Override
+    public boolean isOverflowing() {
+        if (!isVariableLength()) return super.isOverflowing();
+        return size > maxSize || usedBytes() > capacity;
+    }
+
+    @Override
+    public boolean isUnderflowing() {
+        if (!isVariableLength()) return super.isUnderflowing();
+        return usedBytes() - SlottedPage.HEADER_SIZE < SlottedPage.minFill(capacity);
+    }
+
+    @Override
+    public boolean canLendEntry() {
+        if (!isVariableLength()) return super.canLendEntry();
+        return usedBytes() - SlottedPage.HEADER_SIZE - SlottedPage.SLOT_SIZE - SlottedPage.maxCellSize(capacity)
+                >= SlottedPage.minFill(capacity);
+    }
+
+    // a longer separator takes more bytes, the page must have room for one
+    @Override
+    public boolean canReplaceSeparator() {
+        return !isVariableLength() || hasRoomForEntry();
+    }
+
+    public boolean fitsWith(Key key) {
+        return fitsWithin(key, 1.0);
+    }
+
+    // the page stays within fillFactor of its capacity with one more key (and child)
+    public boolean fitsWithin(Key key, double fillFactor) {
+        if (!isVariableLength()) return size + 1 <= Math.max(1, (int) (maxSize * fillFactor));
+        if (size >= maxSize) return false;
+        byte[] encodedKey = keyCodec.encode(key);
+        int prefix = size == 0 ? encodedKey.length
+                : Math.min(prefixLength(1, size + 1), SlottedPage.commonPrefix(encodedKey, encodedKey(1)));
+        int bytes = rawCellBytes(1, size + 1) - size * prefix + prefix
+                + SlottedPage.SLOT_SIZE + SlottedPage.INTERNAL_CELL_OVERHEAD + encodedKey.length - prefix;
+        return bytes <= fillFactor * (capacity - SlottedPage.HEADER_SIZE);
+    }
+
+    // this page, the separator pulled down from the parent and the right sibling fit in one page
+    public boolean canMerge(InternalPage<Key> right, Key separator) {
+        if (size + 1 + right.size > maxSize) return false;
+        if (!isVariableLength()) return true;
+        byte[] encodedSeparator = keyCodec.encode(separator);
+        int prefix = encodedSeparator.length;
+        if (size > 0) {
+            prefix = Math.min(prefix, Math.min(prefixLength(1, size + 1), SlottedPage.commonPrefix(encodedSeparator, encodedKey(1))));
+        }
+        if (right.size > 0) {
+            prefix = Math.min(prefix, Math.min(right.prefixLength(1, right.size + 1),
+                    SlottedPage.commonPrefix(encodedSeparator, right.encodedKey(1))));
+        }
+        int bytes = SlottedPage.HEADER_SIZE + prefix + rawCellBytes(1, size + 1) + right.rawCellBytes(1, right.size + 1)
+                + SlottedPage.SLOT_SIZE + SlottedPage.INTERNAL_CELL_OVERHEAD + encodedSeparator.length
+                - (size + 1 + right.size) * prefix;
+        return bytes <= capacity;
+    }
+
+    public int usedBytes() {
+        return bytes(1, size + 1);
+    }
+
+    // The key that moves up in a split: the middle one for the fixed layout, for the variable-length one the one
+    // that leaves the larger half smallest in bytes.
+    private int splitIndex() {
+        int total = getSize();
+        if (!isVariableLength() || total < 3) return (total + 1) / 2;
+        int[] leftBytes = new int[total + 1];   // bytes of keys [1, mid)
+        int prefix = encodedKey(1).length;
+        int raw = 0;
+        for (int mid = 2; mid <= total; mid++) {
+            prefix = Math.min(prefix, SlottedPage.commonPrefix(encodedKey(1), encodedKey(mid - 1)));
+            raw += rawCellSize(mid - 1);
+            leftBytes[mid] = SlottedPage.HEADER_SIZE + prefix + raw - (mid - 1) * prefix;
+        }
+        int best = (total + 1) / 2;
+        int bestBytes = Integer.MAX_VALUE;
+        prefix = encodedKey(total).length;
+        raw = 0;
+        for (int mid = total - 1; mid >= 2; mid--) {   // right half keys (mid, total]
+            prefix = Math.min(prefix, SlottedPage.commonPrefix(encodedKey(total), encodedKey(mid + 1)));
+            raw += rawCellSize(mid + 1);
+            int larger = Math.max(leftBytes[mid], SlottedPage.HEADER_SIZE + prefix + raw - (total - mid) * prefix);
+            if (larger < bestBytes) {
+                bestBytes = larger;
+                best = mid;
+            }
+        }
+        return best;
+    }
+
+    public byte[] encodedKey(int index) {
+        if (keyBytes[index] == null) keyBytes[index] = keyCodec.encode(keyArray[index]);
+        return keyBytes[index];
+    }
+
+    // the prefix the keys [from, to) share, a lone key is all prefix
+    private int prefixLength(int from, int to) {
+        if (from >= to) return 0;
+        int prefix = encodedKey(from).length;
+        for (int i = from + 1; i < to && prefix > 0; i++) {
+            prefix = Math.min(prefix, SlottedPage.commonPrefix(encodedKey(from), encodedKey(i)));
+        }
+        return prefix;
+    }
+
+    private int rawCellSize(int index) {
+        return SlottedPage.SLOT_SIZE + SlottedPage.INTERNAL_CELL_OVERHEAD + encodedKey(index).length;
+    }
+
+    private int rawCellBytes(int from, int to) {
+        int bytes = 0;
+        for (int i = from; i < to; i++) bytes += rawCellSize(i);
+        return bytes;
+    }
+
+    private int uncompressedBytes() {
+        return SlottedPage.HEADER_SIZE + rawCellBytes(1, size + 1);
+    }
+
+    private int bytes(int from, int to) {
+        int prefix = prefixLength(from, to);
+        return SlottedPage.HEADER_SIZE + prefix + rawCellBytes(from, to) - (to - from) * prefix;
+    }
+
     public Key[] getKeys()
     {
         return keyArray;
@@ -150,6 +323,7 @@ public class InternalPage<Key extends Comparable<Key>> extends BPlusTreePage {
 
     public static final int INTERNAL_PAGE_TYPE = 2;
     public byte[] toBytes() {
+        if (isVariableLength()) return toSlottedBytes();
         int n = this.getSize();
         int totalBytes = (4*4) + (n * 4) + ((n + 1) * 4); // type + pageID + keyCount + maxSize + keys + pageId
         ByteBuffer buffer = ByteBuffer.allocate(totalBytes);
@@ -170,6 +344,10 @@ public class InternalPage<Key extends Comparable<Key>> extends BPlusTreePage {
         return buffer.array();
     }
     public void fromBytes(ByteBuffer buffer) {
+        if (isVariableLength()) {
+            fromSlottedBytes(buffer);
+            return;
+        }
         int id  = buffer.getInt();
         int size = buffer.getInt(); // number of keys
         int maxSize = buffer.getInt();
@@ -183,4 +361,48 @@ public class InternalPage<Key extends Comparable<Key>> extends BPlusTreePage {
             this.setValueAt(i, buffer.getInt());
         }
     }
+
+    private byte[] toSlottedBytes() {
+        int n = getSize();
+        int prefix = prefixLength(1, n + 1);
+        ByteBuffer buffer = ByteBuffer.allocate(bytes(1, n + 1));
+        buffer.putInt(SlottedPage.INTERNAL_PAGE_TYPE);
+        buffer.putInt(this.getPageID());
+        buffer.putInt(n);
+        buffer.putInt(this.getMaxSize());
+        buffer.putInt(this.valueAt(0));
+        buffer.putShort((short) prefix);
+        buffer.putShort((short) 0);
+        if (n > 0) buffer.put(encodedKey(1), 0, prefix);
+        int slots = SlottedPage.HEADER_SIZE + prefix;
+        buffer.position(slots + n * SlottedPage.SLOT_SIZE);
+        for (int i = 1; i <= n; i++) {
+            buffer.putShort(slots + (i - 1) * SlottedPage.SLOT_SIZE, (short) buffer.position());
+            byte[] key = encodedKey(i);
+            buffer.putShort((short) (key.length - prefix));
+            buffer.put(key, prefix, key.length - prefix);
+            buffer.putInt(this.valueAt(i));
+        }
+        return buffer.array();
+    }
+
+    // reads by page offset, buffer starts at the page
+    private void fromSlottedBytes(ByteBuffer buffer) {
+        int n = buffer.getInt(SlottedPage.SIZE_OFFSET);
+        int prefix = buffer.getShort(SlottedPage.PREFIX_LENGTH_OFFSET) & 0xFFFF;
+        this.init(buffer.getInt(SlottedPage.MAX_SIZE_OFFSET), buffer.getInt(SlottedPage.PAGE_ID_OFFSET));
+        this.setSize(n);
+        this.setValueAt(0, buffer.getInt(SlottedPage.LINK_OFFSET));
+        int slots = SlottedPage.HEADER_SIZE + prefix;
+        for (int i = 1; i <= n; i++) {
+            int cell = buffer.getShort(slots + (i - 1) * SlottedPage.SLOT_SIZE) & 0xFFFF;
+            int suffix = buffer.getShort(cell) & 0xFFFF;
+            byte[] key = new byte[prefix + suffix];
+            buffer.get(SlottedPage.HEADER_SIZE, key, 0, prefix);
+            buffer.get(cell + 2, key, prefix, suffix);
+            keyArray[i] = keyCodec.decode(key, 0, key.length);
+            keyBytes[i] = key;
+            this.setValueAt(i, buffer.getInt(cell + 2 + suffix));
+        }
+    }
 }
@@ -0,0 +1,58 @@
+import java.nio.ByteBuffer;
+
+// Flyweight over an internal page frame, the read side of InternalPage without decoding it.
+// Layout (same as InternalPage.toBytes): type | pageID | size | maxSize | keys[1..size] | pageIDs[0..size]
+public class InternalPageView {
+    public static final int INTERNAL_PAGE_TYPE = 2;
+    private static final int TYPE_OFFSET = 0;
+    private static final int PAGE_ID_OFFSET = 4;
+    private static final int SIZE_OFFSET = 8;
+    private static final int MAX_SIZE_OFFSET = 12;
+    public static final int HEADER_SIZE = 16;
+
+    private ByteBuffer data;
+
+    public InternalPageView wrap(Page page) {
+        this.data = page.getBuffer();
+        return this;
+    }
+
+    public static boolean isInternalPage(Page page) {
+        return page.getBuffer().getInt(TYPE_OFFSET) == INTERNAL_PAGE_TYPE;
+    }
+
+    public int getPageID() { return data.getInt(PAGE_ID_OFFSET); }
+    public int getSize() { return data.getInt(SIZE_OFFSET); }
+    public int getMaxSize() { return data.getInt(MAX_SIZE_OFFSET); }
+
+    // keys are 1-based like InternalPage, key 0 is the dummy slot and is not stored
+    public int keyAt(int index) {
+        return data.getInt(HEADER_SIZE + (index - 1) * 4);
+    }
+
+    public int valueAt(int index) {
+        return data.getInt(HEADER_SIZE + getSize() * 4 + index * 4);
+    }
+
+    public int binarySearch(int key) {
+        int low = 1;
+        int high = getSize();
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midKey = keyAt(mid);
+            if (key < midKey) {
+                high = mid - 1;
+            } else if (key > midKey) {
+                low = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return low - 1;
+    }
+
+    public int childFor(int key) {
+        return valueAt(binarySearch(key));
+    }
+}
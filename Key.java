@@ -7,6 +7,9 @@ public class Key implements Comparable<Key> {
         this.name = name;
     }
 
+    public int getId() { return id; }
+    public String getName() { return name; }
+
     @Override
     public int compareTo(Key other) {
         int cmp = Integer.compare(this.id, other.id);
@@ -0,0 +1,83 @@
+import java.nio.ByteBuffer;
+
+// Turns keys (and values) into bytes for the variable-length page format. Encodings preserve order: comparing two
+// encodings byte by byte, unsigned, gives the same order as compareTo. So a key that sorts between two others
+// shares their common prefix, which the per-page prefix compression of SlottedPage relies on.
+public interface KeyCodec<T> {
+    byte[] encode(T value);
+    T decode(byte[] bytes, int offset, int length);
+
+    // big-endian with the sign bit flipped, so negatives sort first
+    KeyCodec<Integer> INT = new KeyCodec<>() {
+        public byte[] encode(Integer value) {
+            return ByteBuffer.allocate(4).putInt(value ^ Integer.MIN_VALUE).array();
+        }
+        public Integer decode(byte[] bytes, int offset, int length) {
+            return ByteBuffer.wrap(bytes, offset, length).getInt() ^ Integer.MIN_VALUE;
+        }
+    };
+
+    KeyCodec<Long> LONG = new KeyCodec<>() {
+        public byte[] encode(Long value) {
+            return ByteBuffer.allocate(8).putLong(value ^ Long.MIN_VALUE).array();
+        }
+        public Long decode(byte[] bytes, int offset, int length) {
+            return ByteBuffer.wrap(bytes, offset, length).getLong() ^ Long.MIN_VALUE;
+        }
+    };
+
+    // Each UTF-16 char as 1 to 3 bytes in the UTF-8 pattern, surrogates included one by one. The byte order
+    // then follows the char order String.compareTo uses (plain UTF-8 sorts supplementary characters differently).
+    KeyCodec<String> STRING = new KeyCodec<>() {
+        public byte[] encode(String value) {
+            int length = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                length += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+            }
+            byte[] bytes = new byte[length];
+            int pos = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    bytes[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[pos++] = (byte) (0xC0 | c >> 6);
+                    bytes[pos++] = (byte) (0x80 | c & 0x3F);
+                } else {
+                    bytes[pos++] = (byte) (0xE0 | c >> 12);
+                    bytes[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    bytes[pos++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+            return bytes;
+        }
+        public String decode(byte[] bytes, int offset, int length) {
+            StringBuilder sb = new StringBuilder(length);
+            int end = offset + length;
+            for (int pos = offset; pos < end; ) {
+                int b = bytes[pos++] & 0xFF;
+                if (b < 0x80) {
+                    sb.append((char) b);
+                } else if (b < 0xE0) {
+                    sb.append((char) ((b & 0x1F) << 6 | bytes[pos++] & 0x3F));
+                } else {
+                    int c = (b & 0x0F) << 12 | (bytes[pos++] & 0x3F) << 6;
+                    sb.append((char) (c | bytes[pos++] & 0x3F));
+                }
+            }
+            return sb.toString();
+        }
+    };
+
+    // id then name, the order of Key.compareTo. The name is last, so it needs no terminator.
+    KeyCodec<Key> COMPOSITE = new KeyCodec<>() {
+        public byte[] encode(Key value) {
+            byte[] name = STRING.encode(value.getName());
+            return ByteBuffer.allocate(4 + name.length).put(INT.encode(value.getId())).put(name).array();
+        }
+        public Key decode(byte[] bytes, int offset, int length) {
+            return new Key(INT.decode(bytes, offset, 4), STRING.decode(bytes, offset + 4, length - 4));
+        }
+    };
+}
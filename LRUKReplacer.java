@@ -1,92 +1,182 @@
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
 
-public class LRUKReplacer {
+// LRU-K over a fixed number of frames, with no allocation after construction.
+// Each frame keeps its last k access timestamps in a slice of one long[] ring buffer. Evictable frames sit
+// in an indexed min-heap ordered by (has k accesses, oldest kept timestamp): frames with fewer than k
+// accesses (+inf backward k-distance) come first by first access, the rest by their k-th most recent
+// access, which is the same as the largest backward k-distance. evict is O(log n), recordAccess is O(log n).
+public class LRUKReplacer implements Replacer {
     private final int k;
+    private final int numFrames;
     private long timestamp = 0;
 
+    private final long[] history;      // history[frameId * k + slot], ring of the last k access timestamps
+    private final int[] historyHead;   // slot of the oldest timestamp kept for the frame
+    private final int[] historyCount;  // number of timestamps kept, at most k
+    private final boolean[] isEvictable;
 
-    private Map<Integer, Deque<Long>> accessHistory; // Maps frameId to access timestamps
-    private Map<Integer, Boolean> isEvictable; // <frameId, canBeEvicted>
-    private Map<Integer, Long> oldestAccess; // Tracks earliest access <frameId, numOfAccess>
-    private int currentSize; // Total number of evictable frames
+    private final int[] heap;          // evictable frame ids, heap[0] is the next victim
+    private final int[] heapIndex;     // position of a frame in heap, -1 when not evictable
+    private int currentSize;           // Total number of evictable frames, also the heap size
 
-    public LRUKReplacer(int k) {
-        this.accessHistory = new HashMap<>();
-        this.isEvictable = new HashMap<>();
-        this.oldestAccess = new HashMap<>();
+    public LRUKReplacer(int numFrames, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1: " + k);
+        }
         this.k = k;
+        this.numFrames = numFrames;
+        this.history = new long[numFrames * k];
+        this.historyHead = new int[numFrames];
+        this.historyCount = new int[numFrames];
+        this.isEvictable = new boolean[numFrames];
+        this.heap = new int[numFrames];
+        this.heapIndex = new int[numFrames];
+        Arrays.fill(heapIndex, -1);
     }
 
-    // Methods to implement
+    @Override
     public synchronized boolean evict(int[] frameId) {
-        long maxDistance = Long.MIN_VALUE;
+        return evict(frameId, frame -> true);
+    }
+
+    // the lookahead covers the first heap slots, which are near the top but only heap[0] is certainly the best
+    @Override
+    public synchronized boolean evict(int[] frameId, IntPredicate preferred) {
+        if (currentSize == 0) return false;
+
         int victim = -1;
-        long oldest = Long.MAX_VALUE;
-        boolean lessThanK = false ;
-
-        for (int id : accessHistory.keySet()) {
-            if (!isEvictable.getOrDefault(id, false)) continue; //not evictable
-
-            Deque<Long> history = accessHistory.get(id);
-            if (history.size() < k) {
-                lessThanK = true;
-                long firstAccess = oldestAccess.get(id);
-                if (firstAccess < oldest) {
-                    oldest = firstAccess;
-                    victim = id;
-                }
-            } else if (!lessThanK && !history.isEmpty()){
-                long distance = timestamp - history.peekFirst();
-                if (distance > maxDistance) {
-                    maxDistance = distance;
-                    victim = id;
-                }
-            }
+        int lookahead = Math.min(currentSize, PREFERRED_LOOKAHEAD);
+        for (int pos = 0; pos < lookahead; pos++) {
+            int frame = heap[pos];
+            if (preferred.test(frame) && (victim == -1 || evictsBefore(frame, victim))) victim = frame;
         }
-
-        if (victim == -1) return false;
+        if (victim == -1) victim = heap[0];
+        heapRemove(victim);
+        isEvictable[victim] = false;
+        clearHistory(victim);
 
         frameId[0] = victim;
-        accessHistory.remove(victim);
-        isEvictable.remove(victim);
-        oldestAccess.remove(victim);
-        currentSize--;
-
         return true;
     }
 
+    @Override
     public synchronized void recordAccess(int frameId) {
+        checkFrame(frameId);
         timestamp++;
-        accessHistory.putIfAbsent(frameId, new LinkedList<>());
-        Deque<Long> history  = accessHistory.get(frameId);
-        history.addLast(timestamp);
-        if(history.size()>k){
-            history.removeFirst();
-            oldestAccess.put(frameId,history.peekFirst());
+        int base = frameId * k;
+        if (historyCount[frameId] < k) {
+            history[base + (historyHead[frameId] + historyCount[frameId]) % k] = timestamp;
+            historyCount[frameId]++;
+        } else {
+            // overwrite the oldest slot, the next one becomes the k-th most recent access
+            history[base + historyHead[frameId]] = timestamp;
+            historyHead[frameId] = (historyHead[frameId] + 1) % k;
+        }
+        if (heapIndex[frameId] != -1) {
+            siftDown(heapIndex[frameId]); // the key only grows on access
         }
-        oldestAccess.putIfAbsent(frameId,timestamp);   //it is the first access to this frame
     }
 
-
+    // drops the frame and its history, used when the page in it is deleted
+    @Override
     public synchronized void remove(int frameId) {
-        if(isEvictable.getOrDefault(frameId, false)){
-            currentSize--;
-            isEvictable.remove(frameId);
-            oldestAccess.remove(frameId);
-            accessHistory.remove(frameId);
+        checkFrame(frameId);
+        if (isEvictable[frameId]) {
+            heapRemove(frameId);
+            isEvictable[frameId] = false;
         }
+        clearHistory(frameId);
     }
 
+    @Override
     public synchronized void setEvictable(int frameId, boolean evectable) {
-        if(evectable && isEvictable.getOrDefault(frameId,false))
-            currentSize++;
-        isEvictable.put(frameId, evectable);
+        checkFrame(frameId);
+        if (evectable == isEvictable[frameId]) return;
+        isEvictable[frameId] = evectable;
+        if (evectable) {
+            heapInsert(frameId);
+        } else {
+            heapRemove(frameId);
+        }
     }
 
+    @Override
     public synchronized int size() {
         return currentSize;
     }
+
+    private void checkFrame(int frameId) {
+        if (frameId < 0 || frameId >= numFrames) {
+            throw new IllegalArgumentException("[LRUKReplacer] invalid frame id: " + frameId);
+        }
+    }
+
+    private void clearHistory(int frameId) {
+        historyHead[frameId] = 0;
+        historyCount[frameId] = 0;
+    }
+
+    // ==========================   indexed heap   ==========================
+    // true when frame a should be evicted before frame b
+    private boolean evictsBefore(int a, int b) {
+        boolean aInf = historyCount[a] < k;
+        boolean bInf = historyCount[b] < k;
+        if (aInf != bInf) return aInf;
+        long aOldest = oldestAccess(a);
+        long bOldest = oldestAccess(b);
+        if (aOldest != bOldest) return aOldest < bOldest;
+        return a < b; // only frames without any recorded access tie
+    }
+
+    private long oldestAccess(int frameId) {
+        return historyCount[frameId] == 0 ? 0 : history[frameId * k + historyHead[frameId]];
+    }
+
+    private void heapInsert(int frameId) {
+        heap[currentSize] = frameId;
+        heapIndex[frameId] = currentSize;
+        currentSize++;
+        siftUp(currentSize - 1);
+    }
+
+    private void heapRemove(int frameId) {
+        int pos = heapIndex[frameId];
+        currentSize--;
+        int last = heap[currentSize];
+        heapIndex[frameId] = -1;
+        if (pos == currentSize) return;
+        heap[pos] = last;
+        heapIndex[last] = pos;
+        siftDown(pos);
+        siftUp(heapIndex[last]);
+    }
+
+    private void siftUp(int pos) {
+        int frameId = heap[pos];
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (!evictsBefore(frameId, heap[parent])) break;
+            heap[pos] = heap[parent];
+            heapIndex[heap[pos]] = pos;
+            pos = parent;
+        }
+        heap[pos] = frameId;
+        heapIndex[frameId] = pos;
+    }
+
+    private void siftDown(int pos) {
+        int frameId = heap[pos];
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= currentSize) break;
+            if (child + 1 < currentSize && evictsBefore(heap[child + 1], heap[child])) child++;
+            if (!evictsBefore(heap[child], frameId)) break;
+            heap[pos] = heap[child];
+            heapIndex[heap[pos]] = pos;
+            pos = child;
+        }
+        heap[pos] = frameId;
+        heapIndex[frameId] = pos;
+    }
 }
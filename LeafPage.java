@@ -1,10 +1,26 @@
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+// A leaf decoded from its page. Without codecs it uses the fixed layout of int keys and rids (see LeafPageView),
+// with them the variable-length SlottedPage layout, where the page fills by bytes rather than by maxSize entries.
 public class LeafPage<Key extends Comparable<Key>, RID> extends BPlusTreePage {
     private Key[] keyArray;
     private RID[] valueArray;
     public int nextPageId;
+    private KeyCodec<Key> keyCodec;     // null for the fixed layout
+    private KeyCodec<RID> valueCodec;
+    private int capacity;               // usable bytes of a page of the file
+    private byte[][] keyBytes;          // encoded entries, filled lazily and dropped when the entry changes
+    private byte[][] valueBytes;
+
+    // selects the variable-length format for pages of capacity usable bytes, called before init
+    public void setCodecs(KeyCodec<Key> keyCodec, KeyCodec<RID> valueCodec, int capacity) {
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.capacity = capacity;
+    }
+
+    public boolean isVariableLength() { return keyCodec != null; }
 
     @SuppressWarnings("unchecked")
     public void init(int maxSize, int ID) {
@@ -12,18 +28,57 @@ public class LeafPage<Key extends Comparable<Key>, RID> extends BPlusTreePage {
         setMaxSize(maxSize);
         setSize(0);
         setPageID(ID);
-        // Initialize arrays
-        this.keyArray = (Key[]) new Comparable[maxSize];
-        this.valueArray = (RID[]) new Object[maxSize];
+        // Initialize arrays, one spare slot lets an overflowing insert happen before the split
+        this.keyArray = (Key[]) new Comparable[maxSize + 1];
+        this.valueArray = (RID[]) new Object[maxSize + 1];
+        if (isVariableLength()) {
+            this.keyBytes = new byte[maxSize + 1][];
+            this.valueBytes = new byte[maxSize + 1][];
+        }
         nextPageId = -1;
     }
 
     public boolean containsKey(Key key)
     {
-        for (int i = 0; i < this.getSize(); i++) {
-            if (key.compareTo(this.keyAt(i)) == 0) return true;
+        return search(key) >= 0;
+    }
+
+    // Binary search over the sorted keys: the key's index when present, otherwise -(insertion point) - 1,
+    // like Arrays.binarySearch, so one search answers both "is it here" and "where does it go".
+    public int search(Key key) {
+        if (isVariableLength()) return search(keyCodec.encode(key));
+        int low = 0;
+        int high = getSize() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = key.compareTo(keyAt(mid));
+            if (cmp > 0) {
+                low = mid + 1;
+            } else if (cmp < 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
         }
-        return false;
+        return -(low + 1);
+    }
+
+    // the variable-length search, on the encoded keys the page was decoded from, no compareTo on key objects
+    public int search(byte[] key) {
+        int low = 0;
+        int high = getSize() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = Arrays.compareUnsigned(key, encodedKey(mid));
+            if (cmp > 0) {
+                low = mid + 1;
+            } else if (cmp < 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
     }
 
     public Key keyAt(int index) {
@@ -32,6 +87,7 @@ public class LeafPage<Key extends Comparable<Key>, RID> extends BPlusTreePage {
 
     public void setKeyAt(int index, Key key) {
         keyArray[index] = key;
+        if (keyBytes != null) keyBytes[index] = null;
     }
 
     public RID valueAt(int index) {
@@ -40,6 +96,7 @@ public class LeafPage<Key extends Comparable<Key>, RID> extends BPlusTreePage {
 
     public void setValueAt(int index, RID value) {
         valueArray[index] = value;
+        if (valueBytes != null) valueBytes[index] = null;
     }
 
     public int valueIndex(RID value) {
@@ -50,11 +107,9 @@ public class LeafPage<Key extends Comparable<Key>, RID> extends BPlusTreePage {
     }
     public int keyIndex(Key key)
     {
-        for(int i=0 ; i<getSize(); i++)
-        {
-            if (key != null && key.compareTo(keyArray[i]) == 0) return i;
-        }
-        return -1;
+        if (key == null) return -1;
+        int index = search(key);
+        return index >= 0 ? index : -1;
     }
 
     public int getNextPageId() {
@@ -85,25 +140,31 @@ public class LeafPage<Key extends Comparable<Key>, RID> extends BPlusTreePage {
     public RID[] getValueArray() {
         return valueArray;
     }
-    public void setKeyArray(Key[] keyArray) { this.keyArray=keyArray; }
+    public void setKeyArray(Key[] keyArray) {
+        this.keyArray=keyArray;
+        if (keyBytes != null) Arrays.fill(keyBytes, null);
+    }
     public void setValueArray(RID[] valueArray) {
         this.valueArray=valueArray;
+        if (valueBytes != null) Arrays.fill(valueBytes, null);
     }
 
     public LeafPage<Key, RID> splitLeafPage(int newLeafId) {
-        int mid = this.getSize() / 2;
+        int mid = splitIndex();
         int total = this.getSize();
         LeafPage<Key, RID> newLeaf = new LeafPage<>();
+        newLeaf.setCodecs(keyCodec, valueCodec, capacity);
         newLeaf.init(this.getMaxSize(), newLeafId);
 
-        for (int i = mid; i < total; i++) {
-            newLeaf.setKeyAt(i - mid, this.keyAt(i));
-            newLeaf.setValueAt(i - mid, this.valueAt(i));
-        }
-
-        for (int i = mid; i < total; i++) {
-            this.setKeyAt(i, null);
-            this.setValueAt(i, null);
+        System.arraycopy(keyArray, mid, newLeaf.keyArray, 0, total - mid);
+        System.arraycopy(valueArray, mid, newLeaf.valueArray, 0, total - mid);
+        Arrays.fill(keyArray, mid, total, null);
+        Arrays.fill(valueArray, mid, total, null);
+        if (keyBytes != null) {
+            System.arraycopy(keyBytes, mid, newLeaf.keyBytes, 0, total - mid);
+            System.arraycopy(valueBytes, mid, newLeaf.valueBytes, 0, total - mid);
+            Arrays.fill(keyBytes, mid, total, null);
+            Arrays.fill(valueBytes, mid, total, null);
         }
 
         newLeaf.setSize(total - mid);
@@ -116,46 +177,186 @@ public class LeafPage<Key extends Comparable<Key>, RID> extends BPlusTreePage {
     }
 
 
+    // caller checks for duplicates and free space
     public void insertIntoLeaf( Key key, RID value)
     {
-       // System.out.println("[InsertIntoLeaf] the lEAF before insertion:\n"+this.toString());
-        int pos = 0;
-        while (pos < this.getSize() && key.compareTo(this.keyAt(pos)) > 0) pos++;
+        int index = search(key);
+        insertAt(index >= 0 ? index : -(index + 1), key, value);
+    }
 
-        for (int i = this.getSize(); i > pos; i--) {
-            this.setKeyAt(i, this.keyAt(i - 1));
-            this.setValueAt(i, this.valueAt(i - 1));
+    // puts the entry at index, shifting the ones after it right, index comes from search
+    public void insertAt(int index, Key key, RID value) {
+        int size = getSize();
+        System.arraycopy(keyArray, index, keyArray, index + 1, size - index);
+        System.arraycopy(valueArray, index, valueArray, index + 1, size - index);
+        if (keyBytes != null) {
+            System.arraycopy(keyBytes, index, keyBytes, index + 1, size - index);
+            System.arraycopy(valueBytes, index, valueBytes, index + 1, size - index);
         }
-        this.setKeyAt(pos, key);
-        this.setValueAt(pos, value);
+        this.setKeyAt(index, key);
+        this.setValueAt(index, value);
         this.size++;
-
     }
 
     public boolean remove(Key key) {
+        int index = keyIndex(key);
+        if (index == -1) return false;  // key not found
+        removeAt(index);
+        return true;
+    }
+
+    public void removeAt(int index) {
         int size = getSize();
+        // Shift all keys and values left
+        for (int j = index; j < size - 1; j++) {
+            keyArray[j] = keyArray[j + 1];
+            valueArray[j] = valueArray[j + 1];
+        }
+        if (keyBytes != null) {
+            System.arraycopy(keyBytes, index + 1, keyBytes, index, size - index - 1);
+            System.arraycopy(valueBytes, index + 1, valueBytes, index, size - index - 1);
+        }
+        // Null out the last element (optional but cleaner)
+        setKeyAt(size - 1, null);
+        setValueAt(size - 1, null);
+        setSize(size - 1);
+    }
 
-        for (int i = 0; i < size; i++) {
-            if (key.compareTo(keyArray[i]) == 0) {
-                // Shift all keys and values left
-                for (int j = i; j < size - 1; j++) {
-                    keyArray[j] = keyArray[j + 1];
-                    valueArray[j] = valueArray[j + 1];
-                }
+    //  =====================   fill   =====================
+    // The fixed layout counts entries (see BPlusTreePage), the variable-length one counts bytes. Room for an insert
+    // is judged on the page without prefix compression, which an insert can only undo, the rest on exact sizes.
 
-                // Null out the last element (optional but cleaner)
-                keyArray[size - 1] = null;
-                valueArray[size - 1] = null;
+    @Override
+    public boolean hasRoomForEntry() {
+        if (!isVariableLength()) return super.hasRoomForEntry();
+        return size < maxSize
+                && uncompressedBytes() + SlottedPage.SLOT_SIZE + SlottedPage.maxCellSize(capacity) <= capacity;
+    }
+
+    @Override
+    public boolean isOverflowing() {
+        if (!isVariableLength()) return super.isOverflowing();
+        return size > maxSize || usedBytes() > capacity;
+    }
 
-                setSize(size - 1);
-                return true;
+    @Override
+    public boolean isUnderflowing() {
+        if (!isVariableLength()) return super.isUnderflowing();
+        return usedBytes() - SlottedPage.HEADER_SIZE < SlottedPage.minFill(capacity);
+    }
+
+    @Override
+    public boolean canLendEntry() {
+        if (!isVariableLength()) return super.canLendEntry();
+        return usedBytes() - SlottedPage.HEADER_SIZE - SlottedPage.SLOT_SIZE - SlottedPage.maxCellSize(capacity)
+                >= SlottedPage.minFill(capacity);
+    }
+
+    public boolean fitsWith(Key key, RID value) {
+        return fitsWithin(key, value, 1.0);
+    }
+
+    // the page stays within fillFactor of its capacity with the entry added
+    public boolean fitsWithin(Key key, RID value, double fillFactor) {
+        if (!isVariableLength()) return size + 1 <= Math.max(1, (int) (maxSize * fillFactor));
+        if (size >= maxSize) return false;
+        byte[] encodedKey = keyCodec.encode(key);
+        int prefix = size == 0 ? encodedKey.length
+                : Math.min(prefixLength(0, size), SlottedPage.commonPrefix(encodedKey, encodedKey(0)));
+        int bytes = rawCellBytes(0, size) - size * prefix + prefix
+                + SlottedPage.SLOT_SIZE + SlottedPage.LEAF_CELL_OVERHEAD + encodedKey.length - prefix
+                + valueCodec.encode(value).length;
+        return bytes <= fillFactor * (capacity - SlottedPage.HEADER_SIZE);
+    }
+
+    // this page and its right sibling fit in one page
+    public boolean canMerge(LeafPage<Key, RID> right) {
+        if (size + right.size > maxSize) return false;
+        if (!isVariableLength()) return true;
+        if (size == 0 || right.size == 0) return (size == 0 ? right : this).usedBytes() <= capacity;
+        int prefix = Math.min(Math.min(prefixLength(0, size), right.prefixLength(0, right.size)),
+                SlottedPage.commonPrefix(encodedKey(0), right.encodedKey(0)));
+        int bytes = SlottedPage.HEADER_SIZE + prefix
+                + rawCellBytes(0, size) + right.rawCellBytes(0, right.size) - (size + right.size) * prefix;
+        return bytes <= capacity;
+    }
+
+    public int usedBytes() {
+        return bytes(0, size);
+    }
+
+    // The first entry of the right half: the middle for the fixed layout, the point where the larger half is
+    // smallest in bytes for the variable-length one.
+    private int splitIndex() {
+        int total = getSize();
+        if (!isVariableLength() || total < 2) return total / 2;
+        int[] leftBytes = new int[total];   // bytes of [0, i)
+        int prefix = encodedKey(0).length;
+        int raw = 0;
+        for (int i = 1; i < total; i++) {
+            prefix = Math.min(prefix, SlottedPage.commonPrefix(encodedKey(0), encodedKey(i - 1)));
+            raw += rawCellSize(i - 1);
+            leftBytes[i] = SlottedPage.HEADER_SIZE + prefix + raw - i * prefix;
+        }
+        int best = total / 2;
+        int bestBytes = Integer.MAX_VALUE;
+        prefix = encodedKey(total - 1).length;
+        raw = 0;
+        for (int i = total - 1; i >= 1; i--) {   // right half [i, total)
+            prefix = Math.min(prefix, SlottedPage.commonPrefix(encodedKey(total - 1), encodedKey(i)));
+            raw += rawCellSize(i);
+            int larger = Math.max(leftBytes[i], SlottedPage.HEADER_SIZE + prefix + raw - (total - i) * prefix);
+            if (larger < bestBytes) {
+                bestBytes = larger;
+                best = i;
             }
         }
+        return best;
+    }
+
+    public byte[] encodedKey(int index) {
+        if (keyBytes[index] == null) keyBytes[index] = keyCodec.encode(keyArray[index]);
+        return keyBytes[index];
+    }
+
+    private byte[] encodedValue(int index) {
+        if (valueBytes[index] == null) valueBytes[index] = valueCodec.encode(valueArray[index]);
+        return valueBytes[index];
+    }
 
-        return false;  // key not found
+    // the prefix the keys [from, to) share, a lone key is all prefix
+    private int prefixLength(int from, int to) {
+        if (from >= to) return 0;
+        int prefix = encodedKey(from).length;
+        for (int i = from + 1; i < to && prefix > 0; i++) {
+            prefix = Math.min(prefix, SlottedPage.commonPrefix(encodedKey(from), encodedKey(i)));
+        }
+        return prefix;
+    }
+
+    // an entry's slot and cell with nothing stripped
+    private int rawCellSize(int index) {
+        return SlottedPage.SLOT_SIZE + SlottedPage.LEAF_CELL_OVERHEAD + encodedKey(index).length + encodedValue(index).length;
+    }
+
+    private int rawCellBytes(int from, int to) {
+        int bytes = 0;
+        for (int i = from; i < to; i++) bytes += rawCellSize(i);
+        return bytes;
+    }
+
+    private int uncompressedBytes() {
+        return SlottedPage.HEADER_SIZE + rawCellBytes(0, size);
+    }
+
+    // what a page holding the entries [from, to) takes
+    private int bytes(int from, int to) {
+        int prefix = prefixLength(from, to);
+        return SlottedPage.HEADER_SIZE + prefix + rawCellBytes(from, to) - (to - from) * prefix;
     }
 
     public byte[] toBytes() {
+        if (isVariableLength()) return toSlottedBytes();
         // the object that will be serialized //
         int numEntries = this.getSize();
         ByteBuffer buffer = ByteBuffer.allocate((4*5) + (numEntries * 8)); // type + ID + nextID + size + maxSize + pairs
@@ -172,6 +373,10 @@ public class LeafPage<Key extends Comparable<Key>, RID> extends BPlusTreePage {
         return buffer.array();
     }
     public void fromBytes(ByteBuffer buffer) {
+        if (isVariableLength()) {
+            fromSlottedBytes(buffer);
+            return;
+        }
         try {
             int pageID = buffer.getInt();
             int numEntries = buffer.getInt();
@@ -193,4 +398,53 @@ public class LeafPage<Key extends Comparable<Key>, RID> extends BPlusTreePage {
             System.out.println(e);
         }
     }
+
+    private byte[] toSlottedBytes() {
+        int n = getSize();
+        int prefix = prefixLength(0, n);
+        ByteBuffer buffer = ByteBuffer.allocate(bytes(0, n));
+        buffer.putInt(SlottedPage.LEAF_PAGE_TYPE);
+        buffer.putInt(this.getPageID());
+        buffer.putInt(n);
+        buffer.putInt(this.maxSize);
+        buffer.putInt(this.nextPageId);
+        buffer.putShort((short) prefix);
+        buffer.putShort((short) 0);
+        if (n > 0) buffer.put(encodedKey(0), 0, prefix);
+        int slots = SlottedPage.HEADER_SIZE + prefix;
+        buffer.position(slots + n * SlottedPage.SLOT_SIZE);
+        for (int i = 0; i < n; i++) {
+            buffer.putShort(slots + i * SlottedPage.SLOT_SIZE, (short) buffer.position());
+            byte[] key = encodedKey(i);
+            byte[] value = encodedValue(i);
+            buffer.putShort((short) (key.length - prefix));
+            buffer.put(key, prefix, key.length - prefix);
+            buffer.putShort((short) value.length);
+            buffer.put(value);
+        }
+        return buffer.array();
+    }
+
+    // reads by page offset, buffer starts at the page
+    private void fromSlottedBytes(ByteBuffer buffer) {
+        int n = buffer.getInt(SlottedPage.SIZE_OFFSET);
+        int prefix = buffer.getShort(SlottedPage.PREFIX_LENGTH_OFFSET) & 0xFFFF;
+        this.init(buffer.getInt(SlottedPage.MAX_SIZE_OFFSET), buffer.getInt(SlottedPage.PAGE_ID_OFFSET));
+        this.setSize(n);
+        this.setNextPageId(buffer.getInt(SlottedPage.LINK_OFFSET));
+        int slots = SlottedPage.HEADER_SIZE + prefix;
+        for (int i = 0; i < n; i++) {
+            int cell = buffer.getShort(slots + i * SlottedPage.SLOT_SIZE) & 0xFFFF;
+            int suffix = buffer.getShort(cell) & 0xFFFF;
+            byte[] key = new byte[prefix + suffix];
+            buffer.get(SlottedPage.HEADER_SIZE, key, 0, prefix);
+            buffer.get(cell + 2, key, prefix, suffix);
+            byte[] value = new byte[buffer.getShort(cell + 2 + suffix) & 0xFFFF];
+            buffer.get(cell + 4 + suffix, value);
+            keyArray[i] = keyCodec.decode(key, 0, key.length);
+            valueArray[i] = valueCodec.decode(value, 0, value.length);
+            keyBytes[i] = key;
+            valueBytes[i] = value;
+        }
+    }
 }
@@ -0,0 +1,103 @@
+import java.nio.ByteBuffer;
+
+// Flyweight over a leaf page frame: reads and writes the serialized layout in place,
+// so lookups and simple inserts/removes never decode the page into a LeafPage object.
+// Layout (same as LeafPage.toBytes): type | pageID | size | maxSize | nextPageID | (key, rid)*
+public class LeafPageView {
+    public static final int LEAF_PAGE_TYPE = 1;
+    private static final int TYPE_OFFSET = 0;
+    private static final int PAGE_ID_OFFSET = 4;
+    private static final int SIZE_OFFSET = 8;
+    private static final int MAX_SIZE_OFFSET = 12;
+    private static final int NEXT_PAGE_ID_OFFSET = 16;
+    public static final int HEADER_SIZE = 20;
+    public static final int ENTRY_SIZE = 8; // 4 bytes key + 4 bytes rid
+
+    private ByteBuffer data;
+
+    public LeafPageView wrap(Page page) {
+        this.data = page.getBuffer();
+        return this;
+    }
+
+    public static boolean isLeafPage(Page page) {
+        return page.getBuffer().getInt(TYPE_OFFSET) == LEAF_PAGE_TYPE;
+    }
+
+    public int getPageID() { return data.getInt(PAGE_ID_OFFSET); }
+    public int getSize() { return data.getInt(SIZE_OFFSET); }
+    public void setSize(int size) { data.putInt(SIZE_OFFSET, size); }
+    public int getMaxSize() { return data.getInt(MAX_SIZE_OFFSET); }
+    public int getMinSize() { return getMaxSize() / 2; }
+    public int getNextPageId() { return data.getInt(NEXT_PAGE_ID_OFFSET); }
+    public void setNextPageId(int nextPageId) { data.putInt(NEXT_PAGE_ID_OFFSET, nextPageId); }
+
+    public int keyAt(int index) {
+        return data.getInt(HEADER_SIZE + index * ENTRY_SIZE);
+    }
+
+    public int valueAt(int index) {
+        return data.getInt(HEADER_SIZE + index * ENTRY_SIZE + 4);
+    }
+
+    public void setEntryAt(int index, int key, int value) {
+        int offset = HEADER_SIZE + index * ENTRY_SIZE;
+        data.putInt(offset, key);
+        data.putInt(offset + 4, value);
+    }
+
+    // Binary search over the sorted keys: the key's index when present, otherwise -(insertion point) - 1
+    public int search(int key) {
+        int low = 0;
+        int high = getSize() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midKey = keyAt(mid);
+            if (key > midKey) {
+                low = mid + 1;
+            } else if (key < midKey) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    public int keyIndex(int key) {
+        int index = search(key);
+        return index >= 0 ? index : -1;
+    }
+
+    // caller checks for duplicates and free space, same contract as LeafPage.insertIntoLeaf, returns the key's index
+    public int insertIntoLeaf(int key, int value) {
+        int index = search(key);
+        index = index >= 0 ? index : -(index + 1);
+        insertAt(index, key, value);
+        return index;
+    }
+
+    // index comes from search
+    public void insertAt(int index, int key, int value) {
+        int size = getSize();
+        int from = HEADER_SIZE + index * ENTRY_SIZE;
+        data.put(from + ENTRY_SIZE, data, from, (size - index) * ENTRY_SIZE); // shift the tail right
+        setEntryAt(index, key, value);
+        setSize(size + 1);
+    }
+
+    public boolean remove(int key) {
+        int index = keyIndex(key);
+        if (index == -1) return false;
+        removeAt(index);
+        return true;
+    }
+
+    public void removeAt(int index) {
+        int size = getSize();
+        int to = HEADER_SIZE + index * ENTRY_SIZE;
+        data.put(to, data, to + ENTRY_SIZE, (size - index - 1) * ENTRY_SIZE); // shift the tail left
+        setEntryAt(size - 1, 0, 0);
+        setSize(size - 1);
+    }
+}
@@ -0,0 +1,440 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// Write-ahead log. Every change to a page is appended as a redo record before the page can reach disk, and each
+// page keeps the LSN of its last record in its trailer (Page.getLSN). Records are appended to an in-memory buffer,
+// a dedicated log writer thread writes the buffer out and forces it, so the appenders never do I/O.
+// Group commit: a caller that needs its records durable (flush) waits for the writer, and every record appended
+// before the writer swaps buffers is made durable by the same force, however many threads are waiting for it.
+// An LSN is the offset of its record in the log file plus the file's base LSN, records are applied in LSN order on
+// recovery. The file header keeps the LSN of the last complete checkpoint, recovery replays from that checkpoint's
+// redo LSN. The records before it are never read again: once they outweigh the ones after it, the log is compacted
+// into a new file starting at the redo LSN. The base is not stored, every record carries its LSN, so it follows
+// from the first record.
+// A failed write is retried a few times. Once the log cannot be written (the retries failed, or the channel is
+// closed) it is marked failed: the writer stops and every flush throws, so nothing waits for a force that never comes.
+// Record: length | lsn | type | pageId | offset | data | crc32 of everything before it
+public class LogManager {
+    public static final byte PAGE_IMAGE = 1; // data from offset 0, the rest of the page's usable area is zeros
+    public static final byte PAGE_RANGE = 2; // data at offset, the rest of the page is unchanged
+    public static final byte ALLOCATE = 3;   // the free-space map handed out pageId
+    public static final byte FREE = 4;       // pageId was returned to the free-space map
+    public static final byte CHECKPOINT = 5; // data: redo LSN, then the dirty page table as (pageId, rec_lsn) pairs
+    public static final byte LEAF_INSERT = 6; // offset: entry index, data: key, rid, see LeafPageView.insertAt
+    public static final byte LEAF_REMOVE = 7; // offset: entry index, data: the removed key, see LeafPageView.removeAt
+    private static final int MAGIC = 0x57414C31; // "WAL1"
+    private static final int CHECKPOINT_LSN_OFFSET = 8;
+    private static final int FILE_HEADER_SIZE = 16; // magic, reserved, checkpoint LSN, no record has LSN 0
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 1 + 4 + 4;
+    private static final int CRC_SIZE = 4;
+    private static final int INITIAL_BUFFER_SIZE = 1 << 20;
+    private static final long BACKGROUND_FLUSH_MS = 10; // appended records are written this often when nobody waits
+    private static final int MAX_WRITE_ATTEMPTS = 3;
+
+    public static class LogRecord {
+        public final long lsn;
+        public final byte type;
+        public final int pageId;
+        public final int offset;
+        public final byte[] data;
+
+        LogRecord(long lsn, byte type, int pageId, int offset, byte[] data) {
+            this.lsn = lsn;
+            this.type = type;
+            this.pageId = pageId;
+            this.offset = offset;
+            this.data = data;
+        }
+    }
+
+    private final Path path;
+    private FileChannel file;          // replaced by a compaction, guarded by fileLock once the writer runs
+    private long base = 0;             // LSN of file offset 0, guarded by fileLock
+    private final Object fileLock = new Object(); // the writer's writes, header writes and compactions, one at a time
+    private long compactions = 0;
+    private final Thread writerThread;
+    private ByteBuffer appendBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE); // records not handed to the writer yet
+    private ByteBuffer spareBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);  // the buffer being written, then reused
+    private final CRC32 crc = new CRC32();
+    private long nextLsn;              // end of the appended log
+    private volatile long flushedLsn;  // end of the durable log, every record below it survives a crash
+    private long requestedLsn = 0;     // highest end a caller is waiting for
+    private long forces = 0;
+    private boolean shutdown = false;
+    private IOException failure = null; // why the log cannot be written, set once and never cleared
+
+    public LogManager(String fileName) throws IOException {
+        path = Path.of(fileName);
+        Files.deleteIfExists(compactionPath()); // a compaction that did not finish, the log it would replace is whole
+        file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        if (file.size() < FILE_HEADER_SIZE || readFully(header, 0) < FILE_HEADER_SIZE || header.getInt(0) != MAGIC) {
+            file.truncate(0);
+            writeFully(ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(0, MAGIC), 0);
+            file.force(false);
+        }
+        base = firstRecordLsn() - FILE_HEADER_SIZE;
+        nextLsn = endOfValidLog();
+        file.truncate(nextLsn - base); // a torn record at the end is dropped, appends continue after the last whole one
+        flushedLsn = nextLsn;
+        writerThread = new Thread(this::startWriterThread, "log-writer");
+        writerThread.setDaemon(true); // shutdown flushes the log, an abandoned pool must not keep the JVM alive
+        writerThread.start();
+    }
+
+    // Appends a redo record for length bytes of the page's frame at offset and stamps the page with its LSN.
+    // The caller holds the page's write latch, so the page's records are appended in the order of its changes.
+    // rec_lsn is set under the log's monitor, so a checkpoint that reads the end of the log sees it on every page
+    // changed before that end.
+    public long logPageWrite(Page page, byte type, int offset, int length) {
+        byte[] data = new byte[length];
+        page.getBuffer().get(offset, data);
+        return logPageChange(page, type, offset, data);
+    }
+
+    // Same for a logical record, whose data says what was done to the page rather than the bytes it left.
+    public synchronized long logPageChange(Page page, byte type, int offset, byte[] data) {
+        long lsn = append(type, page.getPageId(), offset, data);
+        page.setLSN(lsn);
+        if (page.rec_lsn == 0) page.rec_lsn = lsn;
+        return lsn;
+    }
+
+    public long logAllocation(byte type, int pageId) {
+        return append(type, pageId, 0, new byte[0]);
+    }
+
+    private synchronized long append(byte type, int pageId, int offset, byte[] data) {
+        int length = RECORD_HEADER_SIZE + data.length + CRC_SIZE;
+        if (appendBuffer.remaining() < length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(appendBuffer.capacity() * 2, appendBuffer.position() + length));
+            appendBuffer.flip();
+            grown.put(appendBuffer);
+            appendBuffer = grown;
+        }
+        long lsn = nextLsn;
+        int start = appendBuffer.position();
+        if (start == 0) notifyAll(); // the writer sleeps while the buffer is empty, the background write starts now
+        appendBuffer.putInt(length).putLong(lsn).put(type).putInt(pageId).putInt(offset).put(data);
+        crc.reset();
+        crc.update(appendBuffer.array(), start, length - CRC_SIZE);
+        appendBuffer.putInt((int) crc.getValue());
+        nextLsn += length;
+        return lsn;
+    }
+
+    // Appends a checkpoint record and makes it the one recovery starts from: every change older than redoLsn is on
+    // disk. The record is durable before the header points at it. The log is then compacted when the records
+    // before redoLsn are at least as many bytes as the ones from it on, so copying stays linear in what is logged.
+    public long logCheckpoint(long redoLsn, Map<Integer, Long> dirtyPages) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(8 + dirtyPages.size() * 12);
+        data.putLong(redoLsn);
+        for (Map.Entry<Integer, Long> entry : dirtyPages.entrySet()) {
+            data.putInt(entry.getKey()).putLong(entry.getValue());
+        }
+        long lsn = append(CHECKPOINT, -1, 0, data.array());
+        flush(lsn);
+        ByteBuffer master = ByteBuffer.allocate(8).putLong(0, lsn);
+        synchronized (fileLock) { // the header is written by checkpoints only, one at a time
+            writeFully(master, CHECKPOINT_LSN_OFFSET);
+            file.force(false);
+            long dropped = redoLsn - (base + FILE_HEADER_SIZE);
+            if (dropped > 0 && dropped >= flushedLsn - redoLsn) {
+                compact(redoLsn, lsn);
+            }
+        }
+        return lsn;
+    }
+
+    // Must hold fileLock, so the writer waits and flushedLsn is the end of the file meanwhile. Copies the records
+    // from redoLsn on into a new file behind a header pointing at the checkpoint, forces it and moves it over the
+    // log. A crash leaves either the old log or the new one, both start recovery at the same checkpoint.
+    private void compact(long redoLsn, long checkpointLsn) throws IOException {
+        Path compacted = compactionPath();
+        long end = flushedLsn;
+        try (FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(0, MAGIC).putLong(CHECKPOINT_LSN_OFFSET, checkpointLsn);
+            while (header.hasRemaining()) {
+                target.write(header);
+            }
+            long copied = 0;
+            while (copied < end - redoLsn) {
+                copied += file.transferTo(redoLsn - base + copied, end - redoLsn - copied, target);
+            }
+            target.force(true);
+        }
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        file.close();
+        file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        base = redoLsn - FILE_HEADER_SIZE;
+        compactions++;
+    }
+
+    private Path compactionPath() {
+        return Path.of(path + ".compact");
+    }
+
+    // where recovery starts: the redo LSN of the last complete checkpoint, the start of the log without one
+    public long getRedoLsn() throws IOException {
+        ByteBuffer master = ByteBuffer.allocate(8);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + 8);
+        synchronized (fileLock) {
+            long start = base + FILE_HEADER_SIZE;
+            readFully(master, CHECKPOINT_LSN_OFFSET);
+            long checkpointLsn = master.getLong(0);
+            if (checkpointLsn < start || checkpointLsn >= flushedLsn) return start;
+            readFully(record, checkpointLsn - base);
+            if (record.get(12) != CHECKPOINT) return start;
+            return Math.max(record.getLong(RECORD_HEADER_SIZE), start);
+        }
+    }
+
+    // Blocks until the record at lsn is durable. Waiting callers share the writer's next force (group commit).
+    // Throws UncheckedIOException when the log has failed before the record was made durable.
+    public void flush(long lsn) {
+        if (lsn < flushedLsn) return;
+        synchronized (this) {
+            long target = Math.min(lsn + 1, nextLsn); // the end of the record at lsn
+            requestedLsn = Math.max(requestedLsn, target);
+            notifyAll();
+            boolean interrupted = false;
+            while (flushedLsn < target) {
+                if (failure != null) {
+                    if (interrupted) Thread.currentThread().interrupt();
+                    throw new UncheckedIOException("[LogManager] the log cannot be written, LSN " + lsn + " is not durable", failure);
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true; // the caller relies on durability, keep waiting
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    // blocks until every record appended so far is durable
+    public void flushAll() {
+        long end;
+        synchronized (this) {
+            end = nextLsn;
+        }
+        if (end > flushedLsn) flush(end - 1);
+    }
+
+    public synchronized long getEndLsn() { return nextLsn; }
+    public long getFlushedLsn() { return flushedLsn; }
+    public synchronized long getForceCount() { return forces; }
+    public synchronized boolean hasFailed() { return failure != null; }
+
+    // bytes of log kept on disk, the header included
+    public long getFileSize() throws IOException {
+        synchronized (fileLock) {
+            return file.size();
+        }
+    }
+
+    public long getCompactionCount() {
+        synchronized (fileLock) {
+            return compactions;
+        }
+    }
+
+    private void startWriterThread() {
+        int failedAttempts = 0;
+        while (true) {
+            ByteBuffer toWrite;
+            long position;
+            long end;
+            synchronized (this) {
+                while (!shutdown && requestedLsn <= flushedLsn && appendBuffer.position() == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // only shutdown stops the writer
+                    }
+                }
+                if (!shutdown && requestedLsn <= flushedLsn) {
+                    // nobody is waiting, give appenders a moment so the background write carries more records
+                    try {
+                        wait(BACKGROUND_FLUSH_MS);
+                    } catch (InterruptedException e) {
+                        // write what is there
+                    }
+                }
+                if (appendBuffer.position() == 0) {
+                    if (shutdown) return;
+                    continue;
+                }
+                toWrite = appendBuffer;
+                appendBuffer = spareBuffer;
+                position = flushedLsn;
+                end = nextLsn;
+            }
+            try {
+                toWrite.flip();
+                synchronized (fileLock) {
+                    writeFully(toWrite, position - base);
+                    file.force(false);
+                }
+            } catch (IOException e) {
+                // the records stay unacknowledged, so nothing that depends on them is written or reported durable
+                System.out.println("[LogManager] " + e);
+                synchronized (this) {
+                    appendBuffer = restore(toWrite, appendBuffer);
+                    spareBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+                    // a closed channel stays closed, other errors get a few more tries
+                    if (e instanceof ClosedChannelException || ++failedAttempts >= MAX_WRITE_ATTEMPTS) {
+                        failure = e;
+                        notifyAll(); // the waiters throw instead of waiting for this writer
+                        return;
+                    }
+                    try {
+                        wait(BACKGROUND_FLUSH_MS); // retried after a pause, not in a tight loop
+                    } catch (InterruptedException ie) {
+                        // retry now
+                    }
+                }
+                continue;
+            }
+            failedAttempts = 0;
+            synchronized (this) {
+                toWrite.clear();
+                spareBuffer = toWrite;
+                flushedLsn = end;
+                forces++;
+                notifyAll();
+            }
+        }
+    }
+
+    // must hold the monitor, puts the unwritten records back in front of the ones appended meanwhile
+    private static ByteBuffer restore(ByteBuffer unwritten, ByteBuffer appended) {
+        unwritten.position(0);
+        appended.flip();
+        ByteBuffer merged = ByteBuffer.allocate(Math.max(INITIAL_BUFFER_SIZE, unwritten.remaining() + appended.remaining() * 2));
+        merged.put(unwritten).put(appended);
+        return merged;
+    }
+
+    // Visits every whole record from fromLsn on in LSN order, for recovery.
+    public void scan(long fromLsn, Consumer<LogRecord> visitor) throws IOException {
+        long position;
+        synchronized (fileLock) {
+            position = Math.max(fromLsn, base + FILE_HEADER_SIZE);
+        }
+        long end = flushedLsn;
+        ByteBuffer header = ByteBuffer.allocate(4);
+        while (position < end) {
+            header.clear();
+            ByteBuffer record;
+            synchronized (fileLock) { // not around the visitor, which may need the writer
+                readFully(header, position - base);
+                record = ByteBuffer.allocate(header.getInt(0));
+                readFully(record, position - base);
+            }
+            int length = record.capacity();
+            record.flip();
+            record.getInt();
+            long lsn = record.getLong();
+            byte type = record.get();
+            int pageId = record.getInt();
+            int offset = record.getInt();
+            byte[] data = new byte[length - RECORD_HEADER_SIZE - CRC_SIZE];
+            record.get(data);
+            visitor.accept(new LogRecord(lsn, type, pageId, offset, data));
+            position += length;
+        }
+    }
+
+    // the LSN the first record of the file carries, FILE_HEADER_SIZE (base 0) for a log with no whole first record
+    private long firstRecordLsn() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4 + 8);
+        if (readFully(header, FILE_HEADER_SIZE) < header.capacity()) return FILE_HEADER_SIZE;
+        int length = header.getInt(0);
+        if (length < RECORD_HEADER_SIZE + CRC_SIZE || FILE_HEADER_SIZE + length > file.size()) return FILE_HEADER_SIZE;
+        ByteBuffer record = ByteBuffer.allocate(length);
+        readFully(record, FILE_HEADER_SIZE);
+        CRC32 check = new CRC32();
+        check.update(record.array(), 0, length - CRC_SIZE);
+        if ((int) check.getValue() != record.getInt(length - CRC_SIZE)) return FILE_HEADER_SIZE;
+        return Math.max(record.getLong(4), FILE_HEADER_SIZE);
+    }
+
+    // the LSN after the last record whose length and checksum are intact, the records before the last checkpoint's
+    // were durable when it was taken, so checking starts there
+    private long endOfValidLog() throws IOException {
+        ByteBuffer master = ByteBuffer.allocate(8);
+        readFully(master, CHECKPOINT_LSN_OFFSET);
+        long size = file.size();
+        long checkpoint = master.getLong(0) - base; // its offset in this file
+        long position = checkpoint >= FILE_HEADER_SIZE && checkpoint < size ? checkpoint : FILE_HEADER_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(4);
+        CRC32 check = new CRC32();
+        while (position + RECORD_HEADER_SIZE + CRC_SIZE <= size) {
+            header.clear();
+            readFully(header, position);
+            int length = header.getInt(0);
+            if (length < RECORD_HEADER_SIZE + CRC_SIZE || position + length > size) break;
+            ByteBuffer record = ByteBuffer.allocate(length);
+            if (readFully(record, position) < length) break;
+            check.reset();
+            check.update(record.array(), 0, length - CRC_SIZE);
+            if ((int) check.getValue() != record.getInt(length - CRC_SIZE) || record.getLong(4) != base + position) break;
+            position += length;
+        }
+        return base + position;
+    }
+
+    private int readFully(ByteBuffer target, long offset) throws IOException {
+        int total = 0;
+        while (target.hasRemaining()) {
+            int bytesRead = file.read(target, offset + total);
+            if (bytesRead == -1) break;
+            total += bytesRead;
+        }
+        return total;
+    }
+
+    private void writeFully(ByteBuffer source, long offset) throws IOException {
+        long position = offset;
+        while (source.hasRemaining()) {
+            position += file.write(source, position);
+        }
+    }
+
+    // writes and forces every appended record, then stops the writer; a failed log is closed all the same
+    public void shutdown() throws IOException {
+        try {
+            flushAll();
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        finally {
+            synchronized (this) {
+                shutdown = true;
+                notifyAll();
+            }
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (fileLock) {
+                file.close();
+            }
+        }
+    }
+}
@@ -7,6 +7,33 @@ public class Main {
         t.testDeletionScenarios();
         t.testDuplicateInsertion();
         t.testMergeAfterDeletions();
+        t.testConcurrentInsertAndLookup();
+        t.testShutdownDuringCheckpoint();
+        t.testLogFailureIsReported();
+        t.testLogIsCompacted();
+        t.testLeafRecordsAreReplayed();
+        t.testBulkLoadUnsorted();
+        t.testInsertAll();
+        t.testGetAll();
+        t.testDiskSchedulerBatching();
+        t.testPrefixCompression();
+        t.testKeyCodecs();
+        t.testMappedFileSizeAfterReopen();
+        t.testLRUKReplacer();
+        t.testClockReplacer();
+        t.testTwoQReplacer();
+        t.testArcReplacer();
+        t.testFetchPageAsync();
+        t.testReadAhead();
+        t.testPageFlusher();
+        t.testFreeSpaceMap();
+        t.testCursorScan();
+        t.testIntPages();
+        t.testPageSize();
+        t.testFlushPinnedPage();
+        t.testDeletePinnedPage();
+        t.testFailedEvictionWrite();
+        t.testFailedRecoveryIsThrown();
         /*t.testRedistribution();
         t.testStressAndOrder();
         t.testPersistenceCorrectness();
@@ -0,0 +1,100 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// DiskManager over memory mappings of the database file, for indexes that fit in RAM: a read is a copy out of
+// the page cache and a write a copy into it, with no system call per page. Writes become durable at sync().
+// The file is mapped in fixed 64 MB segments, a write past the mapped range maps (and so extends the file by) more.
+// shutdown cuts the file back to the last page written, so a reopened file does not count the unwritten rest of the
+// last segment as pages. After a crash that rest stays, its pages read as zeros like a page allocated but never written.
+public class MappedDiskManager extends DiskManager {
+    private static final int SEGMENT_SIZE = 64 << 20; // 64 MB, a whole number of pages of any size
+    private static final ByteBuffer ZEROS = ByteBuffer.allocate(Page.MAX_PAGE_SIZE).asReadOnlyBuffer();
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    public MappedDiskManager(String fileName) {
+        this(fileName, 0);
+    }
+
+    // pageSize as for DiskManager
+    public MappedDiskManager(String fileName, int pageSize) {
+        super(fileName, pageSize);
+        try {
+            mapUpTo(fileSize.get()); // the pages already in the file
+        }
+        catch (IOException e)
+        {
+            System.out.println(e);
+        }
+    }
+
+    @Override
+    public void writePage(int pageId, ByteBuffer data) throws IOException {
+        int pageSize = getPageSize();
+        int length = data.limit();
+        if (length > pageSize) {
+            throw new IllegalArgumentException("Page size must be less than or equals: "+pageSize);
+        }
+        long offset = (long) pageId * pageSize;
+        if (offset / SEGMENT_SIZE >= segments.length) {
+            mapUpTo(offset + pageSize);
+        }
+        MappedByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+        int index = (int) (offset % SEGMENT_SIZE);
+        segment.put(index, data, 0, length);
+        if (length < pageSize) {
+            segment.put(index + length, ZEROS, 0, pageSize - length); // pad the page with zeros
+        }
+        fileSize.accumulateAndGet(offset + pageSize, Math::max);
+    }
+
+    // a write to the mapping costs no system call, so there is nothing to gather
+    @Override
+    public void writePages(int firstPageId, ByteBuffer[] pages) throws IOException {
+        for (int i = 0; i < pages.length; i++) {
+            writePage(firstPageId + i, pages[i]);
+        }
+    }
+
+    @Override
+    public void readPage(int pageId, ByteBuffer buffer) throws IOException {
+        int pageSize = getPageSize();
+        long offset = (long) pageId * pageSize;
+        long length = fileSize.get();
+        if (offset >= length) {
+            throw new IllegalArgumentException("Offset Must be within the file length, offset = " + offset +
+                    "  File Length = "+length);
+        }
+        // every page below fileSize is mapped, the mapping is grown before a write advances fileSize
+        buffer.put(0, segments[(int) (offset / SEGMENT_SIZE)], (int) (offset % SEGMENT_SIZE), pageSize);
+    }
+
+    // maps whole segments until [0, end) is covered, growth is rare so it is done under the lock
+    private synchronized void mapUpTo(long end) throws IOException {
+        int needed = (int) ((end + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        if (needed <= segments.length) return;
+        MappedByteBuffer[] grown = Arrays.copyOf(segments, needed);
+        for (int i = segments.length; i < needed; i++) {
+            // mapping read-write past the end extends the file, the unwritten part stays a hole
+            grown[i] = file.map(FileChannel.MapMode.READ_WRITE, (long) i * SEGMENT_SIZE, SEGMENT_SIZE);
+        }
+        segments = grown; // published whole, readers never see a half-built array
+    }
+
+    @Override
+    public void sync() throws IOException {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        sync();
+        segments = new MappedByteBuffer[0];
+        file.truncate(fileSize.get()); // the mapping extended the file to a whole segment
+        super.shutdown();
+    }
+}
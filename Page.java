@@ -1,32 +1,89 @@
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+// A buffer pool frame. Pool frames are slices of the pool's FrameArena and the Page object of a frame is recycled
+// (see reset) for every page the frame holds, so nothing is allocated per fetch.
+// The last LSN_SIZE bytes of every frame are reserved for the LSN trailer (see lsnOffset), page layouts only use the
+// first getUsableSize() bytes.
 public class Page {
+    public static final int INVALID_PAGE_ID = -1; // the frame holds no page
+
     private int page_id;
     public int pin_count;
     public boolean  is_dirty;
-    public byte [] buffer;
+    public long dirty_since; // System.nanoTime() when the page last went from clean to dirty
+    public volatile long rec_lsn; // LSN of the first change not written to disk yet, 0 when the disk has them all
+    private final ByteBuffer data; // the frame, shared by the page views
+    private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock(); // guards buffer contents, only taken while pinned
+
+
+    // The page size is chosen per database file (see DiskManager), a power of two in [MIN_PAGE_SIZE, MAX_PAGE_SIZE]
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+    public static final int MIN_PAGE_SIZE = 4096;
+    public static final int MAX_PAGE_SIZE = 64 << 10;
+    // the last 8 bytes hold the LSN of the page's last log record, page layouts use the bytes before it
+    public static final int LSN_SIZE = 8;
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(MAX_PAGE_SIZE).asReadOnlyBuffer();
 
-    // Fixed-size buffer (typical DB page sizes: 4KB, 8KB, etc.)
-    public static final int PAGE_SIZE = 4096;
+    public static int lsnOffset(int pageSize) { return pageSize - LSN_SIZE; }
+    public static int usableSize(int pageSize) { return pageSize - LSN_SIZE; }
 
+    // a page with its own heap frame, outside any buffer pool
     public Page(int id)
+    {
+        this(id, ByteBuffer.allocate(DEFAULT_PAGE_SIZE));
+    }
+    // frame must be the file's page size, it is used from index 0 and its position is never moved
+    public Page(int id, ByteBuffer frame)
     {
         this.page_id = id;
         this.is_dirty = false;
-        this.buffer = new byte[PAGE_SIZE];
+        this.data = frame;
     }
     public int getPageId() {
         return this.page_id;
     }
-    public byte[] getData() {
-        return this.buffer;
+    // the frame now holds pageId (or nothing, INVALID_PAGE_ID), its contents are left for the caller to fill
+    public void reset(int pageId) {
+        this.page_id = pageId;
+        this.pin_count = 0;
+        this.is_dirty = false;
+        this.dirty_since = 0;
+        this.rec_lsn = 0;
+    }
+    // a copy of the whole frame, LSN trailer included. The frame is no longer a byte[] of its own, so the old
+    // getData() that handed out the live array is gone: use getBuffer() to work on the frame itself
+    public byte[] copyData() {
+        byte[] copy = new byte[getSize()];
+        this.data.get(0, copy);
+        return copy;
+    }
+    public ByteBuffer getBuffer() {
+        return this.data;
+    }
+    // copies into the frame, so views over this frame stay valid. data fills at most getUsableSize() bytes, the rest
+    // of the usable part is zeroed and the LSN trailer is left alone
+    public void setData(byte[] data) {
+        this.data.put(0, data);
+        this.data.put(data.length, ZEROS, 0, getUsableSize() - data.length);
     }
-    public void setData(byte[] data) {this.buffer = data;}
-    public int getSize(){ return this.buffer.length; }
+    public void zero() {
+        this.data.put(0, ZEROS, 0, getSize());
+    }
+    public int getSize(){ return this.data.capacity(); }
+    public int getUsableSize() { return usableSize(getSize()); }
+    public long getLSN() { return this.data.getLong(lsnOffset(getSize())); }
+    public void setLSN(long lsn) { this.data.putLong(lsnOffset(getSize()), lsn); }
+
+    //   ===================   page latch   ===================
+    public void rLatch() { latch.readLock().lock(); }
+    public void rUnlatch() { latch.readLock().unlock(); }
+    public void wLatch() { latch.writeLock().lock(); }
+    public void wUnlatch() { latch.writeLock().unlock(); }
+
     @Override
     public String toString() {
-        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        ByteBuffer bb = data.duplicate();
         int pageType = bb.getInt();
         int pageId = bb.getInt();
         int size = (pageType == 1) ? bb.getInt() : bb.getInt();
@@ -0,0 +1,63 @@
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+// Background writer of the write-back buffer pool. Every interval it asks each shard to write back the pages that
+// have been dirty for longer than the age limit, and enough of the oldest others to bring the shard down to the
+// dirty-ratio target, so evictions mostly find clean victims and no change stays in memory only for long.
+public class PageFlusher {
+    public static final double DEFAULT_DIRTY_RATIO = 0.25;
+    public static final long DEFAULT_MAX_AGE_MS = 1000;
+    private static final long INTERVAL_MS = 50;
+
+    private final BufferPoolShard[] shards;
+    private final Thread backgroundThread;
+    private volatile boolean shutdown = false;
+    private volatile double dirtyRatio = DEFAULT_DIRTY_RATIO;
+    private volatile long maxAgeNanos = DEFAULT_MAX_AGE_MS * 1_000_000L;
+
+    public PageFlusher(BufferPoolShard[] shards) {
+        this.shards = shards;
+        backgroundThread = new Thread(this::startWorkerThread, "page-flusher");
+        backgroundThread.setDaemon(true); // shutdown flushes everything, an abandoned pool must not keep the JVM alive
+        backgroundThread.start();
+    }
+
+    public void setPolicy(double dirtyRatio, long maxAgeMillis) {
+        if (dirtyRatio < 0 || dirtyRatio > 1 || maxAgeMillis < 0) {
+            throw new IllegalArgumentException("dirtyRatio must be in [0, 1] and maxAgeMillis >= 0: " + dirtyRatio + ", " + maxAgeMillis);
+        }
+        this.dirtyRatio = dirtyRatio;
+        this.maxAgeNanos = maxAgeMillis * 1_000_000L;
+    }
+
+    private void startWorkerThread() {
+        while (!shutdown) {
+            try {
+                for (BufferPoolShard shard : shards) {
+                    // waiting for each shard's writes keeps the flusher from flooding the disk queue ahead of reads
+                    List<DiskRequest> writes = shard.flushDirtyPages(dirtyRatio, maxAgeNanos);
+                    for (DiskRequest write_rqst : writes) {
+                        try {
+                            write_rqst.getCompletionFuture().get();
+                        } catch (ExecutionException e) {
+                            System.out.println("[PageFlusher] " + e.getCause()); // the shard has marked the page dirty again
+                        }
+                    }
+                }
+                Thread.sleep(INTERVAL_MS);
+            } catch (InterruptedException e) {
+                if (shutdown) break;
+            }
+        }
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        backgroundThread.interrupt();
+        try {
+            backgroundThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decides which pages to read ahead of a caller. Every fetch is reported through onFetch, which returns the pages
+// to queue next. A thread is read ahead of either because it follows an explicit hint (the exact order it is
+// about to visit pages in) or because its last fetches were to consecutive page ids.
+// The window (how many pages are kept in flight ahead of the reader) is shared and adaptive: it grows by one
+// for each read-ahead page that gets used and halves whenever one is evicted before anybody fetched it.
+public class ReadAhead {
+    public static final int MIN_WINDOW = 1;
+    public static final int MAX_WINDOW = 64;
+    private static final int INITIAL_WINDOW = 8;
+    private static final int SEQUENTIAL_TRIGGER = 4; // consecutive page ids before a sequential run is read ahead
+    private static final int[] NONE = new int[0];
+
+    private final AtomicInteger window = new AtomicInteger(INITIAL_WINDOW);
+    private final AtomicLong used = new AtomicLong(0);
+    private final AtomicLong wasted = new AtomicLong(0);
+    private final ThreadLocal<Stream> streams = ThreadLocal.withInitial(Stream::new);
+
+    // access pattern of one thread
+    private static class Stream {
+        int lastPageId = Integer.MIN_VALUE;
+        int runLength = 0;
+        int queuedUpTo = Integer.MIN_VALUE; // highest page id of the sequential run already queued
+        int[] hint;                         // explicit visiting order, null when detecting runs
+        int hintPos = 0;                    // next hint slot expected to be fetched
+        int hintQueued = 0;                 // hint[0..hintQueued) were already queued
+    }
+
+    // the calling thread is about to fetch pageIds in this order, replaces any previous hint
+    public void hint(int[] pageIds) {
+        Stream s = streams.get();
+        s.hint = pageIds;
+        s.hintPos = 0;
+        s.hintQueued = 0;
+    }
+
+    public void clearHint() {
+        streams.get().hint = null;
+    }
+
+    // pages the calling thread should have queued after fetching pageId, in the order they will be needed
+    public int[] onFetch(int pageId) {
+        Stream s = streams.get();
+        return s.hint != null ? followHint(s, pageId) : followSequential(s, pageId);
+    }
+
+    private int[] followHint(Stream s, int pageId) {
+        // the hint may be stale (pages split or merged since it was taken), pages off the hint are ignored
+        int pos = -1;
+        for (int i = s.hintPos; i < s.hint.length && i < s.hintPos + MAX_WINDOW; i++) {
+            if (s.hint[i] == pageId) { pos = i; break; }
+        }
+        if (pos == -1) return NONE;
+        s.hintPos = pos + 1;
+
+        int from = Math.max(s.hintQueued, pos + 1);
+        int to = Math.min(s.hint.length, pos + 1 + window.get());
+        if (from >= to) return NONE;
+        s.hintQueued = to;
+        int[] pages = new int[to - from];
+        System.arraycopy(s.hint, from, pages, 0, pages.length);
+        return pages;
+    }
+
+    private int[] followSequential(Stream s, int pageId) {
+        if (pageId == s.lastPageId) return NONE; // refetching the same page is neither a step forward nor a break
+        if (pageId == s.lastPageId + 1) {
+            s.runLength++;
+        } else {
+            s.runLength = 1;
+            s.queuedUpTo = pageId;
+        }
+        s.lastPageId = pageId;
+        if (s.runLength < SEQUENTIAL_TRIGGER) return NONE;
+
+        int from = Math.max(s.queuedUpTo + 1, pageId + 1);
+        int to = pageId + 1 + window.get();
+        if (from >= to) return NONE;
+        s.queuedUpTo = to - 1;
+        int[] pages = new int[to - from];
+        for (int i = 0; i < pages.length; i++) pages[i] = from + i;
+        return pages;
+    }
+
+    // a read-ahead page was fetched before it was evicted
+    public void onUsed() {
+        used.incrementAndGet();
+        window.updateAndGet(w -> Math.min(MAX_WINDOW, w + 1));
+    }
+
+    // a read-ahead page was evicted without ever being fetched, reading that far ahead only displaced useful pages
+    public void onWasted() {
+        wasted.incrementAndGet();
+        window.updateAndGet(w -> Math.max(MIN_WINDOW, w / 2));
+    }
+
+    public int getWindow() { return window.get(); }
+    public long getUsed() { return used.get(); }
+    public long getWasted() { return wasted.get(); }
+}
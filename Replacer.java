@@ -0,0 +1,34 @@
+import java.util.function.IntPredicate;
+
+// Page replacement policy of a buffer pool shard. Frame ids are local to the shard (0..poolSize-1).
+// The pool records every access, marks frames evictable when their pin count drops to zero and asks
+// for a victim only when its free list is empty.
+public interface Replacer {
+    void recordAccess(int frameId);
+
+    // policies with ghost lists (2Q, ARC) need to know which page a frame holds,
+    // the others only track frames
+    default void recordAccess(int frameId, int pageId) {
+        recordAccess(frameId);
+    }
+
+    void setEvictable(int frameId, boolean evictable);
+
+    // how many of its next victims a policy looks through for a preferred one
+    int PREFERRED_LOOKAHEAD = 8;
+
+    // picks a victim, writes it to frameId[0] and forgets it; false when nothing is evictable
+    boolean evict(int[] frameId);
+
+    // like evict, but takes the first frame accepted by preferred among the policy's next PREFERRED_LOOKAHEAD
+    // victims, and the plain victim only when none is. The pool prefers clean frames, which it can reuse without a write.
+    default boolean evict(int[] frameId, IntPredicate preferred) {
+        return evict(frameId);
+    }
+
+    // forgets the frame, used when the page in it is deleted
+    void remove(int frameId);
+
+    // number of evictable frames
+    int size();
+}
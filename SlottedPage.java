@@ -0,0 +1,54 @@
+// The variable-length page format of LeafPage and InternalPage, for trees built with a KeyCodec.
+// Leaf:     type | pageID | size | maxSize | nextPageID | prefixLength(2) | unused(2) | prefix | slots | cells
+//           cell = suffixLength(2) | key suffix | valueLength(2) | value
+// Internal: type | pageID | size | maxSize | child 0   | prefixLength(2) | unused(2) | prefix | slots | cells
+//           cell = suffixLength(2) | key suffix | child pageID(4)       (the cells are keys 1..size)
+// Each slot holds the 2-byte page offset of its cell, in key order. The prefix all keys of the page share is
+// stored once and stripped from every cell. Such pages fill by bytes: maxSize only bounds the slot count.
+// Offsets and lengths are 2 bytes, enough for the largest page size.
+public final class SlottedPage {
+    public static final int LEAF_PAGE_TYPE = 3;
+    public static final int INTERNAL_PAGE_TYPE = 4;
+    public static final int PAGE_ID_OFFSET = 4;
+    public static final int SIZE_OFFSET = 8;
+    public static final int MAX_SIZE_OFFSET = 12;
+    public static final int LINK_OFFSET = 16;           // nextPageID of a leaf, child 0 of an internal page
+    public static final int PREFIX_LENGTH_OFFSET = 20;
+    public static final int HEADER_SIZE = 24;
+    public static final int SLOT_SIZE = 2;
+    public static final int LEAF_CELL_OVERHEAD = 4;     // key and value lengths
+    public static final int INTERNAL_CELL_OVERHEAD = 6; // key length, child page id
+    // Limits for pages of capacity usable bytes (the page size less its LSN):
+    // a cell is at most a quarter of the page, so an overflowing page always splits into two halves that fit
+    public static int maxCellSize(int capacity) {
+        return (capacity - HEADER_SIZE) / 4;
+    }
+
+    // a page holding fewer bytes than this (past its header) underflows
+    public static int minFill(int capacity) {
+        return (capacity - HEADER_SIZE) / 4;
+    }
+
+    // every cell takes at least its slot and its lengths
+    public static int maxSlots(int capacity) {
+        return (capacity - HEADER_SIZE) / (SLOT_SIZE + LEAF_CELL_OVERHEAD);
+    }
+
+    private SlottedPage() {}
+
+    public static boolean isLeafPage(Page page) {
+        return page.getBuffer().getInt(0) == LEAF_PAGE_TYPE;
+    }
+
+    public static boolean isInternalPage(Page page) {
+        return page.getBuffer().getInt(0) == INTERNAL_PAGE_TYPE;
+    }
+
+    // length of the longest common prefix of a and b
+    public static int commonPrefix(byte[] a, byte[] b) {
+        int limit = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < limit && a[i] == b[i]) i++;
+        return i;
+    }
+}
@@ -0,0 +1,125 @@
+import java.nio.ByteBuffer;
+
+// Flyweight over a SlottedPage frame, the read side of the variable-length LeafPage and InternalPage.
+// Searches take the encoded key and compare it with the bytes on the page, unsigned, so no key is decoded:
+// the page prefix is compared once per search, each probe then compares the cell's suffix only.
+// Layout: see SlottedPage.
+public class SlottedPageView {
+    private ByteBuffer data;
+
+    public SlottedPageView wrap(Page page) {
+        this.data = page.getBuffer();
+        return this;
+    }
+
+    public int getPageID() { return data.getInt(SlottedPage.PAGE_ID_OFFSET); }
+    public int getSize() { return data.getInt(SlottedPage.SIZE_OFFSET); }
+    public int getMaxSize() { return data.getInt(SlottedPage.MAX_SIZE_OFFSET); }
+    public int getNextPageId() { return data.getInt(SlottedPage.LINK_OFFSET); }
+    public int getPrefixLength() { return data.getShort(SlottedPage.PREFIX_LENGTH_OFFSET) & 0xFFFF; }
+
+    // the cell of slot index, slots are 0-based (internal pages keep key i in slot i - 1)
+    private int cellOffset(int index) {
+        return data.getShort(SlottedPage.HEADER_SIZE + getPrefixLength() + index * SlottedPage.SLOT_SIZE) & 0xFFFF;
+    }
+
+    private int suffixLength(int cell) {
+        return data.getShort(cell) & 0xFFFF;
+    }
+
+    // Leaf search, same contract as LeafPage.search: the key's index when present, otherwise -(insertion point) - 1
+    public int search(byte[] key) {
+        ByteBuffer wrapped = ByteBuffer.wrap(key);
+        int size = getSize();
+        int prefixCmp = comparePrefix(wrapped);
+        if (prefixCmp < 0) return -1;
+        if (prefixCmp > 0) return -(size + 1);
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareSuffix(wrapped, cellOffset(mid));
+            if (cmp > 0) {
+                low = mid + 1;
+            } else if (cmp < 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    // the encoded value of leaf entry index, the only bytes a lookup copies out
+    public byte[] valueBytes(int index) {
+        int cell = cellOffset(index);
+        int valueOffset = cell + 2 + suffixLength(cell);
+        byte[] value = new byte[data.getShort(valueOffset) & 0xFFFF];
+        data.get(valueOffset + 2, value);
+        return value;
+    }
+
+    // Internal search, same contract as InternalPage.binarySearch: keys are 1-based, returns the child index
+    public int binarySearch(byte[] key) {
+        ByteBuffer wrapped = ByteBuffer.wrap(key);
+        int size = getSize();
+        int prefixCmp = comparePrefix(wrapped);
+        if (prefixCmp < 0) return 0;
+        if (prefixCmp > 0) return size;
+        int low = 1;
+        int high = size;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareSuffix(wrapped, cellOffset(mid - 1));
+            if (cmp < 0) {
+                high = mid - 1;
+            } else if (cmp > 0) {
+                low = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return low - 1;
+    }
+
+    public int valueAt(int index) {
+        if (index == 0) return data.getInt(SlottedPage.LINK_OFFSET);
+        int cell = cellOffset(index - 1);
+        return data.getInt(cell + 2 + suffixLength(cell));
+    }
+
+    public int childFor(byte[] key) {
+        return valueAt(binarySearch(key));
+    }
+
+    // the key against the prefix every key of the page shares, 0 when the key starts with it
+    // (a key that is a proper prefix of it sorts before every key of the page)
+    private int comparePrefix(ByteBuffer key) {
+        int prefix = getPrefixLength();
+        return compare(key, 0, Math.min(prefix, key.limit()), SlottedPage.HEADER_SIZE, prefix);
+    }
+
+    // the key past the page prefix against the suffix stored in cell
+    private int compareSuffix(ByteBuffer key, int cell) {
+        int prefix = getPrefixLength();
+        return compare(key, prefix, key.limit() - prefix, cell + 2, suffixLength(cell));
+    }
+
+    // unsigned comparison of keyLength bytes of key at from with length bytes of the page at offset,
+    // eight bytes at a time while both have them (both buffers are big-endian, so longs order like their bytes)
+    private int compare(ByteBuffer key, int from, int keyLength, int offset, int length) {
+        int common = Math.min(keyLength, length);
+        int i = 0;
+        for (; i + 8 <= common; i += 8) {
+            long a = key.getLong(from + i);
+            long b = data.getLong(offset + i);
+            if (a != b) return Long.compareUnsigned(a, b);
+        }
+        for (; i < common; i++) {
+            int a = key.get(from + i) & 0xFF;
+            int b = data.get(offset + i) & 0xFF;
+            if (a != b) return a - b;
+        }
+        return keyLength - length;
+    }
+}
@@ -1,4 +1,5 @@
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public class Test<Key extends Comparable<Key>, RID> {
 
@@ -23,6 +24,17 @@ public class Test<Key extends Comparable<Key>, RID> {
         }
     }
 
+    // every pool writes to database.db, the previous test's pool must be flushed and stopped before the next one starts
+    private void shutdown(BufferPoolManager bpm) {
+        try {
+            bpm.shutdown();
+        }
+        catch (Exception e)
+        {
+            System.out.println(e);
+        }
+    }
+
     public void testInsertAndGetAllKeys() {
         System.out.println("0- Start testInsertAndGetAllKeys() Test");
         BufferPoolManager bpm = new BufferPoolManager(100, 3); // size 100 pool
@@ -44,6 +56,7 @@ public class Test<Key extends Comparable<Key>, RID> {
             throw new RuntimeException("❌ Unexpected value found for missing key 999");
         }
         System.out.println("✅ testBasicInsertionAndSearch passed");
+        shutdown(bpm);
     }
 
     public void testDeletionScenarios() {
@@ -87,6 +100,7 @@ public class Test<Key extends Comparable<Key>, RID> {
         }
 
         System.out.println("✅ Deletion tests completed successfully.");
+        shutdown(bpm);
     }
 
     public void testDuplicateInsertion() {
@@ -95,6 +109,7 @@ public class Test<Key extends Comparable<Key>, RID> {
         assert tree.insert(15, 115);
         assert !tree.insert(15, 120);  // Duplicate
         assert tree.getValue(15).equals(115);
+        shutdown(bpm);
     }
 
     public void testMergeAfterDeletions() {
@@ -112,6 +127,1352 @@ public class Test<Key extends Comparable<Key>, RID> {
             }
         }
         assert tree.getAllKeysInOrder().equals(List.of(17));
+        shutdown(bpm);
+    }
+
+    public void testConcurrentInsertAndLookup() {
+        BufferPoolManager bpm = new BufferPoolManager(50, 3);
+        BPlusTree<Integer, Integer> tree = new BPlusTree<>(4, bpm); // small page size so writers split and crab past each other
+        int threads = 4;
+        int perThread = 50;
+        List<Thread> workers = new ArrayList<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        int key = i * threads + id; // threads interleave over the same leaves
+                        if (!tree.insert(key, key + 100))
+                            throw new RuntimeException("❌ Insert failed for key: " + key);
+                        Integer val = tree.getValue(key);
+                        if (val == null || val != key + 100)
+                            throw new RuntimeException("❌ Wrong value for key " + key + ", Got: " + val);
+                    }
+                    for (int i = 0; i < perThread / 2; i++) {
+                        int key = i * threads + id;
+                        if (!tree.remove(key))
+                            throw new RuntimeException("❌ Remove failed for key: " + key);
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw new RuntimeException("❌ Concurrent worker failed", failures.get(0));
+        }
+
+        List<Integer> keys = tree.getAllKeysInOrder();
+        int first = (perThread / 2) * threads;
+        for (int i = 0; i < keys.size(); i++) {
+            if (keys.get(i) != first + i) {
+                throw new RuntimeException("❌ Unexpected key order after concurrent run: " + keys);
+            }
+        }
+        if (keys.size() != threads * perThread - first) {
+            throw new RuntimeException("❌ Expected " + (threads * perThread - first) + " keys, Got: " + keys.size());
+        }
+        System.out.println("✅ testConcurrentInsertAndLookup passed");
+        shutdown(bpm);
+    }
+
+    public void testShutdownDuringCheckpoint() {
+        BufferPoolManager bpm = new BufferPoolManager(64, 3);
+        BPlusTree<Integer, Integer> tree = new BPlusTree<>(4, bpm); // small pages, so many dirty pages per checkpoint
+        bpm.setCheckpointPolicy(1, 1 << 20, 1_000_000); // checkpoints back to back and unpaced, so shutdown lands inside one
+        for (int key = 0; key < 3000; key++) {
+            if (!tree.insert(key, key + 100))
+                throw new RuntimeException("❌ Insert failed for key: " + key);
+        }
+        int root = tree.getRootPageID();
+
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        Thread stopper = new Thread(() -> {
+            try {
+                bpm.shutdown();
+            } catch (Throwable e) {
+                failures.add(e);
+            }
+        });
+        stopper.start();
+        try {
+            stopper.join(60_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (stopper.isAlive()) {
+            throw new RuntimeException("❌ shutdown did not return while a checkpoint was running");
+        }
+        if (!failures.isEmpty()) {
+            throw new RuntimeException("❌ shutdown failed while a checkpoint was running", failures.get(0));
+        }
+
+        // the files must still be usable: every key is there after a restart
+        BufferPoolManager reopened = new BufferPoolManager(64, 3);
+        BPlusTree<Integer, Integer> again = new BPlusTree<>(4, reopened);
+        again.setRootPageID(root);
+        for (int key = 0; key < 3000; key++) {
+            Integer val = again.getValue(key);
+            if (val == null || val != key + 100)
+                throw new RuntimeException("❌ Wrong value for key " + key + " after restart, Got: " + val);
+        }
+        System.out.println("✅ testShutdownDuringCheckpoint passed");
+        shutdown(reopened);
+    }
+
+    public void testLogFailureIsReported() {
+        java.io.File walFile = new java.io.File("failure-test.wal");
+        walFile.delete();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        Thread worker = new Thread(() -> {
+            try {
+                LogManager log = new LogManager(walFile.getPath());
+                // an interrupted thread writing the log header closes the log's channel for everyone
+                Thread.currentThread().interrupt();
+                try {
+                    log.logCheckpoint(0, Map.of());
+                } catch (java.io.IOException expected) {
+                    // ClosedByInterruptException
+                }
+                Thread.interrupted();
+                long lsn = log.logAllocation(LogManager.ALLOCATE, 1);
+                try {
+                    log.flush(lsn);
+                    failures.add(new RuntimeException("❌ flush returned on a closed log"));
+                } catch (java.io.UncheckedIOException expected) {
+                    // reported instead of waiting forever
+                }
+                if (!log.hasFailed()) failures.add(new RuntimeException("❌ the log is not marked failed"));
+                log.shutdown();
+            } catch (Throwable e) {
+                if (!(e instanceof java.io.IOException)) failures.add(e); // shutdown may report the failure again
+            }
+        });
+        worker.start();
+        try {
+            worker.join(30_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        walFile.delete();
+        if (worker.isAlive()) {
+            throw new RuntimeException("❌ a flush on a failed log did not return");
+        }
+        if (!failures.isEmpty()) {
+            throw new RuntimeException("❌ testLogFailureIsReported failed", failures.get(0));
+        }
+        System.out.println("✅ testLogFailureIsReported passed");
+    }
+
+    public void testLogIsCompacted() {
+        java.io.File walFile = new java.io.File("database.db.wal");
+        List<Integer> roots = new ArrayList<>();
+        for (int run = 0; run < 3; run++) {
+            BufferPoolManager bpm = new BufferPoolManager(64, 3);
+            BPlusTree<Integer, Integer> tree = new BPlusTree<>(4, bpm);
+            for (int key = 0; key < 1000; key++) {
+                tree.insert(key, key + run);
+            }
+            long grown = walFile.length();
+            try {
+                bpm.checkpoint(); // writes the dirty pages, so the next checkpoint's redo LSN is near the end
+                bpm.checkpoint();
+            } catch (Exception e) {
+                throw new RuntimeException("❌ checkpoint failed", e);
+            }
+            if (walFile.length() >= grown) {
+                throw new RuntimeException("❌ the log was not compacted by a checkpoint: " + grown + " -> " + walFile.length());
+            }
+            roots.add(tree.getRootPageID());
+            shutdown(bpm);
+            // a clean shutdown leaves only the header and the last checkpoint record
+            if (walFile.length() > 1024) {
+                throw new RuntimeException("❌ the log keeps " + walFile.length() + " bytes after a clean shutdown");
+            }
+        }
+
+        BufferPoolManager bpm = new BufferPoolManager(64, 3);
+        for (int run = 0; run < roots.size(); run++) {
+            BPlusTree<Integer, Integer> tree = new BPlusTree<>(4, bpm);
+            tree.setRootPageID(roots.get(run));
+            for (int key = 0; key < 1000; key++) {
+                Integer val = tree.getValue(key);
+                if (val == null || val != key + run)
+                    throw new RuntimeException("❌ Wrong value for key " + key + " of run " + run + ", Got: " + val);
+            }
+        }
+        System.out.println("✅ testLogIsCompacted passed");
+        shutdown(bpm);
+    }
+
+    public void testLeafRecordsAreReplayed() {
+        java.nio.file.Path db = java.nio.file.Path.of("database.db");
+        java.nio.file.Path wal = java.nio.file.Path.of("database.db.wal");
+        java.nio.file.Path dbCopy = java.nio.file.Path.of("replay-test.db");
+        java.nio.file.Path walCopy = java.nio.file.Path.of("replay-test.db.wal");
+        // nothing reaches the page file on its own, so the tree's pages come back from the log alone
+        BufferPoolManager bpm = new BufferPoolManager(4096, 3);
+        bpm.setFlushPolicy(1.0, 3_600_000);
+        bpm.setCheckpointPolicy(3_600_000, 1L << 40, 100000);
+        BPlusTree<Integer, Integer> tree = new BPlusTree<>(8, bpm);
+        List<Integer> keys = new ArrayList<>();
+        for (int key = 0; key < 2000; key++) keys.add(key);
+        Collections.shuffle(keys, new Random(7));
+        for (int key : keys) tree.insert(key, key); // in place, and splits that log the bytes they changed
+        for (int key = 1; key < 2000; key += 2) tree.remove(key);
+        for (int key = 1; key < 2000; key += 4) tree.insert(key, -key);
+        bpm.setSyncCommit(true);
+        bpm.commit();
+        try {
+            // the files as a crash would leave them
+            java.nio.file.Files.copy(db, dbCopy, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            java.nio.file.Files.copy(wal, walCopy, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            int root = tree.getRootPageID();
+            shutdown(bpm);
+            java.nio.file.Files.move(dbCopy, db, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            java.nio.file.Files.move(walCopy, wal, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+
+            BufferPoolManager recovered = new BufferPoolManager(4096, 3);
+            tree = new BPlusTree<>(8, recovered);
+            tree.setRootPageID(root);
+            for (int key = 0; key < 2000; key++) {
+                Integer expected = key % 2 == 0 ? Integer.valueOf(key) : key % 4 == 1 ? Integer.valueOf(-key) : null;
+                Integer val = tree.getValue(key);
+                if (!Objects.equals(val, expected))
+                    throw new RuntimeException("❌ Wrong value after replay for key " + key + ", Expected: " + expected + ", Got: " + val);
+            }
+            System.out.println("✅ testLeafRecordsAreReplayed passed");
+            shutdown(recovered);
+        } catch (java.io.IOException e) {
+            throw new RuntimeException("❌ could not copy the database files", e);
+        }
+    }
+
+    public void testBulkLoadUnsorted() {
+        for (int runSize : new int[] {ExternalSorter.DEFAULT_RUN_SIZE, 1000}) { // one run in memory, then spilled runs
+            BufferPoolManager bpm = new BufferPoolManager(1024, 3);
+            BPlusTree<Integer, Integer> tree = new BPlusTree<>(16, bpm);
+            Map<Integer, Integer> expected = new TreeMap<>();
+            List<Map.Entry<Integer, Integer>> entries = new ArrayList<>();
+            Random random = new Random(runSize);
+            while (expected.size() < 10000) {
+                int key = random.nextInt(1_000_000) - 500_000;
+                if (expected.putIfAbsent(key, key * 3) == null) entries.add(Map.entry(key, key * 3));
+            }
+            try {
+                tree.bulkLoadUnsorted(entries.iterator(), runSize);
+            } catch (java.io.IOException e) {
+                throw new RuntimeException("❌ bulkLoadUnsorted failed", e);
+            }
+            if (!tree.getAllKeysInOrder().equals(new ArrayList<>(expected.keySet()))) {
+                throw new RuntimeException("❌ The loaded keys differ from the input, runSize " + runSize);
+            }
+            for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+                Integer val = tree.getValue(entry.getKey());
+                if (!entry.getValue().equals(val))
+                    throw new RuntimeException("❌ Wrong value for key " + entry.getKey() + ", Expected: " + entry.getValue() + ", Got: " + val);
+            }
+
+            // the loaded tree takes ordinary inserts and removes
+            for (int key = 500_000; key < 502_000; key++) {
+                if (!tree.insert(key, key)) throw new RuntimeException("❌ Insert after bulk load failed for key: " + key);
+                expected.put(key, key);
+            }
+            Iterator<Integer> it = expected.keySet().iterator();
+            for (int i = 0; it.hasNext(); i++) {
+                int key = it.next();
+                if (i % 3 != 0) continue;
+                tree.remove(key);
+                it.remove();
+            }
+            if (!tree.getAllKeysInOrder().equals(new ArrayList<>(expected.keySet()))) {
+                throw new RuntimeException("❌ Wrong keys after inserts and removes on a bulk loaded tree, runSize " + runSize);
+            }
+            for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+                Integer val = tree.getValue(entry.getKey());
+                if (!entry.getValue().equals(val))
+                    throw new RuntimeException("❌ Wrong value for key " + entry.getKey() + ", Expected: " + entry.getValue() + ", Got: " + val);
+            }
+            shutdown(bpm);
+        }
+        System.out.println("✅ testBulkLoadUnsorted passed");
+    }
+
+    public void testInsertAll() {
+        BufferPoolManager bpm = new BufferPoolManager(1024, 3);
+        BPlusTree<Integer, Integer> tree = new BPlusTree<>(4, bpm); // small leaves, so a batch spans many splits
+        Map<Integer, Integer> expected = new TreeMap<>();
+        for (int key = 0; key < 300; key += 3) {
+            tree.insert(key, key);
+            expected.put(key, key);
+        }
+        Random random = new Random(11);
+        for (int batch = 0; batch < 20; batch++) {
+            List<Map.Entry<Integer, Integer>> entries = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                int key = random.nextInt(600);
+                entries.add(Map.entry(key, batch * 1000 + i));
+                if (i % 10 == 0) entries.add(Map.entry(key, -1)); // a duplicate within the batch, the first one wins
+            }
+            int newKeys = 0;
+            for (Map.Entry<Integer, Integer> entry : entries) {
+                if (expected.putIfAbsent(entry.getKey(), entry.getValue()) == null) newKeys++;
+            }
+            int inserted = tree.insertAll(entries);
+            if (inserted != newKeys) {
+                throw new RuntimeException("❌ insertAll of batch " + batch + " inserted " + inserted + ", Expected: " + newKeys);
+            }
+        }
+        if (!tree.getAllKeysInOrder().equals(new ArrayList<>(expected.keySet()))) {
+            throw new RuntimeException("❌ The keys after insertAll differ from the reference map");
+        }
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            Integer val = tree.getValue(entry.getKey());
+            if (!entry.getValue().equals(val))
+                throw new RuntimeException("❌ Wrong value for key " + entry.getKey() + ", Expected: " + entry.getValue() + ", Got: " + val);
+        }
+        System.out.println("✅ testInsertAll passed");
+        shutdown(bpm);
+    }
+
+    public void testGetAll() {
+        BufferPoolManager bpm = new BufferPoolManager(1024, 3);
+        BPlusTree<Integer, Integer> tree = new BPlusTree<>(4, bpm);
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int key = 0; key < 2000; key += 2) { // odd keys are missing
+            tree.insert(key, key * 5);
+            expected.put(key, key * 5);
+        }
+        if (!tree.getAll(new ArrayList<>()).isEmpty()) {
+            throw new RuntimeException("❌ getAll of no keys returned values");
+        }
+        Random random = new Random(5);
+        for (int round = 0; round < 10; round++) {
+            List<Integer> keys = new ArrayList<>(); // unsorted, with repeats and keys outside the tree's range
+            for (int i = 0; i < 500; i++) keys.add(random.nextInt(2200) - 100);
+            List<Integer> values = tree.getAll(keys);
+            if (values.size() != keys.size()) {
+                throw new RuntimeException("❌ getAll returned " + values.size() + " values for " + keys.size() + " keys");
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                if (!Objects.equals(values.get(i), expected.get(keys.get(i))))
+                    throw new RuntimeException("❌ Wrong value for key " + keys.get(i) + ", Expected: " + expected.get(keys.get(i)) + ", Got: " + values.get(i));
+            }
+        }
+        System.out.println("✅ testGetAll passed");
+        shutdown(bpm);
+    }
+
+    public void testDiskSchedulerBatching() {
+        java.io.File dbFile = new java.io.File("scheduler-test.db");
+        dbFile.delete();
+        java.util.concurrent.CountDownLatch reading = new java.util.concurrent.CountDownLatch(1);
+        java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        Map<Integer, String> servedBy = new java.util.concurrent.ConcurrentHashMap<>(); // page id -> worker thread
+        List<String> writes = Collections.synchronizedList(new ArrayList<>()); // "firstPageId+pages" per write call
+        DiskManager disk = new DiskManager(dbFile.getPath()) {
+            @Override
+            public void writePage(int pageId, java.nio.ByteBuffer data) throws java.io.IOException {
+                super.writePage(pageId, data);
+                servedBy.put(pageId, Thread.currentThread().getName());
+                writes.add(pageId + "+1");
+            }
+            @Override
+            public void writePages(int firstPageId, java.nio.ByteBuffer[] pages) throws java.io.IOException {
+                super.writePages(firstPageId, pages);
+                for (int i = 0; i < pages.length; i++) servedBy.put(firstPageId + i, Thread.currentThread().getName());
+                writes.add(firstPageId + "+" + pages.length);
+            }
+            @Override
+            public void readPage(int pageId, java.nio.ByteBuffer buffer) throws java.io.IOException {
+                if (pageId != 16) {
+                    super.readPage(pageId, buffer);
+                    return;
+                }
+                reading.countDown();
+                try {
+                    release.await(); // holds page 16's worker so the writes behind it queue up
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        DiskScheduler scheduler;
+        try {
+            scheduler = new DiskScheduler(4, disk);
+        } catch (java.io.IOException e) {
+            throw new RuntimeException("❌ could not create the DiskScheduler", e);
+        }
+        int pageSize = scheduler.getPageSize();
+        try {
+            List<DiskRequest> requests = new ArrayList<>();
+            requests.add(new DiskRequest(DiskRequest.RequestType.READ, 16, java.nio.ByteBuffer.allocate(pageSize)));
+            scheduler.schedule(requests.get(0));
+            reading.await(); // the worker has taken its batch, everything below queues behind it
+            for (int pageId = 17; pageId < 48; pageId++) { // the rest of stripe 1, then stripe 2
+                java.nio.ByteBuffer page = java.nio.ByteBuffer.allocate(pageSize);
+                page.putInt(0, pageId);
+                requests.add(new DiskRequest(DiskRequest.RequestType.WRITE, pageId, page));
+            }
+            java.nio.ByteBuffer latest = java.nio.ByteBuffer.allocate(pageSize);
+            latest.putInt(0, -20);
+            requests.add(new DiskRequest(DiskRequest.RequestType.WRITE, 20, latest)); // supersedes the first image
+            for (DiskRequest request : requests.subList(1, requests.size())) scheduler.schedule(request);
+            Thread.sleep(100); // stripe 2 is served meanwhile, stripe 1 waits behind the read
+            release.countDown();
+            for (DiskRequest request : requests) request.getCompletionFuture().get(30, java.util.concurrent.TimeUnit.SECONDS);
+
+            // a stripe of 16 consecutive pages is served by one worker, the next stripe by another
+            for (int pageId = 17; pageId < 48; pageId++) {
+                int stripeStart = pageId < 32 ? 17 : 32;
+                if (!servedBy.get(pageId).equals(servedBy.get(stripeStart)))
+                    throw new RuntimeException("❌ Page " + pageId + " was not served by its stripe's worker");
+            }
+            if (servedBy.get(17).equals(servedBy.get(32))) {
+                throw new RuntimeException("❌ Two stripes were served by the same worker");
+            }
+            // the writes queued behind the read form one batch: one gathering write, page 20 written once
+            if (!writes.contains("17+15")) {
+                throw new RuntimeException("❌ The held-back writes of stripe 1 were not gathered into one write: " + writes);
+            }
+            java.nio.ByteBuffer readBack = java.nio.ByteBuffer.allocate(pageSize);
+            DiskRequest read = new DiskRequest(DiskRequest.RequestType.READ, 20, readBack);
+            scheduler.schedule(read);
+            read.getCompletionFuture().get(30, java.util.concurrent.TimeUnit.SECONDS);
+            if (readBack.getInt(0) != -20) {
+                throw new RuntimeException("❌ Page 20 does not hold its latest image, Got: " + readBack.getInt(0));
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("❌ testDiskSchedulerBatching failed", e);
+        } finally {
+            release.countDown();
+            scheduler.shutdown();
+            dbFile.delete();
+        }
+        System.out.println("✅ testDiskSchedulerBatching passed");
+    }
+
+    public void testPrefixCompression() {
+        BufferPoolManager bpm = new BufferPoolManager(1024, 3);
+        BPlusTree<String, Integer> tree = new BPlusTree<>(bpm, KeyCodec.STRING, KeyCodec.INT);
+        String shared = "tenant-0042/region-eu-west/orders/"; // every key of every page starts with it
+        TreeMap<String, Integer> expected = new TreeMap<>();
+        Random random = new Random(3);
+        for (int i = 0; i < 5000; i++) {
+            String key = shared + String.format("%06d", random.nextInt(100000)) + (i % 7 == 0 ? "/é中" : "");
+            if (tree.insert(key, i) != (expected.putIfAbsent(key, i) == null))
+                throw new RuntimeException("❌ Insert result wrong for key: " + key);
+        }
+        Iterator<String> it = expected.keySet().iterator();
+        for (int i = 0; it.hasNext(); i++) {
+            String key = it.next();
+            if (i % 3 != 0) continue;
+            if (!tree.remove(key)) throw new RuntimeException("❌ Remove failed for key: " + key);
+            it.remove();
+        }
+        if (!tree.getAllKeysInOrder().equals(new ArrayList<>(expected.keySet()))) {
+            throw new RuntimeException("❌ The keys differ from the reference map");
+        }
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            Integer val = tree.getValue(entry.getKey());
+            if (!entry.getValue().equals(val))
+                throw new RuntimeException("❌ Wrong value for key " + entry.getKey() + ", Expected: " + entry.getValue() + ", Got: " + val);
+        }
+
+        // every leaf stores the shared prefix once, in its header, and not in its cells
+        byte[] sharedBytes = KeyCodec.STRING.encode(shared);
+        try {
+            int pageId = tree.getRootPageID();
+            int leaves = 0;
+            while (true) { // down the leftmost path, then along the leaf chain
+                Page page = bpm.FetchPage(pageId);
+                java.nio.ByteBuffer buffer = page.getBuffer();
+                boolean leaf = SlottedPage.isLeafPage(page);
+                int link = buffer.getInt(SlottedPage.LINK_OFFSET);
+                int prefixLength = Short.toUnsignedInt(buffer.getShort(SlottedPage.PREFIX_LENGTH_OFFSET));
+                byte[] prefix = new byte[Math.min(prefixLength, sharedBytes.length)];
+                buffer.get(SlottedPage.HEADER_SIZE, prefix);
+                bpm.UnpinPage(pageId, false);
+                if (leaf) {
+                    if (!Arrays.equals(prefix, sharedBytes))
+                        throw new RuntimeException("❌ Leaf " + pageId + " does not store the shared prefix, its prefix is " + prefixLength + " bytes");
+                    leaves++;
+                }
+                else if (!SlottedPage.isInternalPage(page)) {
+                    throw new RuntimeException("❌ Page " + pageId + " is not a slotted page");
+                }
+                if (leaf && link == -1) break;
+                pageId = link;
+            }
+            if (leaves < 2) {
+                throw new RuntimeException("❌ Expected the keys to span several leaves, Got: " + leaves);
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("❌ could not read the tree's pages", e);
+        }
+        System.out.println("✅ testPrefixCompression passed");
+        shutdown(bpm);
+    }
+
+    public void testKeyCodecs() {
+        Random random = new Random(9);
+        // chars at the 1, 2 and 3 byte boundaries, and a surrogate pair that String.compareTo sorts below U+FFFF
+        String[] pieces = {"", "a", "\u0000", "\u007F", "\u0080", "\u07FF", "\u0800", "\uFFFF", "é", "中", "\uD83D\uDE00", "zz"};
+        List<String> strings = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = random.nextInt(4); j >= 0; j--) sb.append(pieces[random.nextInt(pieces.length)]);
+            strings.add(sb.toString());
+        }
+        List<Integer> ints = new ArrayList<>(List.of(Integer.MIN_VALUE, -1, 0, 1, Integer.MAX_VALUE));
+        List<Long> longs = new ArrayList<>(List.of(Long.MIN_VALUE, -1L, 0L, 1L, Long.MAX_VALUE));
+        // Key names this class's type parameter here, so composite keys are decoded from their id and name bytes
+        var composite = KeyCodec.COMPOSITE;
+        var keys = new ArrayList<>(List.of(composite.decode(KeyCodec.INT.encode(0), 0, 4)));
+        for (int i = 0; i < 300; i++) {
+            ints.add(random.nextInt());
+            longs.add(random.nextLong());
+            byte[] name = KeyCodec.STRING.encode(strings.get(random.nextInt(strings.size())));
+            byte[] key = Arrays.copyOf(KeyCodec.INT.encode(random.nextInt(5) - 2), 4 + name.length);
+            System.arraycopy(name, 0, key, 4, name.length);
+            keys.add(composite.decode(key, 0, key.length));
+        }
+        checkCodec("INT", KeyCodec.INT, ints);
+        checkCodec("LONG", KeyCodec.LONG, longs);
+        checkCodec("STRING", KeyCodec.STRING, strings);
+        checkCodec("COMPOSITE", composite, keys);
+        System.out.println("✅ testKeyCodecs passed");
+    }
+
+    // every value decodes back to itself, and the encodings compare unsigned as the values compare
+    private <T extends Comparable<T>> void checkCodec(String name, KeyCodec<T> codec, List<T> values) {
+        for (T a : values) {
+            byte[] encoded = codec.encode(a);
+            T decoded = codec.decode(encoded, 0, encoded.length);
+            if (decoded.compareTo(a) != 0 || !decoded.toString().equals(a.toString()))
+                throw new RuntimeException("❌ " + name + " decodes " + a + " as " + decoded);
+            for (T b : values) {
+                int expected = Integer.signum(a.compareTo(b));
+                int actual = Integer.signum(Arrays.compareUnsigned(encoded, codec.encode(b)));
+                if (expected != actual)
+                    throw new RuntimeException("❌ " + name + " orders " + a + " and " + b + " as " + actual + ", Expected: " + expected);
+            }
+        }
+    }
+
+    public void testMappedFileSizeAfterReopen() {
+        java.io.File dbFile = new java.io.File("mapped-test.db");
+        dbFile.delete();
+        try {
+            MappedDiskManager disk = new MappedDiskManager(dbFile.getPath());
+            int pageSize = disk.getPageSize();
+            for (int pageId = 1; pageId <= 10; pageId++) {
+                java.nio.ByteBuffer page = java.nio.ByteBuffer.allocate(pageSize);
+                page.putInt(0, pageId * 7);
+                disk.writePage(pageId, page);
+            }
+            disk.shutdown();
+            if (dbFile.length() != 11L * pageSize) {
+                throw new RuntimeException("❌ The file is " + dbFile.length() + " bytes after shutdown, Expected: " + 11L * pageSize);
+            }
+
+            MappedDiskManager reopened = new MappedDiskManager(dbFile.getPath());
+            if (reopened.getFileSize() != 11L * pageSize) {
+                throw new RuntimeException("❌ The reopened file counts " + reopened.getFileSize() + " bytes, Expected: " + 11L * pageSize);
+            }
+            java.nio.ByteBuffer page = java.nio.ByteBuffer.allocate(pageSize);
+            for (int pageId = 1; pageId <= 10; pageId++) {
+                reopened.readPage(pageId, page);
+                if (page.getInt(0) != pageId * 7)
+                    throw new RuntimeException("❌ Wrong contents of page " + pageId + " after reopen, Got: " + page.getInt(0));
+            }
+            try {
+                reopened.readPage(11, page);
+                throw new RuntimeException("❌ A page past the last one written was read");
+            } catch (IllegalArgumentException expected) {
+                // past the end of the file
+            }
+            reopened.shutdown();
+        } catch (java.io.IOException e) {
+            throw new RuntimeException("❌ testMappedFileSizeAfterReopen failed", e);
+        } finally {
+            dbFile.delete();
+        }
+        System.out.println("✅ testMappedFileSizeAfterReopen passed");
+    }
+
+    // the replacer's next victim, -1 when nothing is evictable
+    private int evict(Replacer replacer) {
+        int[] frameId = new int[1];
+        return replacer.evict(frameId) ? frameId[0] : -1;
+    }
+
+    public void testLRUKReplacer() {
+        LRUKReplacer replacer = new LRUKReplacer(5, 2);
+        for (int frame = 0; frame < 4; frame++) replacer.recordAccess(frame);
+        replacer.recordAccess(0);
+        replacer.recordAccess(1);
+        replacer.recordAccess(4);
+        for (int frame = 0; frame < 5; frame++) replacer.setEvictable(frame, true);
+        replacer.setEvictable(4, false); // pinned, never a victim
+        if (replacer.size() != 4) throw new RuntimeException("❌ Expected 4 evictable frames, Got: " + replacer.size());
+
+        // frames with fewer than k accesses go first by their first access, then the oldest k-th most recent access
+        int[] preferred = new int[1];
+        if (!replacer.evict(preferred, frame -> frame == 3) || preferred[0] != 3)
+            throw new RuntimeException("❌ The preferred frame 3 was not taken among the next victims, Got: " + preferred[0]);
+        int[] expected = {2, 0, 1, -1};
+        for (int victim : expected) {
+            int actual = evict(replacer);
+            if (actual != victim) throw new RuntimeException("❌ LRU-K evicted frame " + actual + ", Expected: " + victim);
+        }
+
+        // an evicted frame starts over with no history
+        replacer.recordAccess(0);
+        replacer.recordAccess(1);
+        replacer.recordAccess(1);
+        replacer.setEvictable(0, true);
+        replacer.setEvictable(1, true);
+        replacer.remove(0);
+        if (replacer.size() != 1 || evict(replacer) != 1) throw new RuntimeException("❌ A removed frame was still evictable");
+        System.out.println("✅ testLRUKReplacer passed");
+    }
+
+    // what every policy owes the pool: pinned frames are never victims, each frame is evicted once, remove forgets
+    private void checkReplacerContract(String name, Replacer replacer) {
+        for (int frame = 0; frame < 4; frame++) {
+            replacer.recordAccess(frame, 100 + frame);
+            replacer.setEvictable(frame, true);
+        }
+        replacer.setEvictable(1, false);
+        replacer.remove(2);
+        if (replacer.size() != 2) throw new RuntimeException("❌ " + name + " counts " + replacer.size() + " evictable frames, Expected: 2");
+        Set<Integer> victims = new HashSet<>();
+        for (int i = 0; i < 2; i++) victims.add(evict(replacer));
+        if (!victims.equals(Set.of(0, 3)) || evict(replacer) != -1)
+            throw new RuntimeException("❌ " + name + " evicted " + victims + ", Expected: [0, 3]");
+        replacer.setEvictable(1, true);
+        if (evict(replacer) != 1) throw new RuntimeException("❌ " + name + " did not evict the unpinned frame");
+    }
+
+    // frames pinned and unpinned again in another order keep their places in the policy's order
+    private void checkUnpinKeepsOrder(String name, Replacer replacer) {
+        for (int frame = 0; frame < 8; frame++) {
+            replacer.recordAccess(frame, 200 + frame);
+            replacer.setEvictable(frame, true);
+        }
+        for (int frame = 0; frame < 6; frame++) replacer.setEvictable(frame, false);
+        for (int frame = 5; frame >= 0; frame--) replacer.setEvictable(frame, true);
+        for (int expected = 0; expected < 8; expected++) {
+            int victim = evict(replacer);
+            if (victim != expected) throw new RuntimeException("❌ " + name + " evicted frame " + victim + " after the unpins, Expected: " + expected);
+        }
+    }
+
+    public void testClockReplacer() {
+        checkReplacerContract("CLOCK", new ClockReplacer(4));
+        ClockReplacer replacer = new ClockReplacer(4);
+        for (int frame = 0; frame < 4; frame++) {
+            replacer.recordAccess(frame);
+            replacer.setEvictable(frame, true);
+        }
+        // the first sweep clears every reference bit, then the hand takes frame 0
+        if (evict(replacer) != 0) throw new RuntimeException("❌ CLOCK did not evict frame 0 first");
+        replacer.recordAccess(1); // a second chance: the hand passes frame 1 once
+        int[] expected = {2, 3, 1, -1};
+        for (int victim : expected) {
+            int actual = evict(replacer);
+            if (actual != victim) throw new RuntimeException("❌ CLOCK evicted frame " + actual + ", Expected: " + victim);
+        }
+        System.out.println("✅ testClockReplacer passed");
+    }
+
+    public void testTwoQReplacer() {
+        checkReplacerContract("2Q", new TwoQReplacer(4));
+        checkUnpinKeepsOrder("2Q", new TwoQReplacer(8));
+        TwoQReplacer replacer = new TwoQReplacer(4); // A1in holds 1 frame, A1out 2 page ids
+        replacer.recordAccess(0, 100);
+        replacer.setEvictable(0, true);
+        if (evict(replacer) != 0) throw new RuntimeException("❌ 2Q did not evict the only frame");
+        replacer.recordAccess(0, 100); // back while its id is in A1out, so page 100 is hot and goes to Am
+        replacer.setEvictable(0, true);
+        for (int page = 1; page < 20; page++) { // a scan of pages seen once cycles through A1in
+            int frame = page < 4 ? page : evict(replacer);
+            if (frame == 0) throw new RuntimeException("❌ 2Q evicted the hot page for scan page " + page);
+            replacer.recordAccess(frame, page);
+            replacer.setEvictable(frame, true);
+        }
+        System.out.println("✅ testTwoQReplacer passed");
+    }
+
+    public void testArcReplacer() {
+        checkReplacerContract("ARC", new ArcReplacer(4));
+        checkUnpinKeepsOrder("ARC", new ArcReplacer(8));
+        ArcReplacer replacer = new ArcReplacer(4);
+        replacer.recordAccess(0, 100);
+        replacer.recordAccess(0, 100); // seen twice, page 100 moves to T2
+        replacer.setEvictable(0, true);
+        for (int page = 1; page < 20; page++) { // pages seen once are evicted from T1 first
+            int frame = page < 4 ? page : evict(replacer);
+            if (frame == 0) throw new RuntimeException("❌ ARC evicted the frequent page for scan page " + page);
+            replacer.recordAccess(frame, page);
+            replacer.setEvictable(frame, true);
+        }
+        // a page evicted from T1 that comes back is a B1 hit: it goes to T2 and T1's target grows to one frame,
+        // so T1 gives up one more frame before T2 is evicted from
+        int frame = evict(replacer);
+        if (frame == 0) throw new RuntimeException("❌ ARC evicted the frequent page");
+        replacer.recordAccess(frame, 17);
+        replacer.setEvictable(frame, true);
+        int victim = evict(replacer);
+        if (victim == frame || victim == 0) throw new RuntimeException("❌ ARC evicted a T2 frame before the T1 frames");
+        victim = evict(replacer);
+        if (victim != 0) throw new RuntimeException("❌ ARC did not evict T2's least recently used frame, Got: " + victim);
+        System.out.println("✅ testArcReplacer passed");
+    }
+
+    public void testFetchPageAsync() {
+        BufferPoolManager bpm = new BufferPoolManager(16, 3, 1); // one shard, so every frame can be pinned at once
+        try {
+            List<Integer> pageIds = new ArrayList<>();
+            for (int i = 0; i < 40; i++) { // more pages than frames, the first ones are evicted to disk
+                Page page = bpm.newPage();
+                page.getBuffer().putInt(0, page.getPageId() * 3);
+                pageIds.add(page.getPageId());
+                bpm.UnpinPage(page.getPageId(), true);
+            }
+
+            // many reads in flight at once, a page fetched twice shares one frame
+            List<CompletableFuture<Page>> fetches = new ArrayList<>();
+            for (int i = 0; i < 10; i++) fetches.add(bpm.fetchPageAsync(pageIds.get(i)));
+            fetches.add(bpm.fetchPageAsync(pageIds.get(0)));
+            for (int i = 0; i < fetches.size(); i++) {
+                Page page = fetches.get(i).get(30, java.util.concurrent.TimeUnit.SECONDS);
+                int pageId = pageIds.get(i % 10);
+                if (page.getPageId() != pageId || page.getBuffer().getInt(0) != pageId * 3)
+                    throw new RuntimeException("❌ fetchPageAsync of page " + pageId + " returned page " + page.getPageId() + " holding " + page.getBuffer().getInt(0));
+            }
+            if (fetches.get(0).get() != fetches.get(10).get()) {
+                throw new RuntimeException("❌ Two fetches of one page returned different frames");
+            }
+            for (int i = 0; i < fetches.size(); i++) bpm.UnpinPage(pageIds.get(i % 10), false);
+
+            // with every frame pinned a miss fails at once instead of waiting for a frame
+            for (int i = 0; i < 16; i++) bpm.fetchPageAsync(pageIds.get(i)).get(30, java.util.concurrent.TimeUnit.SECONDS);
+            CompletableFuture<Page> noFrame = bpm.fetchPageAsync(pageIds.get(20));
+            if (!noFrame.isCompletedExceptionally()) {
+                throw new RuntimeException("❌ fetchPageAsync with every frame pinned did not fail");
+            }
+            for (int i = 0; i < 16; i++) bpm.UnpinPage(pageIds.get(i), false);
+            Page page = bpm.fetchPageAsync(pageIds.get(20)).get(30, java.util.concurrent.TimeUnit.SECONDS);
+            if (page.getBuffer().getInt(0) != pageIds.get(20) * 3) {
+                throw new RuntimeException("❌ Wrong contents of page " + pageIds.get(20) + " once frames were unpinned");
+            }
+            bpm.UnpinPage(pageIds.get(20), false);
+            for (int pageId : pageIds) bpm.DeletePage(pageId);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("❌ testFetchPageAsync failed", e);
+        }
+        System.out.println("✅ testFetchPageAsync passed");
+        shutdown(bpm);
+    }
+
+    public void testReadAhead() {
+        ReadAhead readAhead = new ReadAhead();
+        // a run of consecutive page ids is read ahead once it is 4 pages long, a window of 8 pages ahead
+        for (int pageId = 10; pageId < 13; pageId++) {
+            if (readAhead.onFetch(pageId).length != 0) throw new RuntimeException("❌ Read ahead before the run was long enough");
+        }
+        int[] queued = readAhead.onFetch(13);
+        if (queued.length != 8 || queued[0] != 14 || queued[7] != 21)
+            throw new RuntimeException("❌ Expected pages 14..21 read ahead, Got: " + Arrays.toString(queued));
+        if (!Arrays.equals(readAhead.onFetch(14), new int[] {22})) throw new RuntimeException("❌ The window did not slide by one page");
+        if (readAhead.onFetch(14).length != 0) throw new RuntimeException("❌ A refetch was read ahead of");
+        if (readAhead.onFetch(100).length != 0) throw new RuntimeException("❌ A jump was read ahead of");
+
+        // the window grows with each page used and halves with each page wasted
+        for (int i = 0; i < 3; i++) readAhead.onUsed();
+        readAhead.onWasted();
+        if (readAhead.getWindow() != 5) throw new RuntimeException("❌ Expected a window of 5, Got: " + readAhead.getWindow());
+        for (int i = 0; i < 10; i++) readAhead.onWasted();
+        if (readAhead.getWindow() != ReadAhead.MIN_WINDOW) throw new RuntimeException("❌ The window fell below its minimum");
+        for (int i = 0; i < 100; i++) readAhead.onUsed();
+        if (readAhead.getWindow() != ReadAhead.MAX_WINDOW) throw new RuntimeException("❌ The window grew past its maximum");
+
+        // a hint is followed in its own order, pages off the hint are ignored
+        ReadAhead hinted = new ReadAhead();
+        hinted.hint(new int[] {50, 7, 31, 2, 90, 11, 64, 3, 40, 5, 77});
+        if (!Arrays.equals(hinted.onFetch(50), new int[] {7, 31, 2, 90, 11, 64, 3, 40}))
+            throw new RuntimeException("❌ The hint was not read ahead in its order");
+        if (hinted.onFetch(1000).length != 0) throw new RuntimeException("❌ A page off the hint was read ahead of");
+        if (!Arrays.equals(hinted.onFetch(7), new int[] {5})) throw new RuntimeException("❌ The hint window did not slide");
+        hinted.clearHint();
+        if (hinted.onFetch(31).length != 0) throw new RuntimeException("❌ A cleared hint was still followed");
+
+        // through the pool: a sequential scan of evicted pages finds the pages read ahead of it
+        BufferPoolManager bpm = new BufferPoolManager(16, 3, 1);
+        try {
+            List<Integer> pageIds = new ArrayList<>();
+            for (int i = 0; i < 48; i++) {
+                Page page = bpm.newPage();
+                page.getBuffer().putInt(0, page.getPageId());
+                pageIds.add(page.getPageId());
+                bpm.UnpinPage(page.getPageId(), true);
+            }
+            Collections.sort(pageIds);
+            for (int pageId : pageIds.subList(0, 24)) {
+                Page page = bpm.FetchPage(pageId);
+                if (page.getBuffer().getInt(0) != pageId) throw new RuntimeException("❌ Wrong contents of page " + pageId);
+                bpm.UnpinPage(pageId, false);
+            }
+            if (bpm.getReadAheadUsed() == 0) throw new RuntimeException("❌ A sequential scan used no read-ahead page");
+            for (int pageId : pageIds) bpm.DeletePage(pageId);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("❌ testReadAhead failed", e);
+        }
+        System.out.println("✅ testReadAhead passed");
+        shutdown(bpm);
+    }
+
+    // polls condition until it holds or 10 seconds pass
+    private boolean eventually(java.util.function.BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) return false;
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void testPageFlusher() {
+        BufferPoolManager bpm = new BufferPoolManager(64, 3, 1);
+        bpm.setFlushPolicy(1.0, 3_600_000); // nothing is written back yet
+        bpm.setCheckpointPolicy(3_600_000, 1L << 40, 100000); // and no checkpoint writes pages behind the flusher
+        try {
+            List<Integer> pageIds = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                Page page = bpm.newPage();
+                page.getBuffer().putInt(0, page.getPageId() * 11);
+                pageIds.add(page.getPageId());
+                bpm.UnpinPage(page.getPageId(), true); // write-back: unpinning does not write
+            }
+            Thread.sleep(200);
+            if (bpm.getDirtyPageCount() != 20) {
+                throw new RuntimeException("❌ Expected 20 dirty pages before any write-back, Got: " + bpm.getDirtyPageCount());
+            }
+
+            // above the dirty ratio the oldest pages are written until the shard is down to it
+            bpm.setFlushPolicy(0.1, 3_600_000);
+            if (!eventually(() -> bpm.getDirtyPageCount() <= 6)) {
+                throw new RuntimeException("❌ The flusher did not bring the dirty pages down to the ratio, Got: " + bpm.getDirtyPageCount());
+            }
+            Thread.sleep(200);
+            if (bpm.getDirtyPageCount() != 6) {
+                throw new RuntimeException("❌ The flusher wrote more than the ratio asks, dirty pages: " + bpm.getDirtyPageCount());
+            }
+
+            // a pinned page stays dirty until it is unpinned, whatever its age
+            Page pinned = bpm.FetchPage(pageIds.get(0));
+            bpm.FetchPage(pageIds.get(0));
+            pinned.getBuffer().putInt(0, -1);
+            bpm.UnpinPage(pageIds.get(0), true);
+            bpm.setFlushPolicy(1.0, 50);
+            if (!eventually(() -> bpm.getDirtyPageCount() == 1)) {
+                throw new RuntimeException("❌ The flusher did not write the old pages, dirty pages: " + bpm.getDirtyPageCount());
+            }
+            Thread.sleep(200);
+            if (bpm.getDirtyPageCount() != 1) throw new RuntimeException("❌ The flusher wrote a pinned page");
+            bpm.UnpinPage(pageIds.get(0), false);
+            if (!eventually(() -> bpm.getDirtyPageCount() == 0)) throw new RuntimeException("❌ The unpinned page was not written back");
+
+            // what the flusher wrote is in the file
+            int pageSize = bpm.getPageSize();
+            try (java.nio.channels.FileChannel file = java.nio.channels.FileChannel.open(java.nio.file.Path.of("database.db"))) {
+                for (int pageId : pageIds) {
+                    int expected = pageId == pageIds.get(0) ? -1 : pageId * 11;
+                    java.nio.ByteBuffer onDisk = java.nio.ByteBuffer.allocate(4);
+                    boolean written = eventually(() -> {
+                        try {
+                            file.read(onDisk.clear(), (long) pageId * pageSize);
+                        } catch (java.io.IOException e) {
+                            return false;
+                        }
+                        return onDisk.getInt(0) == expected;
+                    });
+                    if (!written) throw new RuntimeException("❌ Page " + pageId + " was not written back, on disk: " + onDisk.getInt(0));
+                }
+            }
+            for (int pageId : pageIds) bpm.DeletePage(pageId);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("❌ testPageFlusher failed", e);
+        }
+        System.out.println("✅ testPageFlusher passed");
+        shutdown(bpm);
+    }
+
+    public void testFlushPinnedPage() {
+        BufferPoolManager bpm = new BufferPoolManager(64, 3, 1);
+        bpm.setFlushPolicy(1.0, 3_600_000);
+        bpm.setCheckpointPolicy(3_600_000, 1L << 40, 100000); // only flushAllPages writes the page
+        try {
+            Page page = bpm.newPage();
+            int pageId = page.getPageId();
+            page.wLatch();
+            page.getBuffer().putInt(0, 1);
+            bpm.logPageWrite(page, 0, 4);
+            page.wUnlatch();
+            bpm.UnpinPage(pageId, true);
+
+            // a writer holds the pinned page's latch and has changed it without logging the change yet
+            page = bpm.FetchPage(pageId);
+            page.wLatch();
+            page.getBuffer().putInt(0, 2);
+            CompletableFuture<Void> flush = CompletableFuture.runAsync(() -> {
+                try {
+                    bpm.flushAllPages();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            Thread.sleep(200);
+            if (flush.isDone()) throw new RuntimeException("❌ flushAllPages copied a page while its writer held the latch");
+            long lsn = bpm.logPageWrite(page, 0, 4);
+            page.wUnlatch();
+            flush.get(10, java.util.concurrent.TimeUnit.SECONDS);
+
+            // the change is on disk with the LSN of its record in the trailer
+            int pageSize = bpm.getPageSize();
+            java.nio.ByteBuffer onDisk = java.nio.ByteBuffer.allocate(pageSize);
+            try (java.nio.channels.FileChannel file = java.nio.channels.FileChannel.open(java.nio.file.Path.of("database.db"))) {
+                file.read(onDisk, (long) pageId * pageSize);
+            }
+            if (onDisk.getInt(0) != 2 || onDisk.getLong(Page.lsnOffset(pageSize)) != lsn) {
+                throw new RuntimeException("❌ Expected the change with LSN " + lsn + " on disk, Got: " + onDisk.getInt(0)
+                        + " with LSN " + onDisk.getLong(Page.lsnOffset(pageSize)));
+            }
+            if (bpm.getDirtyPageCount() != 0) throw new RuntimeException("❌ The flushed page is still dirty");
+            bpm.UnpinPage(pageId, true); // the writer's unpin dirties it again
+            if (bpm.getDirtyPageCount() != 1) throw new RuntimeException("❌ The writer's unpin after the flush did not dirty the page");
+            bpm.DeletePage(pageId);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("❌ testFlushPinnedPage failed", e);
+        }
+        System.out.println("✅ testFlushPinnedPage passed");
+        shutdown(bpm);
+    }
+
+    public void testDeletePinnedPage() {
+        BufferPoolManager bpm = new BufferPoolManager(64, 3, 1);
+        try {
+            Page page = bpm.newPage();
+            int pageId = page.getPageId();
+            bpm.UnpinPage(pageId, true);
+            int allocated = bpm.getAllocatedPageCount();
+
+            // a concurrent reader still holds the page when it is deleted, twice
+            bpm.FetchPage(pageId);
+            bpm.FetchPage(pageId);
+            if (bpm.DeletePage(pageId)) throw new RuntimeException("❌ A pinned page was dropped by DeletePage");
+            bpm.UnpinPage(pageId, false);
+            if (bpm.getAllocatedPageCount() != allocated) throw new RuntimeException("❌ A pinned page was freed by DeletePage");
+            bpm.UnpinPage(pageId, false);
+            if (bpm.getAllocatedPageCount() != allocated - 1) {
+                throw new RuntimeException("❌ The deleted page was not freed on its last unpin, allocated pages: " + bpm.getAllocatedPageCount());
+            }
+            try {
+                bpm.UnpinPage(pageId, false);
+                throw new RuntimeException("❌ The deleted page is still in the pool");
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception expected) {
+                // dropped from the pool
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("❌ testDeletePinnedPage failed", e);
+        }
+        System.out.println("✅ testDeletePinnedPage passed");
+        shutdown(bpm);
+    }
+
+    public void testFailedEvictionWrite() {
+        java.io.File dbFile = new java.io.File("evict-test.db");
+        java.io.File walFile = new java.io.File("evict-test.db.wal");
+        dbFile.delete();
+        walFile.delete();
+        java.util.concurrent.atomic.AtomicBoolean failing = new java.util.concurrent.atomic.AtomicBoolean(false);
+        BufferPoolManager bpm = null;
+        try {
+            DiskManager disk = new DiskManager(dbFile.getPath()) {
+                @Override
+                public void writePage(int pageId, java.nio.ByteBuffer data) throws java.io.IOException {
+                    if (failing.get()) throw new java.io.IOException("disk full");
+                    super.writePage(pageId, data);
+                }
+                @Override
+                public void writePages(int firstPageId, java.nio.ByteBuffer[] pages) throws java.io.IOException {
+                    if (failing.get()) throw new java.io.IOException("disk full");
+                    super.writePages(firstPageId, pages);
+                }
+            };
+            bpm = new BufferPoolManager(8, 2, 1, Types.ReplacerType.LRU_K, new DiskScheduler(1, disk));
+            bpm.setFlushPolicy(1.0, 3_600_000);
+            bpm.setCheckpointPolicy(3_600_000, 1L << 40, 100000);
+            Page first = bpm.newPage();
+            int onDiskOnly = first.getPageId();
+            bpm.UnpinPage(onDiskOnly, true);
+            bpm.flushAllPages();
+            for (int i = 0; i < 8; i++) { // the clean page is evicted, every frame is left dirty
+                Page page = bpm.newPage();
+                bpm.UnpinPage(page.getPageId(), true);
+            }
+
+            // the write of the dirty victim fails, so does the newPage that needed its frame
+            failing.set(true);
+            if (bpm.newPage() != null) throw new RuntimeException("❌ newPage succeeded although the evicted page was not written");
+            failing.set(false);
+            Page filler = bpm.newPage(); // takes the frame the failed newPage gave back
+            bpm.UnpinPage(filler.getPageId(), true);
+
+            // and the fetch that needed its frame
+            failing.set(true);
+            try {
+                bpm.fetchPageAsync(onDiskOnly).get(10, java.util.concurrent.TimeUnit.SECONDS);
+                throw new RuntimeException("❌ The fetch succeeded although the evicted page was not written");
+            } catch (java.util.concurrent.ExecutionException expected) {
+                if (!String.valueOf(expected.getCause().getMessage()).contains("could not be written")) {
+                    throw new RuntimeException("❌ The fetch failed for another reason", expected);
+                }
+            }
+            failing.set(false);
+            Page page = bpm.FetchPage(onDiskOnly); // the frame is usable again
+            if (page == null) throw new RuntimeException("❌ The page could not be fetched once the disk recovered");
+            bpm.UnpinPage(onDiskOnly, false);
+        } catch (RuntimeException e) {
+            failing.set(false);
+            throw e;
+        } catch (Exception e) {
+            failing.set(false);
+            throw new RuntimeException("❌ testFailedEvictionWrite failed", e);
+        } finally {
+            if (bpm != null) shutdown(bpm);
+            dbFile.delete();
+            walFile.delete();
+        }
+        System.out.println("✅ testFailedEvictionWrite passed");
+    }
+
+    public void testFailedRecoveryIsThrown() {
+        java.io.File dbFile = new java.io.File("recovery-test.db");
+        java.io.File walFile = new java.io.File("recovery-test.db.wal");
+        dbFile.delete();
+        walFile.delete();
+        try {
+            // a log whose only record cannot be replayed: page 1 never held key 42
+            LogManager log = new LogManager(walFile.getPath());
+            log.logPageChange(new Page(1), LogManager.LEAF_REMOVE, 0, java.nio.ByteBuffer.allocate(4).putInt(42).array());
+            log.shutdown();
+            try {
+                new BufferPoolManager(64, 2, 1, Types.ReplacerType.LRU_K, new DiskScheduler(2, new DiskManager(dbFile.getPath())));
+                throw new RuntimeException("❌ A pool was built over a log that failed to replay");
+            } catch (IllegalStateException expected) {
+                if (expected.getCause() == null) throw new RuntimeException("❌ The recovery failure lost its cause", expected);
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("❌ testFailedRecoveryIsThrown failed", e);
+        } finally {
+            dbFile.delete();
+            walFile.delete();
+        }
+        System.out.println("✅ testFailedRecoveryIsThrown passed");
+    }
+
+    public void testFreeSpaceMap() {
+        java.io.File dbFile = new java.io.File("fsm-test.db");
+        dbFile.delete();
+        DiskScheduler disk = null;
+        try {
+            disk = new DiskScheduler(2, new DiskManager(dbFile.getPath()));
+            FreeSpaceMap map = FreeSpaceMap.load(disk); // an empty file starts a fresh map
+            for (int i = 1; i <= 30; i++) {
+                int pageId = map.allocate(-1);
+                if (pageId != i) throw new RuntimeException("❌ Expected page " + i + " from a fresh map, Got: " + pageId);
+            }
+            try {
+                map.free(0);
+                throw new RuntimeException("❌ The map's header page was freed");
+            } catch (IllegalArgumentException expected) {
+                // page 0 holds the map itself
+            }
+
+            // a page allocated near another goes into its extent, or into a wholly free extent when that one is full
+            map.free(5);
+            if (map.allocate(3) != 5) throw new RuntimeException("❌ A free page of the near page's extent was not taken");
+            for (int pageId = 16; pageId < 24; pageId++) map.free(pageId);
+            map.free(26);
+            int placed = map.allocate(2);
+            if (placed != 16) throw new RuntimeException("❌ Expected the wholly free extent at 16 for a full extent, Got: " + placed);
+            // without a hint the lowest free page is reused before the file grows
+            if (map.allocate(-1) != 17) throw new RuntimeException("❌ The lowest free page was not reused");
+
+            // the map survives a reopen
+            map.flush(disk);
+            disk.sync();
+            disk.shutdown();
+            disk = new DiskScheduler(2, new DiskManager(dbFile.getPath()));
+            FreeSpaceMap reopened = FreeSpaceMap.load(disk);
+            for (int pageId = 0; pageId < 40; pageId++) {
+                if (reopened.isAllocated(pageId) != map.isAllocated(pageId))
+                    throw new RuntimeException("❌ Page " + pageId + " changed its allocation across a reopen");
+            }
+            if (reopened.getAllocatedCount() != map.getAllocatedCount()) {
+                throw new RuntimeException("❌ Expected " + map.getAllocatedCount() + " allocated pages after a reopen, Got: " + reopened.getAllocatedCount());
+            }
+
+            // a map larger than one header page covers starts a new group whose first page is its header
+            FreeSpaceMap large = new FreeSpaceMap(disk.getPageSize());
+            Set<Integer> handedOut = new HashSet<>();
+            int count = 40000;
+            for (int i = 0; i < count; i++) handedOut.add(large.allocate(-1));
+            if (handedOut.size() != count || handedOut.contains(0) || Collections.max(handedOut) != count + 1) {
+                throw new RuntimeException("❌ Expected pages 1.." + (count + 1) + " but one group header page");
+            }
+            for (int pageId = 1; pageId <= count + 1; pageId++) {
+                if (!handedOut.contains(pageId) && !large.isAllocated(pageId))
+                    throw new RuntimeException("❌ Page " + pageId + " was skipped but is not a header page");
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("❌ testFreeSpaceMap failed", e);
+        } finally {
+            if (disk != null) disk.shutdown();
+            dbFile.delete();
+        }
+        System.out.println("✅ testFreeSpaceMap passed");
+    }
+
+    // every entry the cursor returns, the cursor is closed after
+    private List<Integer> scanKeys(BPlusTree<Integer, Integer> tree, Integer lo, boolean loInclusive, Integer hi, boolean hiInclusive) {
+        List<Integer> keys = new ArrayList<>();
+        try (BPlusTree<Integer, Integer>.Cursor cursor = tree.scan(lo, loInclusive, hi, hiInclusive)) {
+            while (cursor.hasNext()) {
+                Map.Entry<Integer, Integer> entry = cursor.next();
+                if (entry.getValue() != entry.getKey() * 2) throw new RuntimeException("❌ Wrong value scanned for key " + entry.getKey());
+                keys.add(entry.getKey());
+            }
+        }
+        return keys;
+    }
+
+    public void testCursorScan() {
+        BufferPoolManager bpm = new BufferPoolManager(32, 3, 1); // few frames, a cursor that kept its pins would run out
+        BPlusTree<Integer, Integer> tree = new BPlusTree<>(4, bpm);
+        TreeMap<Integer, Integer> expected = new TreeMap<>();
+        for (int key = 0; key < 1000; key += 2) {
+            tree.insert(key, key * 2);
+            expected.put(key, key * 2);
+        }
+        // bounds on keys and between keys, inclusive and exclusive, open, empty
+        Object[][] ranges = {
+            {null, true, null, true}, {100, true, 200, true}, {100, false, 200, false}, {101, true, 199, true},
+            {null, true, 50, false}, {950, false, null, true}, {300, true, 300, true}, {300, false, 300, true},
+            {500, true, 400, true}, {2000, true, null, true}, {-10, true, -1, true}
+        };
+        for (int round = 0; round < 10; round++) { // repeated, so pins left behind would exhaust the pool
+            for (Object[] range : ranges) {
+                Integer lo = (Integer) range[0];
+                Integer hi = (Integer) range[2];
+                boolean loInclusive = (Boolean) range[1];
+                boolean hiInclusive = (Boolean) range[3];
+                List<Integer> inRange = new ArrayList<>();
+                for (int key : expected.keySet()) {
+                    boolean afterLo = lo == null || key > lo || (key == lo && loInclusive);
+                    boolean beforeHi = hi == null || key < hi || (key == hi && hiInclusive);
+                    if (afterLo && beforeHi) inRange.add(key);
+                }
+                List<Integer> scanned = scanKeys(tree, lo, loInclusive, hi, hiInclusive);
+                if (!scanned.equals(inRange))
+                    throw new RuntimeException("❌ Wrong keys scanned for " + Arrays.toString(range) + ": " + scanned);
+            }
+        }
+
+        // the tree changes under an open cursor: keys present for the whole scan come once, in order
+        List<Integer> scanned = new ArrayList<>();
+        try (BPlusTree<Integer, Integer>.Cursor cursor = tree.scan(null, true, null, true)) {
+            for (int i = 0; i < 100 && cursor.hasNext(); i++) scanned.add(cursor.next().getKey());
+            for (int key = 1; key < 1000; key += 2) tree.insert(key, key * 2); // splits the leaves ahead of the cursor
+            for (int key = 0; key < 200; key += 2) tree.remove(key);           // merges the leaves behind it
+            while (cursor.hasNext()) scanned.add(cursor.next().getKey());
+        }
+        for (int i = 1; i < scanned.size(); i++) {
+            if (scanned.get(i) <= scanned.get(i - 1)) throw new RuntimeException("❌ The scan went back from " + scanned.get(i - 1) + " to " + scanned.get(i));
+        }
+        for (int key = 200; key < 1000; key += 2) {
+            if (!scanned.contains(key)) throw new RuntimeException("❌ Key " + key + " was present for the whole scan but not returned");
+        }
+        System.out.println("✅ testCursorScan passed");
+        shutdown(bpm);
+    }
+
+    // an int page and a generic page given the same operations serialize to the same bytes
+    private void checkSameBytes(String what, byte[] intPage, byte[] page) {
+        if (!Arrays.equals(intPage, page)) {
+            throw new RuntimeException("❌ The int page differs from the generic page after " + what);
+        }
+    }
+
+    public void testIntPages() {
+        Random random = new Random(19);
+        IntLeafPage intLeaf = new IntLeafPage();
+        LeafPage<Integer, Integer> leaf = new LeafPage<>();
+        intLeaf.init(64, 7);
+        leaf.init(64, 7);
+        for (int i = 0; i < 2000; i++) {
+            int key = random.nextInt(400) - 200 + (random.nextBoolean() ? 0 : 1_000_000); // small and large, negatives
+            int slot = leaf.search(key);
+            if (intLeaf.search(key) != slot) throw new RuntimeException("❌ The int leaf finds key " + key + " elsewhere");
+            if (slot >= 0) {
+                if (!intLeaf.valueAt(slot).equals(leaf.valueAt(slot))) throw new RuntimeException("❌ Wrong rid for key " + key);
+                if (random.nextBoolean()) {
+                    intLeaf.removeAt(slot);
+                    leaf.removeAt(slot);
+                }
+            } else if (leaf.getSize() < 64) {
+                intLeaf.insertAt(-(slot + 1), key, key * 3);
+                leaf.insertAt(-(slot + 1), key, key * 3);
+            }
+            checkSameBytes("an insert or remove", intLeaf.toBytes(), leaf.toBytes());
+        }
+        checkSameBytes("the split", intLeaf.splitLeafPage(8).toBytes(), leaf.splitLeafPage(8).toBytes());
+        checkSameBytes("the split", intLeaf.toBytes(), leaf.toBytes());
+        IntLeafPage decodedLeaf = new IntLeafPage();
+        java.nio.ByteBuffer leafBytes = java.nio.ByteBuffer.wrap(intLeaf.toBytes());
+        leafBytes.getInt(); // the page type, read by whoever picks the class
+        decodedLeaf.fromBytes(leafBytes);
+        checkSameBytes("a round trip", decodedLeaf.toBytes(), leaf.toBytes());
+
+        IntInternalPage intInternal = new IntInternalPage();
+        InternalPage<Integer> internal = new InternalPage<>();
+        intInternal.init(64, 9);
+        internal.init(64, 9);
+        intInternal.setValueAt(0, 1000);
+        internal.setValueAt(0, 1000);
+        for (int i = 0; i < 2000; i++) {
+            int key = random.nextInt(400) - 200 + (random.nextBoolean() ? 0 : 1_000_000);
+            int index = internal.binarySearch(key);
+            if (intInternal.binarySearch(key) != index) throw new RuntimeException("❌ The int internal page routes key " + key + " elsewhere");
+            if (index > 0 && internal.keyAt(index) == key) {
+                if (random.nextBoolean()) {
+                    intInternal.removeEntry(index);
+                    internal.removeEntry(index);
+                }
+            } else if (internal.getSize() < 64) {
+                intInternal.insertEntry(key, 2000 + i);
+                internal.insertEntry(key, 2000 + i);
+            }
+            checkSameBytes("an insert or remove", intInternal.toBytes(), internal.toBytes());
+        }
+        IntInternalPage intRight = new IntInternalPage();
+        InternalPage<Integer> right = new InternalPage<>();
+        intRight.init(64, 10);
+        right.init(64, 10);
+        if (!intInternal.splitInternalPage(intRight).equals(internal.splitInternalPage(right)))
+            throw new RuntimeException("❌ The int internal page moved up another key");
+        checkSameBytes("the split", intInternal.toBytes(), internal.toBytes());
+        checkSameBytes("the split", intRight.toBytes(), right.toBytes());
+        System.out.println("✅ testIntPages passed");
+    }
+
+    public void testPageSize() {
+        String fileName = "pagesize-test.db";
+        java.io.File dbFile = new java.io.File(fileName);
+        java.io.File walFile = new java.io.File(fileName + ".wal");
+        dbFile.delete();
+        walFile.delete();
+        int pageSize = 16384;
+        try {
+            if (BPlusTree.maxSizeFor(pageSize, 4, 4) <= BPlusTree.maxSizeFor(Page.DEFAULT_PAGE_SIZE, 4, 4)) {
+                throw new RuntimeException("❌ Larger pages do not give a larger fanout");
+            }
+            BufferPoolManager bpm = new BufferPoolManager(64, 3, 1, Types.ReplacerType.LRU_K,
+                    new DiskScheduler(2, new DiskManager(fileName, pageSize)));
+            if (bpm.getPageSize() != pageSize) throw new RuntimeException("❌ Expected pages of " + pageSize + " bytes, Got: " + bpm.getPageSize());
+            BPlusTree<Integer, Integer> tree = new BPlusTree<>(bpm); // fanout from the file's page size
+            TreeMap<Integer, Integer> expected = new TreeMap<>();
+            Random random = new Random(23);
+            for (int i = 0; i < 20000; i++) {
+                int key = random.nextInt(1 << 20);
+                if (tree.insert(key, key + 1)) expected.put(key, key + 1);
+            }
+            for (int i = 0; i < 5000; i++) {
+                int key = random.nextInt(1 << 20);
+                if (tree.remove(key) != (expected.remove(key) != null)) throw new RuntimeException("❌ Remove result wrong for key " + key);
+            }
+            int root = tree.getRootPageID();
+            shutdown(bpm);
+
+            // the file keeps its page size, a reopen without one reads it from the header
+            DiskManager reopenedDisk = new DiskManager(fileName);
+            if (reopenedDisk.getPageSize() != pageSize) {
+                throw new RuntimeException("❌ The reopened file has pages of " + reopenedDisk.getPageSize() + " bytes, Expected: " + pageSize);
+            }
+            BufferPoolManager reopened = new BufferPoolManager(64, 3, 1, Types.ReplacerType.LRU_K, new DiskScheduler(2, reopenedDisk));
+            tree = new BPlusTree<>(reopened);
+            tree.setRootPageID(root);
+            if (!tree.getAllKeysInOrder().equals(new ArrayList<>(expected.keySet()))) {
+                throw new RuntimeException("❌ The keys differ from the reference map after a reopen");
+            }
+            for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+                Integer val = tree.getValue(entry.getKey());
+                if (!entry.getValue().equals(val))
+                    throw new RuntimeException("❌ Wrong value for key " + entry.getKey() + ", Expected: " + entry.getValue() + ", Got: " + val);
+            }
+            shutdown(reopened);
+
+            for (int wrongSize : new int[] {Page.DEFAULT_PAGE_SIZE, 3000}) { // another size for the file, not a power of two
+                try {
+                    new DiskManager(fileName, wrongSize).shutdown();
+                    throw new RuntimeException("❌ A page size of " + wrongSize + " was accepted for the file");
+                } catch (IllegalArgumentException expectedError) {
+                    // rejected
+                }
+            }
+        } catch (java.io.IOException e) {
+            throw new RuntimeException("❌ testPageSize failed", e);
+        } finally {
+            dbFile.delete();
+            walFile.delete();
+        }
+        System.out.println("✅ testPageSize passed");
     }
 
     public void testRedistribution() {
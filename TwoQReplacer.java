@@ -0,0 +1,111 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.IntPredicate;
+
+// Full 2Q (Johnson & Shasha): pages seen once wait in the A1in FIFO, pages hit again after leaving it
+// (their id is still in the A1out ghost queue) go to the Am LRU. A large leaf scan therefore only
+// cycles through A1in and cannot flush the hot pages out of Am.
+// A1in and Am are FrameQueues, so a hit and an eviction neither box nor walk past pinned frames; the A1out ghost
+// queue is only touched when a frame gets a new page.
+public class TwoQReplacer implements Replacer {
+    private static final int A1IN = 0; // frames, oldest first
+    private static final int AM = 1;   // frames, least recently used first
+
+    private final int numFrames;
+    private final int kin;  // target size of A1in, in frames
+    private final int kout; // capacity of the A1out ghost queue, in page ids
+    private final FrameQueues queues;
+    private final LinkedHashSet<Integer> a1out = new LinkedHashSet<>(); // ghost page ids, oldest first
+    private final int[] framePage; // page held by each frame, -1 when unknown
+
+    public TwoQReplacer(int numFrames) {
+        this.numFrames = numFrames;
+        this.kin = Math.max(1, numFrames / 4);
+        this.kout = Math.max(1, numFrames / 2);
+        this.queues = new FrameQueues(numFrames, 2);
+        this.framePage = new int[numFrames];
+        Arrays.fill(framePage, -1);
+    }
+
+    @Override
+    public synchronized void recordAccess(int frameId) {
+        checkFrame(frameId);
+        int queue = queues.queueOf(frameId);
+        if (queue == AM) {
+            queues.moveToTail(frameId, AM); // move to the MRU end
+        } else if (queue != A1IN) {
+            queues.moveToTail(frameId, A1IN);
+        }
+    }
+
+    @Override
+    public synchronized void recordAccess(int frameId, int pageId) {
+        checkFrame(frameId);
+        if (framePage[frameId] == pageId) {
+            recordAccess(frameId);
+            return;
+        }
+        // a new page in this frame: it goes to Am only if it was evicted from A1in recently
+        framePage[frameId] = pageId;
+        queues.moveToTail(frameId, a1out.remove(pageId) ? AM : A1IN);
+    }
+
+    @Override
+    public synchronized void setEvictable(int frameId, boolean evictable) {
+        checkFrame(frameId);
+        queues.setEvictable(frameId, evictable);
+    }
+
+    @Override
+    public synchronized boolean evict(int[] frameId) {
+        return evict(frameId, frame -> true);
+    }
+
+    @Override
+    public synchronized boolean evict(int[] frameId, IntPredicate preferred) {
+        if (queues.evictableCount() == 0) return false;
+        int victim = FrameQueues.NONE;
+        if (queues.size(A1IN) > kin) {
+            victim = queues.first(A1IN, preferred, PREFERRED_LOOKAHEAD);
+        }
+        if (victim == FrameQueues.NONE) victim = queues.first(AM, preferred, PREFERRED_LOOKAHEAD);
+        if (victim == FrameQueues.NONE) victim = queues.first(A1IN, preferred, PREFERRED_LOOKAHEAD);
+        if (victim == FrameQueues.NONE) return false;
+
+        if (queues.queueOf(victim) == A1IN && framePage[victim] != -1) {
+            a1out.add(framePage[victim]);
+            if (a1out.size() > kout) {
+                Iterator<Integer> oldest = a1out.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+        forget(victim);
+        frameId[0] = victim;
+        return true;
+    }
+
+    @Override
+    public synchronized void remove(int frameId) {
+        checkFrame(frameId);
+        forget(frameId);
+    }
+
+    @Override
+    public synchronized int size() {
+        return queues.evictableCount();
+    }
+
+    private void forget(int frameId) {
+        queues.leave(frameId);
+        queues.setEvictable(frameId, false);
+        framePage[frameId] = -1;
+    }
+
+    private void checkFrame(int frameId) {
+        if (frameId < 0 || frameId >= numFrames) {
+            throw new IllegalArgumentException("[TwoQReplacer] invalid frame id: " + frameId);
+        }
+    }
+}
@@ -5,4 +5,11 @@ public class Types {
         LEAF_PAGE,
         INTERNAL_PAGE
     }
+
+    public enum ReplacerType {
+        LRU_K,
+        CLOCK,
+        TWO_Q,
+        ARC
+    }
 }